@@ -37,7 +37,9 @@ import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Query;
 import org.jboss.capedwarf.datastore.NamespaceServiceFactory;
 import org.jboss.capedwarf.datastore.NamespaceServiceInternal;
+import org.jboss.capedwarf.datastore.query.ResultIterators;
 import org.jboss.capedwarf.shared.compatibility.Compatibility;
+import org.jboss.capedwarf.shared.components.AppIdFactory;
 
 import static com.google.appengine.api.datastore.Query.FilterOperator.EQUAL;
 import static org.jboss.capedwarf.admin.NumberFormatter.formatBytes;
@@ -166,6 +168,14 @@ public class DatastoreStatistics extends DatastoreHolder {
         }
     }
 
+    public String getOpenResultIterators() {
+        return formatCount(ResultIterators.getOpenCount(AppIdFactory.getAppId()));
+    }
+
+    public String getLeakedResultIterators() {
+        return formatCount(ResultIterators.getLeakedCount(AppIdFactory.getAppId()));
+    }
+
     public boolean isEnabled() {
         String stats = Compatibility.getInstance().getValue(Compatibility.Feature.ENABLE_EAGER_DATASTORE_STATS);
         return "sync".equals(stats) || "async".equals(stats);
@@ -26,7 +26,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.util.Iterator;
+import java.nio.charset.StandardCharsets;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -39,6 +39,7 @@ import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityTranslator;
 import com.google.storage.onestore.v3.OnestoreEntity;
+import org.jboss.capedwarf.datastore.EntityScan;
 import org.jboss.capedwarf.datastore.ExposedDatastoreService;
 import org.jboss.capedwarf.shared.compatibility.Compatibility;
 
@@ -60,15 +61,16 @@ public class RemoteApiServlet extends HttpServlet {
         try {
             final ExposedDatastoreService datastore = (ExposedDatastoreService) datastoreService;
 
-            try (DataOutputStream out = new DataOutputStream(resp.getOutputStream())) {
-                Iterator<Entity> entities = datastore.getAllEntitiesIterator();
+            // ordered per kind by key, pass last sort_key as token to resume
+            try (EntityScan entities = datastore.scan(req.getParameter("token"));
+                 DataOutputStream out = new DataOutputStream(resp.getOutputStream())) {
                 while (entities.hasNext()) {
                     Entity entity = entities.next();
                     OnestoreEntity.EntityProto entityProto = EntityTranslator.convertToPb(entity);
                     byte[] pbBytes = entityProto.toByteArray();
                     writeArray(out, entityProto.getKey().toByteArray());   // TODO: id
                     writeArray(out, pbBytes);
-                    writeArray(out, new byte[0]);   // TODO: sort_key
+                    writeArray(out, entities.getToken().getBytes(StandardCharsets.UTF_8));
                 }
             }
         } finally {
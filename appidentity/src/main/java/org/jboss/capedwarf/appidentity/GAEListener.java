@@ -38,6 +38,9 @@ import org.jboss.capedwarf.common.apiproxy.CapedwarfDelegate;
 import org.jboss.capedwarf.common.config.CapedwarfEnvironment;
 import org.jboss.capedwarf.common.security.PrincipalInfo;
 import org.jboss.capedwarf.cron.CronService;
+import org.jboss.capedwarf.datastore.IdAllocator;
+import org.jboss.capedwarf.datastore.query.ResultIterators;
+import org.jboss.capedwarf.datastore.stats.AsyncEagerListener;
 import org.jboss.capedwarf.log.ExposedLogService;
 import org.jboss.capedwarf.shared.components.AppIdFactory;
 import org.jboss.capedwarf.shared.components.SimpleAppIdFactory;
@@ -108,7 +111,20 @@ public class GAEListener extends ConfigurationAware implements ServletContextLis
         final ServletContext servletContext = sce.getServletContext();
 
         try {
-            cronService.destroy();
+            try {
+                cronService.destroy();
+            } finally {
+                final String appId = applicationConfiguration.getAppEngineWebXml().getApplication();
+                try {
+                    IdAllocator.release(appId);
+                } finally {
+                    try {
+                        ResultIterators.release(appId);
+                    } finally {
+                        AsyncEagerListener.release(appId);
+                    }
+                }
+            }
         } finally {
             String deadlineParameter = servletContext.getInitParameter("lifecycle-manager-deadline");
             long deadline = Long.parseLong((deadlineParameter != null) ? deadlineParameter : "0");
@@ -118,6 +134,7 @@ public class GAEListener extends ConfigurationAware implements ServletContextLis
 
     public void requestInitialized(ServletRequestEvent sre) {
         AppIdFactory.setCurrentFactory(appIdFactory);
+        ResultIterators.openScope();
 
         long requestStartMillis = System.currentTimeMillis();
 
@@ -142,7 +159,11 @@ public class GAEListener extends ConfigurationAware implements ServletContextLis
                     // TODO -- looks like some error before GAEFilter kicked in.
                 }
             } finally {
-                CapedwarfDelegate.INSTANCE.removeRequest();
+                try {
+                    CapedwarfDelegate.INSTANCE.removeRequest();
+                } finally {
+                    ResultIterators.closeCurrentScope();
+                }
             }
         } finally {
             AppIdFactory.resetCurrentFactory();
@@ -68,25 +68,52 @@ public class CursorTransformer extends RewriteTransformer {
         getSize.setBody("{return size.getSize();}");
         clazz.addMethod(getSize);
 
+        // add keyset position field, getter, setter
+
+        CtField positionField = CtField.make("private String position;", clazz);
+        clazz.addField(positionField);
+
+        CtClass stringClass = pool.get(String.class.getName());
+
+        CtMethod getPosition = new CtMethod(stringClass, "getPosition", new CtClass[]{}, clazz);
+        getPosition.setModifiers(Modifier.PUBLIC);
+        getPosition.setBody("{return position;}");
+        clazz.addMethod(getPosition);
+
+        CtMethod setPosition = new CtMethod(CtClass.voidType, "setPosition", new CtClass[]{stringClass}, clazz);
+        setPosition.setModifiers(Modifier.PUBLIC);
+        setPosition.setBody("{position = $1;}");
+        clazz.addMethod(setPosition);
+
         // override other methods
 
         CtConstructor cloneCtor = clazz.getDeclaredConstructor(new CtClass[]{clazz});
-        cloneCtor.setBody("this($1.index, $1.size);");
+        cloneCtor.setBody("{this($1.index, $1.size); this.position = $1.position;}");
 
         CtMethod writeObject = clazz.getDeclaredMethod("writeObject", new CtClass[]{pool.get(ObjectOutputStream.class.getName())});
-        writeObject.setBody("{$1.writeInt(getIndex()); $1.writeInt(getSize());}");
+        writeObject.setBody("{$1.writeInt(getIndex()); $1.writeInt(getSize()); $1.writeUTF(position != null ? position : \"\");}");
 
         CtMethod readObject = clazz.getDeclaredMethod("readObject", new CtClass[]{pool.get(ObjectInputStream.class.getName())});
-        readObject.setBody("{index = new java.util.concurrent.atomic.AtomicInteger($1.readInt()); size = new org.jboss.capedwarf.datastore.query.DirectLazySize($1.readInt());}");
+        readObject.setBody(
+                "{" +
+                "   index = new java.util.concurrent.atomic.AtomicInteger($1.readInt());" +
+                "   size = new org.jboss.capedwarf.datastore.query.DirectLazySize($1.readInt());" +
+                "   try {" +
+                "       String p = $1.readUTF();" +
+                "       position = (p.length() > 0) ? p : null;" +
+                "   } catch (java.io.IOException ignored) {" + // cursor serialized before keyset positions
+                "   }" +
+                "}"
+        );
 
         CtMethod advance = clazz.getDeclaredMethod("advance", new CtClass[]{intClass, pool.get(PreparedQuery.class.getName())});
-        advance.setBody("{index.addAndGet($1); return this;}");
+        advance.setBody("{index.addAndGet($1); position = null; return this;}");
 
         CtMethod reverse = clazz.getDeclaredMethod("reverse");
         reverse.setBody("return new com.google.appengine.api.datastore.Cursor(new java.util.concurrent.atomic.AtomicInteger(getSize() - getIndex()), size);");
 
         CtMethod toWebSafeString = clazz.getDeclaredMethod("toWebSafeString");
-        toWebSafeString.setBody("return index + \",\" + getSize();");
+        toWebSafeString.setBody("return index + \",\" + getSize() + (position != null ? \",\" + position : \"\");");
 
         CtMethod fromWebSafeString = clazz.getDeclaredMethod("fromWebSafeString", new CtClass[]{pool.get(String.class.getName())});
         fromWebSafeString.setBody(
@@ -94,7 +121,9 @@ public class CursorTransformer extends RewriteTransformer {
                 "   String[] split = ($1 != null && $1.length() > 0) ? $1.split(\",\") : new String[0];" +
                 "   int i = (split.length > 0) ? Integer.parseInt(split[0]) : 0;" +
                 "   int s = (split.length > 0) ? Integer.parseInt(split[1]) : 0;" +
-                "   return new com.google.appengine.api.datastore.Cursor(new java.util.concurrent.atomic.AtomicInteger(i), new org.jboss.capedwarf.datastore.query.DirectLazySize(s));" +
+                "   com.google.appengine.api.datastore.Cursor cursor = new com.google.appengine.api.datastore.Cursor(new java.util.concurrent.atomic.AtomicInteger(i), new org.jboss.capedwarf.datastore.query.DirectLazySize(s));" +
+                "   if (split.length > 2) cursor.setPosition(split[2]);" +
+                "   return cursor;" +
                 "}"
         );
 
@@ -24,8 +24,14 @@
 
 package org.jboss.capedwarf.bytecode;
 
+import java.lang.reflect.Modifier;
+
 import com.google.appengine.api.datastore.Entity;
 import javassist.CtClass;
+import javassist.CtField;
+import javassist.CtMethod;
+import javassist.CtNewMethod;
+import javassist.NotFoundException;
 import org.hibernate.search.annotations.Indexed;
 import org.hibernate.search.annotations.ProvidedId;
 import org.jboss.capedwarf.datastore.query.EntityKeyBridge;
@@ -35,12 +41,123 @@ import org.jboss.capedwarf.datastore.query.QueryConverter;
 
 /**
  * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
 public class EntityTransformer extends JavassistTransformer {
+    private static final String ENTITY = Entity.class.getName();
+
+    // property values that cannot be changed by the caller, hence can be shared
+    private static final String[] IMMUTABLE = {
+        "java.lang.String",
+        "java.lang.Number",
+        "java.lang.Boolean",
+        "com.google.appengine.api.datastore.Key",
+        "com.google.appengine.api.datastore.Text",
+        "com.google.appengine.api.datastore.Blob",
+        "com.google.appengine.api.datastore.ShortBlob",
+        "com.google.appengine.api.datastore.Category",
+        "com.google.appengine.api.datastore.Email",
+        "com.google.appengine.api.datastore.GeoPt",
+        "com.google.appengine.api.datastore.IMHandle",
+        "com.google.appengine.api.datastore.Link",
+        "com.google.appengine.api.datastore.PhoneNumber",
+        "com.google.appengine.api.datastore.PostalAddress",
+        "com.google.appengine.api.datastore.Rating",
+        "com.google.appengine.api.users.User",
+        "com.google.appengine.api.blobstore.BlobKey",
+    };
+
+    // PropertyContainer methods which modify the property map
+    private static final String[] WRITES = {"removeProperty", "setProperty", "setUnindexedProperty", "setIndexedProperty", "setPropertiesFrom"};
 
     @Override
     protected void transform(CtClass clazz) throws Exception {
         new EntityAnnotator(clazz).addAnnotations();
+        addCopyOnWrite(clazz);
+    }
+
+    /**
+     * Copy-on-write view support.
+     *
+     * A view shares the property map of the source entity,
+     * the map is only copied once the view is modified or a mutable value is handed out.
+     * The source entity must not be modified in place, e.g. the instance held by the cache.
+     *
+     * @param clazz the entity class
+     * @throws Exception for any error
+     */
+    private static void addCopyOnWrite(CtClass clazz) throws Exception {
+        CtField propertyMap = clazz.getDeclaredField("propertyMap");
+        propertyMap.setModifiers(propertyMap.getModifiers() & ~Modifier.FINAL);
+
+        clazz.addField(CtField.make("private transient boolean copyOnWrite;", clazz));
+
+        clazz.addMethod(CtNewMethod.make(
+            "public " + ENTITY + " copyOnWrite() {" +
+            "   " + ENTITY + " view = new " + ENTITY + "(getKey());" +
+            "   view.propertyMap = propertyMap;" +
+            "   view.copyOnWrite = true;" +
+            "   return view;" +
+            "}", clazz));
+
+        // build the private copy first, so the shared map is never seen half empty
+        clazz.addMethod(CtNewMethod.make(
+            "private void materialize() {" +
+            "   if (copyOnWrite) {" +
+            "       " + ENTITY + " copy = new " + ENTITY + "(getKey());" +
+            "       copy.setPropertiesFrom(this);" +
+            "       propertyMap = copy.propertyMap;" +
+            "       copyOnWrite = false;" +
+            "   }" +
+            "}", clazz));
+
+        StringBuilder shared = new StringBuilder("private static boolean isShareable(Object value) {");
+        shared.append("return value == null");
+        for (String type : IMMUTABLE) {
+            shared.append(" || value instanceof ").append(type);
+        }
+        shared.append(";}");
+        clazz.addMethod(CtNewMethod.make(shared.toString(), clazz));
+
+        for (String name : WRITES) {
+            hook(clazz, name, "materialize();");
+        }
+        hook(clazz, "getProperty", "if (copyOnWrite && isShareable(propertyMap.get($1)) == false) materialize();");
+        hook(clazz, "getProperties",
+            "if (copyOnWrite) {" +
+            "   java.util.Iterator it = propertyMap.values().iterator();" +
+            "   while (it.hasNext()) {" +
+            "       if (isShareable(it.next()) == false) {" +
+            "           materialize();" +
+            "           break;" +
+            "       }" +
+            "   }" +
+            "}");
+    }
+
+    /**
+     * Run code before the named methods, overriding the inherited ones where needed.
+     */
+    private static void hook(CtClass clazz, String name, String before) throws Exception {
+        for (CtMethod method : clazz.getDeclaredMethods(name)) {
+            method.insertBefore(before);
+        }
+        for (CtMethod method : clazz.getSuperclass().getDeclaredMethods(name)) {
+            int modifiers = method.getModifiers();
+            if (Modifier.isPublic(modifiers) == false || Modifier.isFinal(modifiers) || Modifier.isStatic(modifiers)) {
+                continue;
+            }
+            try {
+                clazz.getDeclaredMethod(name, method.getParameterTypes());
+                continue; // already hooked above
+            } catch (NotFoundException ignored) {
+            }
+            CtMethod copy = CtNewMethod.copy(method, clazz, null);
+            String call = "super." + name + "($$);";
+            boolean isVoid = (method.getReturnType() == CtClass.voidType);
+            copy.setBody("{" + before + (isVoid ? call : "return " + call) + "}");
+            clazz.addMethod(copy);
+        }
     }
 
     private static class EntityAnnotator extends HibernateSearchAnnotator {
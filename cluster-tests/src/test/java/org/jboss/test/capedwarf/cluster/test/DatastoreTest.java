@@ -24,7 +24,9 @@ package org.jboss.test.capedwarf.cluster.test;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.appengine.api.datastore.DatastoreService;
@@ -313,6 +315,47 @@ public class DatastoreTest extends ClusteredTestBase {
     }
 
 
+    @InSequence(400)
+    @Test
+    @OperateOnDeployment("dep1")
+    public void testLeasedIdOnDepA() throws Exception {
+        // leases a block on this node, remember where it starts
+        Key key = getService().put(new Entity("leased"));
+        Entity marker = new Entity("leasedMarker", "start");
+        marker.setProperty("id", key.getId());
+        getService().put(marker);
+    }
+
+    @InSequence(410)
+    @Test
+    @OperateOnDeployment("dep2")
+    public void testExplicitIdOnDepB() throws Exception {
+        waitForSync();
+        long start = (Long) getService().get(KeyFactory.createKey("leasedMarker", "start")).getProperty("id");
+        // explicit ids inside dep1's leased block
+        for (long id = start + 1; id <= start + 10; id++) {
+            Entity entity = new Entity(KeyFactory.createKey("leased", id));
+            entity.setProperty("explicit", true);
+            getService().put(entity);
+        }
+    }
+
+    @InSequence(420)
+    @Test
+    @OperateOnDeployment("dep1")
+    public void testNoReusedIdOnDepA() throws Exception {
+        waitForSync();
+        long start = (Long) getService().get(KeyFactory.createKey("leasedMarker", "start")).getProperty("id");
+        Set<Long> ids = new HashSet<>();
+        for (int i = 0; i < 20; i++) {
+            ids.add(getService().put(new Entity("leased")).getId());
+        }
+        for (long id = start + 1; id <= start + 10; id++) {
+            Assert.assertFalse("Reused explicit id " + id, ids.contains(id));
+            Assert.assertEquals(Boolean.TRUE, getService().get(KeyFactory.createKey("leased", id)).getProperty("explicit"));
+        }
+    }
+
     @InSequence(1000)
     @Test
     @OperateOnDeployment("dep1")
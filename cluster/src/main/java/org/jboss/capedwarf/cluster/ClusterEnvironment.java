@@ -25,6 +25,7 @@ package org.jboss.capedwarf.cluster;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyRange;
+import org.infinispan.remoting.rpc.RpcManager;
 import org.jboss.capedwarf.common.infinispan.InfinispanUtils;
 import org.jboss.capedwarf.environment.AbstractEnvironment;
 import org.jboss.capedwarf.environment.Environment;
@@ -54,7 +55,16 @@ public class ClusterEnvironment extends AbstractEnvironment {
         return InfinispanUtils.submit(appId, CacheName.DIST, new KeyRangeCheckTask(keyRange, sequenceName), sequenceName);
     }
 
-    public void updateRange(String appId, long id, String sequenceName, long allocationSize) {
-        InfinispanUtils.submit(appId, CacheName.DIST, new KeyRangeUpdateTask(id, sequenceName, allocationSize), sequenceName);
+    public Long leaseRange(String appId, String sequenceName, long num) {
+        return InfinispanUtils.submit(appId, CacheName.DIST, new KeyRangeLeaseTask(getNode(appId), sequenceName, num), sequenceName);
+    }
+
+    private static String getNode(String appId) {
+        final RpcManager rpc = InfinispanUtils.getCache(appId, CacheName.DIST).getAdvancedCache().getRpcManager();
+        return (rpc != null) ? String.valueOf(rpc.getAddress()) : "local";
+    }
+
+    public boolean updateRange(String appId, long id, String sequenceName, long allocationSize) {
+        return InfinispanUtils.submit(appId, CacheName.DIST, new KeyRangeUpdateTask(id, sequenceName, allocationSize), sequenceName);
     }
 }
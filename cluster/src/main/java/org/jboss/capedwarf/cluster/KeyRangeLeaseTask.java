@@ -0,0 +1,83 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.infinispan.AdvancedCache;
+import org.infinispan.remoting.rpc.RpcManager;
+import org.infinispan.remoting.transport.Address;
+import org.jboss.capedwarf.common.infinispan.NewTxTask;
+
+/**
+ * Key range lease task.
+ * Same as id generation, the leased block is also recorded as outstanding for the node, see LeasedRanges.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class KeyRangeLeaseTask extends NewTxTask<String, Object, Long> {
+    private final String node;
+    private final String sequenceName;
+    private final long allocationSize;
+
+    public KeyRangeLeaseTask(String node, String sequenceName, long allocationSize) {
+        this.node = node;
+        this.sequenceName = sequenceName;
+        this.allocationSize = allocationSize;
+    }
+
+    protected Long callInTx() throws Exception {
+        final AdvancedCache<String, Object> ac = getCache().getAdvancedCache();
+        final String cacheKey = sequenceName;
+
+        if (ac.lock(cacheKey) == false)
+            throw new IllegalArgumentException("Cannot get a lock on id generator for " + cacheKey);
+
+        Long nextId = (Long) ac.get(cacheKey);
+        if (nextId == null)
+            nextId = 1L;
+
+        ac.put(cacheKey, nextId + allocationSize);
+
+        final String leasesKey = LeasedRanges.toLeasesKey(sequenceName);
+        LeasedRanges leases = (LeasedRanges) ac.get(leasesKey);
+        if (leases == null)
+            leases = new LeasedRanges();
+        ac.put(leasesKey, leases.lease(node, nextId, nextId + allocationSize, getMembers(ac)));
+
+        return nextId;
+    }
+
+    private static List<String> getMembers(AdvancedCache<String, Object> ac) {
+        final RpcManager rpc = ac.getRpcManager();
+        if (rpc == null) {
+            return null;
+        }
+        final List<String> members = new ArrayList<>();
+        for (Address address : rpc.getMembers()) {
+            members.add(String.valueOf(address));
+        }
+        return members;
+    }
+}
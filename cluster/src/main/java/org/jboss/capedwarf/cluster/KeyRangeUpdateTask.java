@@ -27,10 +27,12 @@ import org.jboss.capedwarf.common.infinispan.NewTxTask;
 
 /**
  * Key range update task.
+ * An explicit id inside an outstanding lease clears the sequence's leases,
+ * nodes must then drop their leased blocks; ids below all leases (e.g. allocateIds ranges) are safe.
  *
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
-public class KeyRangeUpdateTask extends NewTxTask<String, Long, Void> {
+public class KeyRangeUpdateTask extends NewTxTask<String, Object, Boolean> {
     private final long id;
     private final String sequenceName;
     private final long allocationSize;
@@ -41,18 +43,26 @@ public class KeyRangeUpdateTask extends NewTxTask<String, Long, Void> {
         this.allocationSize = allocationSize;
     }
 
-    protected Void callInTx() throws Exception {
-        final AdvancedCache<String, Long> ac = getCache().getAdvancedCache();
+    protected Boolean callInTx() throws Exception {
+        final AdvancedCache<String, Object> ac = getCache().getAdvancedCache();
         final String cacheKey = sequenceName;
         
         if (ac.lock(cacheKey) == false)
             throw new IllegalArgumentException("Cannot get a lock on id generator for " + cacheKey);
 
-        Long currentId = ac.get(cacheKey);
+        Long currentId = (Long) ac.get(cacheKey);
         if (currentId == null || currentId <= id) {
             ac.put(cacheKey, id + allocationSize);
+            return false;
         }
 
-        return null;
+        final String leasesKey = LeasedRanges.toLeasesKey(sequenceName);
+        final LeasedRanges leases = (LeasedRanges) ac.get(leasesKey);
+        if (leases == null || leases.contains(id) == false) {
+            return false;
+        }
+        // every node drops its blocks, next leases are above the id
+        ac.remove(leasesKey);
+        return true;
     }
 }
@@ -0,0 +1,102 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.cluster;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Outstanding leased id blocks of a sequence.
+ * A node holds at most two blocks, the current and the prefetched one,
+ * so only the last two leases per node are kept; leases of nodes which left are forgotten.
+ * Instances are immutable.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class LeasedRanges implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final int PER_NODE = 2;
+
+    // node -> [start, end) blocks, oldest first
+    private final Map<String, List<long[]>> ranges;
+
+    LeasedRanges() {
+        this(new HashMap<String, List<long[]>>());
+    }
+
+    private LeasedRanges(Map<String, List<long[]>> ranges) {
+        this.ranges = ranges;
+    }
+
+    static String toLeasesKey(String sequenceName) {
+        return sequenceName + "#leases";
+    }
+
+    /**
+     * Add node's new lease.
+     *
+     * @param node the node
+     * @param start the block start
+     * @param end the block end, exclusive
+     * @param members current cluster members, null if unknown
+     * @return new leased ranges
+     */
+    LeasedRanges lease(String node, long start, long end, Collection<String> members) {
+        final Map<String, List<long[]>> copy = new HashMap<>();
+        for (Map.Entry<String, List<long[]>> entry : ranges.entrySet()) {
+            if (members == null || members.contains(entry.getKey())) {
+                copy.put(entry.getKey(), entry.getValue());
+            }
+        }
+        final List<long[]> previous = copy.get(node);
+        final List<long[]> blocks = new ArrayList<>();
+        if (previous != null) {
+            blocks.addAll(previous.subList(Math.max(0, previous.size() - PER_NODE + 1), previous.size()));
+        }
+        blocks.add(new long[]{start, end});
+        copy.put(node, blocks);
+        return new LeasedRanges(copy);
+    }
+
+    /**
+     * Is the id in any outstanding lease.
+     *
+     * @param id the id
+     * @return true if some node could still hand out the id
+     */
+    boolean contains(long id) {
+        for (List<long[]> blocks : ranges.values()) {
+            for (long[] block : blocks) {
+                if (block[0] <= id && id < block[1]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
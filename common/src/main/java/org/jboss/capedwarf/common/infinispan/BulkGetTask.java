@@ -0,0 +1,60 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.common.infinispan;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.infinispan.Cache;
+import org.infinispan.distexec.DistributedCallable;
+
+/**
+ * Bulk get task.
+ * Executed on the primary owner, reads all its input keys in one go.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class BulkGetTask<K, V> implements DistributedCallable<K, V, Map<K, V>>, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private transient Cache<K, V> cache;
+    private transient Set<K> inputKeys;
+
+    public void setEnvironment(Cache<K, V> cache, Set<K> inputKeys) {
+        this.cache = cache;
+        this.inputKeys = inputKeys;
+    }
+
+    public Map<K, V> call() throws Exception {
+        final Map<K, V> results = new HashMap<>();
+        for (K key : inputKeys) {
+            V value = cache.get(key);
+            if (value != null) {
+                results.put(key, value);
+            }
+        }
+        return results;
+    }
+}
@@ -22,16 +22,22 @@
 
 package org.jboss.capedwarf.common.infinispan;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 
+import org.infinispan.AdvancedCache;
 import org.infinispan.Cache;
 import org.infinispan.distexec.DefaultExecutorService;
 import org.infinispan.distexec.DistributedExecutorService;
 import org.infinispan.distexec.DistributedTask;
 import org.infinispan.distexec.DistributedTaskBuilder;
+import org.infinispan.distribution.DistributionManager;
 import org.infinispan.io.GridFile;
 import org.infinispan.io.GridFilesystem;
 import org.infinispan.manager.EmbeddedCacheManager;
@@ -136,6 +142,51 @@ public class InfinispanUtils {
         return des.submitEverywhere(task);
     }
 
+    /**
+     * Submit to primary owners of the keys.
+     * Each owner only gets its own subset of keys as input keys.
+     */
+    public static <T> List<Future<T>> owners(final String appId, final CacheName template, Callable<T> callable, Object... keys) {
+        final Cache cache = getCache(appId, template);
+        final DistributedExecutorService des = new DefaultExecutorService(cache, ExecutorFactory.getDirectExecutor());
+        final DistributedTask<T> task = toTask(des, callable);
+        return des.submitEverywhere(task, keys);
+    }
+
+    /**
+     * Bulk get.
+     * Locally owned keys are read directly, the rest is grouped by primary owner
+     * and fetched with a single remote call per owner.
+     */
+    public static <K, V> Map<K, V> getAll(final String appId, final CacheName template, final AdvancedCache<K, V> cache, final Collection<K> keys) {
+        final Map<K, V> results = new HashMap<>();
+        final DistributionManager dm = cache.getDistributionManager();
+        final List<K> remote = new ArrayList<>();
+        for (K key : keys) {
+            if (dm == null || dm.getLocality(key).isLocal()) {
+                put(results, key, cache.get(key));
+            } else {
+                remote.add(key);
+            }
+        }
+        if (remote.size() == 1) {
+            K key = remote.get(0);
+            put(results, key, cache.get(key));
+        } else if (remote.size() > 1) {
+            final List<Future<Map<K, V>>> futures = owners(appId, template, new BulkGetTask<K, V>(), remote.toArray());
+            for (Future<Map<K, V>> future : futures) {
+                results.putAll(Utils.quietGet(future));
+            }
+        }
+        return results;
+    }
+
+    private static <K, V> void put(Map<K, V> results, K key, V value) {
+        if (value != null) {
+            results.put(key, value);
+        }
+    }
+
     public static GridFilesystem getGridFilesystem(String appId) {
         final ComponentRegistry registry = ComponentRegistry.getInstance();
         final Key<GridFilesystem> key = new SimpleKey<>(appId, Application.getModule(), GridFilesystem.class);
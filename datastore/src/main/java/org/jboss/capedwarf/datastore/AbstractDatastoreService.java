@@ -202,6 +202,10 @@ public abstract class AbstractDatastoreService implements BaseDatastoreService,
         return getDelegate().getAllEntitiesIterator();
     }
 
+    public EntityScan scan(String token) {
+        return getDelegate().scan(token);
+    }
+
     /**
      * Testing only!
      */
@@ -23,10 +23,12 @@
 package org.jboss.capedwarf.datastore;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.WeakHashMap;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import com.google.appengine.api.datastore.BaseDatastoreService;
@@ -41,10 +43,7 @@ import com.google.apphosting.api.ApiProxy;
 import org.hibernate.search.query.engine.spi.TimeoutExceptionFactory;
 import org.infinispan.AdvancedCache;
 import org.infinispan.Cache;
-import org.infinispan.container.entries.CacheEntry;
 import org.infinispan.context.Flag;
-import org.infinispan.metadata.Metadata;
-import org.infinispan.query.CacheQuery;
 import org.infinispan.query.Search;
 import org.infinispan.query.SearchManager;
 import org.infinispan.query.spi.SearchManagerImplementor;
@@ -55,10 +54,12 @@ import org.jboss.capedwarf.datastore.query.PreparedQueryImpl;
 import org.jboss.capedwarf.datastore.query.QueryConverter;
 import org.jboss.capedwarf.datastore.query.QueryHandleService;
 import org.jboss.capedwarf.shared.compatibility.Compatibility;
+import org.jboss.capedwarf.shared.components.ComponentRegistry;
+import org.jboss.capedwarf.shared.components.SimpleKey;
 import org.jboss.capedwarf.shared.config.CacheName;
 import org.jboss.capedwarf.shared.config.IndexesXml;
-import org.jboss.capedwarf.shared.reflection.FieldInvocation;
 import org.jboss.capedwarf.shared.reflection.ReflectionUtils;
+import org.jboss.capedwarf.shared.util.Utils;
 
 /**
  * Base Datastore service.
@@ -67,7 +68,6 @@ import org.jboss.capedwarf.shared.reflection.ReflectionUtils;
  * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
  */
 public class BaseDatastoreServiceImpl implements BaseDatastoreService, CurrentTransactionProvider, PostLoadHandle, QueryHandleService {
-    private static final FieldInvocation<Long> VERSION = ReflectionUtils.cacheField("org.infinispan.container.versioning.SimpleClusteredVersion", "version");
     private static final Map<ClassLoader, DatastoreServiceConfig> configs = new WeakHashMap<ClassLoader, DatastoreServiceConfig>();
 
     protected final Logger log = Logger.getLogger(getClass().getName());
@@ -116,8 +116,7 @@ public class BaseDatastoreServiceImpl implements BaseDatastoreService, CurrentTr
         if (useMetadata) {
             entityGroupMetadataStore = InfinispanUtils.<Key, EntityGroupMetadata>getCache(appId, CacheName.DATASTORE_VERSIONS)
                     .getAdvancedCache()
-                    .with(classLoader)
-                    .withFlags(Flag.IGNORE_RETURN_VALUES);
+                    .with(classLoader);
         } else {
             entityGroupMetadataStore = null;
         }
@@ -131,48 +130,105 @@ public class BaseDatastoreServiceImpl implements BaseDatastoreService, CurrentTr
                 }
             });
         }
-        this.queryConverter = new QueryConverter(searchManager);
+        this.queryConverter = getQueryConverter(appId, searchManager);
         this.factories = new QueryTypeFactories(this);
     }
 
+    /**
+     * One converter per app, so its plan cache is shared by all service instances.
+     */
+    private static QueryConverter getQueryConverter(String appId, SearchManager searchManager) {
+        final ComponentRegistry registry = ComponentRegistry.getInstance();
+        final org.jboss.capedwarf.shared.components.Key<QueryConverter> key = new SimpleKey<>(appId, Application.getModule(), QueryConverter.class);
+
+        QueryConverter converter = registry.getComponent(key);
+        if (converter == null) {
+            synchronized (BaseDatastoreServiceImpl.class) {
+                converter = registry.getComponent(key);
+                if (converter == null) {
+                    converter = new QueryConverter(searchManager);
+                    registry.setComponent(key, converter);
+                }
+            }
+        }
+        return converter;
+    }
+
     protected ClassLoader getAppClassLoader() {
         return Application.getAppClassLoader();
     }
 
+    protected CacheName getCacheName() {
+        return CacheName.DEFAULT;
+    }
+
     protected Cache<Key, Entity> createStore() {
-        return InfinispanUtils.getCache(appId, CacheName.DEFAULT);
+        return InfinispanUtils.getCache(appId, getCacheName());
     }
 
     public DatastoreCallbacks getDatastoreCallbacks() {
         if (datastoreCallbacks == null) {
             Object callbacks = ReflectionUtils.invokeInstanceMethod(getDatastoreServiceConfig(), "getDatastoreCallbacks");
-            datastoreCallbacks = new DatastoreCallbacks(callbacks);
+            datastoreCallbacks = DatastoreCallbacks.getInstance(callbacks);
         }
         return datastoreCallbacks;
     }
 
     protected final void putEntityGroupKey(Key key) {
         if (entityGroupMetadataStore != null) {
-            entityGroupMetadataStore.put(Entities.createEntityGroupKey(key), EntityGroupMetadata.SINGLETON);
+            final Key entityGroupKey = Entities.createEntityGroupKey(key);
+            if (CapedwarfTransaction.getTx() != null) {
+                EntityGroupVersionTask.bump(entityGroupMetadataStore, entityGroupKey);
+            } else {
+                InfinispanUtils.submit(appId, CacheName.DATASTORE_VERSIONS, new EntityGroupVersionTask(), entityGroupKey);
+            }
         }
     }
 
+    /**
+     * Bump entity group versions.
+     * Within a transaction the bumps commit (or roll back) with the entity data,
+     * outside of it there is a single call per primary owner.
+     *
+     * @param entityGroupKeys the entity group keys
+     */
+    protected final void putEntityGroupKeys(Set<Key> entityGroupKeys) {
+        if (entityGroupMetadataStore == null || entityGroupKeys.isEmpty()) {
+            return;
+        }
+        if (CapedwarfTransaction.getTx() != null) {
+            for (Key entityGroupKey : entityGroupKeys) {
+                EntityGroupVersionTask.bump(entityGroupMetadataStore, entityGroupKey);
+            }
+        } else {
+            final List<Future<Void>> futures = InfinispanUtils.owners(appId, CacheName.DATASTORE_VERSIONS, new EntityGroupVersionTask(), entityGroupKeys.toArray());
+            for (Future<Void> future : futures) {
+                Utils.quietGet(future);
+            }
+        }
+    }
+
+    /**
+     * Entity group metadata entity, null if the entity group was never written.
+     *
+     * @param key the entity group key
+     * @return metadata entity or null
+     */
     protected final Entity getEntityGroupMetadataEntity(Key key) {
         if (entityGroupMetadataStore != null) {
+            final EntityGroupMetadata metadata = entityGroupMetadataStore.get(key);
+            if (metadata == null) {
+                return null;
+            }
+            final long version = metadata.isLegacy() ? EntityGroupMetadata.legacyVersion(entityGroupMetadataStore.getCacheEntry(key)) : metadata.getVersion();
             Entity entity = new Entity(key);
-            entity.setProperty(Entity.VERSION_RESERVED_PROPERTY, readEntityGroupVersion(key));
+            entity.setProperty(Entity.VERSION_RESERVED_PROPERTY, version);
             return entity;
         } else {
             throw new IllegalStateException("Metadata is disabled, enable it via compatibility property: " + Compatibility.Feature.DISABLE_METADATA);
         }
     }
 
-    private Long readEntityGroupVersion(Key key) {
-        CacheEntry cacheEntry = entityGroupMetadataStore.getCacheEntry(key);
-        Metadata metadata = cacheEntry.getMetadata();
-        return VERSION.invoke(metadata.version());
-    }
-
     public void execute(Entity result) {
         getDatastoreCallbacks().executePostLoadCallbacks(this, result);
     }
@@ -192,15 +248,8 @@ public class BaseDatastoreServiceImpl implements BaseDatastoreService, CurrentTr
         javax.transaction.Transaction transaction = beforeTx(tx);
         try {
             IndexesXml.Index index = Indexes.getIndex(query);
-            CacheQuery cacheQuery = queryConverter.convert(query, index);
-
             Double deadlineSeconds = getDatastoreServiceConfig().getDeadline();
-            if (deadlineSeconds != null) {
-                long deadlineMicroseconds = (long) (deadlineSeconds * 1000000);
-                cacheQuery.timeout(deadlineMicroseconds, TimeUnit.MICROSECONDS);
-            }
-
-            return new PreparedQueryImpl(this, query, index, cacheQuery, tx != null);
+            return new PreparedQueryImpl(this, query, index, queryConverter, deadlineSeconds, tx != null);
         } finally {
             afterTx(transaction);
         }
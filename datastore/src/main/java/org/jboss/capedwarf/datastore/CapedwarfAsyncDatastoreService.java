@@ -24,6 +24,7 @@ package org.jboss.capedwarf.datastore;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -42,12 +43,16 @@ import com.google.appengine.api.datastore.TransactionOptions;
 import com.google.appengine.api.utils.FutureWrapper;
 import com.google.common.base.Function;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
 import org.jboss.capedwarf.common.async.Wrappers;
 import org.jboss.capedwarf.common.threads.DirectFuture;
 
 /**
  * JBoss async DatastoreService impl.
  *
+ * Ops outside of tx use cache's non-blocking futures directly,
+ * ops in tx are executed in pool, as the tx is bound to the executing thread.
+ *
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
 public class CapedwarfAsyncDatastoreService extends AbstractDatastoreService implements ExposedAsyncDatastoreService {
@@ -104,6 +109,26 @@ public class CapedwarfAsyncDatastoreService extends AbstractDatastoreService imp
         };
     }
 
+    protected Future<Entity> doGet(final Transaction transaction, final Key key) {
+        if (transaction != null) {
+            return super.doGet(transaction, key);
+        }
+
+        final Map<Key, Entity> map = new LinkedHashMap<Key, Entity>();
+        getDatastoreCallbacks().executePreGetCallbacks(this, Lists.newArrayList(key), map);
+
+        final Entity previous = map.get(key);
+        final Future<Entity> future = (previous == null) ? getDelegate().getAsync(key) : Futures.immediateFuture(previous);
+        TxTasks.end(); // nothing runs in the background wrt tx
+        return new PostFuture<Entity>(future) {
+            protected void after(Entity result) {
+                if (result != null) {
+                    getDatastoreCallbacks().executePostLoadCallbacks(postTxProvider(transaction), result);
+                }
+            }
+        };
+    }
+
     public Future<Transaction> beginTransaction() {
         return beginTransaction(TransactionOptions.Builder.withDefaults());
     }
@@ -157,6 +182,25 @@ public class CapedwarfAsyncDatastoreService extends AbstractDatastoreService imp
             requiredKeys.removeAll(map.keySet()); // remove manually added keys
         }
 
+        if (transaction == null) {
+            final Future<Map<Key, Entity>> future = getDelegate().getAsync(requiredKeys);
+            TxTasks.end();
+            return new PostFuture<Map<Key, Entity>>(new FutureWrapper<Map<Key, Entity>, Map<Key, Entity>>(future) {
+                protected Map<Key, Entity> wrap(Map<Key, Entity> entities) throws Exception {
+                    map.putAll(entities);
+                    return map;
+                }
+
+                protected Throwable convertException(Throwable throwable) {
+                    return throwable;
+                }
+            }) {
+                protected void after(Map<Key, Entity> result) {
+                    getDatastoreCallbacks().executePostLoadCallbacks(postTxProvider(transaction), Lists.newArrayList(map.values()));
+                }
+            };
+        }
+
         final TransactionWrapper tw = CapedwarfTransaction.getTxWrapper(transaction);
         final Future<Map<Key, Entity>> wrap = wrap(env(new Callable<Map<Key, Entity>>() {
             public Map<Key, Entity> call() throws Exception {
@@ -191,6 +235,17 @@ public class CapedwarfAsyncDatastoreService extends AbstractDatastoreService imp
     @TxTask
     @Deadline
     public Future<Key> put(Transaction transaction, Entity entity) {
+        if (transaction == null) {
+            return new FutureWrapper<List<Key>, Key>(put(null, Collections.singletonList(entity))) {
+                protected Key wrap(List<Key> keys) throws Exception {
+                    return keys.get(0);
+                }
+
+                protected Throwable convertException(Throwable throwable) {
+                    return throwable;
+                }
+            };
+        }
         return doPut(transaction, entity, false);
     }
 
@@ -205,6 +260,12 @@ public class CapedwarfAsyncDatastoreService extends AbstractDatastoreService imp
             }
         };
 
+        if (transaction == null) {
+            final Future<List<Key>> future = getDelegate().putAsync(entityIterable);
+            TxTasks.end();
+            return handleGetWithPost(future, CapedwarfTransaction.getTx(), post);
+        }
+
         final TransactionWrapper tw = CapedwarfTransaction.getTxWrapper(transaction);
         final Future<List<Key>> wrap = wrap(env(new Callable<List<Key>>() {
             public List<Key> call() throws Exception {
@@ -250,6 +311,12 @@ public class CapedwarfAsyncDatastoreService extends AbstractDatastoreService imp
             }
         };
 
+        if (transaction == null) {
+            final Future<Void> future = getDelegate().deleteAsync(keyIterable);
+            TxTasks.end();
+            return handleGetWithPost(future, CapedwarfTransaction.getTx(), post);
+        }
+
         final TransactionWrapper tw = CapedwarfTransaction.getTxWrapper(transaction);
         final Future<Void> wrap = wrap(env(new Callable<Void>() {
             public Void call() throws Exception {
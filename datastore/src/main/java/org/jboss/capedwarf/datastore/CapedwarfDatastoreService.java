@@ -119,12 +119,7 @@ public class CapedwarfDatastoreService extends AbstractDatastoreService implemen
             requiredKeys.removeAll(map.keySet()); // remove manually added keys
         }
 
-        for (Key key : requiredKeys) {
-            final Entity entity = getDelegate().get(transaction, key);
-            if (entity != null) {
-                map.put(key, entity);
-            }
-        }
+        getDelegate().get(transaction, requiredKeys, map);
 
         getDatastoreCallbacks().executePostLoadCallbacks(this, Lists.newArrayList(map.values()));
 
@@ -34,7 +34,7 @@ import com.google.appengine.api.datastore.Entity;
 import org.hibernate.search.backend.spi.Work;
 import org.hibernate.search.backend.spi.WorkType;
 import org.infinispan.query.impl.DefaultSearchWorkCreator;
-import org.jboss.capedwarf.shared.config.ApplicationConfiguration;
+import org.jboss.capedwarf.datastore.query.IndexModel;
 import org.jboss.capedwarf.shared.config.IndexesXml;
 import org.jboss.capedwarf.shared.datastore.DatastoreConstants;
 
@@ -51,13 +51,11 @@ public class CapedwarfSearchWorkCreator extends DefaultSearchWorkCreator<Object>
 
         Entity entity = (Entity) value;
         List<Work<Object>> works = new ArrayList<>(super.createPerEntityWorks(value, id, workType));
-        for (IndexesXml.Index index : ApplicationConfiguration.getInstance().getIndexesXml().getIndexes().values()) {
-            if (index.getKind().equals(entity.getKind())) {
-                int i = 0;
-                for (Entity explodedEntity : explodeEntity(entity, index)) {
-                    String explodedId = id + DatastoreConstants.SEPARATOR + i++ + DatastoreConstants.SEPARATOR + index.getName();
-                    works.add(new Work<Object>(explodedEntity, explodedId, workType));
-                }
+        for (IndexesXml.Index index : IndexModel.getInstance().getDefinitions(entity.getKind())) {
+            int i = 0;
+            for (Entity explodedEntity : explodeEntity(entity, index)) {
+                String explodedId = id + DatastoreConstants.SEPARATOR + i++ + DatastoreConstants.SEPARATOR + index.getName();
+                works.add(new Work<Object>(explodedEntity, explodedId, workType));
             }
         }
         return works;
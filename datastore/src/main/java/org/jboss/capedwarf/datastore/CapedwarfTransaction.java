@@ -22,12 +22,15 @@
 
 package org.jboss.capedwarf.datastore;
 
-import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Stack;
+import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -53,45 +56,60 @@ final class CapedwarfTransaction implements Transaction {
     private static final Logger log = Logger.getLogger(CapedwarfTransaction.class.getName());
 
     private static final int asyncRetryCount = Integer.parseInt(System.getProperty("jboss.capedwarf.tx.asyncRetryCount", "3"));
+    private static final long tasksTimeout = Long.parseLong(System.getProperty("jboss.capedwarf.tx.tasksTimeout", String.valueOf(asyncRetryCount * 60 * 1000L)));
+
+    // node unique prefix + local counter, no need to dig into tx impl for its uid
+    private static final String ID_PREFIX = UUID.randomUUID().toString() + "-";
+    private static final AtomicLong ID_COUNTER = new AtomicLong();
 
     private final static TransactionManager tm = TxUtils.getTransactionManager();
-    private final static ThreadLocal<Stack<CapedwarfTransaction>> current = new ThreadLocal<Stack<CapedwarfTransaction>>();
+    private final static ThreadLocal<TxContext> current = new ThreadLocal<TxContext>();
 
     private final TransactionOptions options;
-    private ThreadLocal<javax.transaction.Transaction> transactions = new ThreadLocal<javax.transaction.Transaction>();
-
-    private String txId;
+    private final String txId;
+    private final TxTasks tasks;
 
     private CapedwarfTransaction(TransactionOptions options) {
         this.options = options;
+        this.txId = ID_PREFIX + ID_COUNTER.incrementAndGet();
+        this.tasks = new TxTasks();
     }
 
     static Transaction newTransaction(TransactionOptions options) {
-        Stack<CapedwarfTransaction> stack = current.get();
-        if (stack == null) {
-            stack = new Stack<CapedwarfTransaction>();
-            current.set(stack);
+        TxContext context = current.get();
+        if (context == null) {
+            context = new TxContext();
+            current.set(context);
         } else {
-            CapedwarfTransaction jt = stack.peek();
-            jt.suspend(); // suspend existing
+            context.suspend(); // suspend existing
         }
         try {
             tm.begin(); // being new
         } catch (Exception e) {
-            if (stack.isEmpty())
+            if (context.isEmpty())
                 current.remove();
             else
-                stack.peek().resume(true); // resume back previous
+                context.resume(true); // resume back previous
 
             throw new DatastoreFailureException("Cannot begin tx.", e);
         }
         final CapedwarfTransaction tx = new CapedwarfTransaction(options);
-        stack.push(tx);
+        context.push(tx);
         return tx;
     }
 
+    /**
+     * Get suspended tx, if this tx is suspended in current thread.
+     *
+     * @return suspended tx or null
+     */
     javax.transaction.Transaction getTransaction() {
-        return transactions.get();
+        final TxContext context = current.get();
+        return (context != null) ? context.getSuspended(this) : null;
+    }
+
+    TxTasks getTasks() {
+        return tasks;
     }
 
     static javax.transaction.Transaction getTx() {
@@ -140,26 +158,26 @@ final class CapedwarfTransaction implements Transaction {
 
         final CapedwarfTransaction tx = tw.getTransaction();
 
-        Stack<CapedwarfTransaction> stack = current.get();
-        if (stack == null) {
-            stack = new Stack<CapedwarfTransaction>();
-            current.set(stack);
+        TxContext context = current.get();
+        if (context == null) {
+            context = new TxContext();
+            current.set(context);
         }
 
-        stack.push(tx);
+        context.push(tx);
     }
 
     static void detach(TransactionWrapper tw) {
         if (tw == null)
             return;
 
-        final Stack<CapedwarfTransaction> stack = current.get();
-        if (stack == null || stack.isEmpty())
+        final TxContext context = current.get();
+        if (context == null || context.isEmpty())
             throw new IllegalStateException("Illegal call to cleanup - stack should exist");
 
-        stack.pop();
+        context.pop();
 
-        if (stack.isEmpty()) {
+        if (context.isEmpty()) {
             current.remove();
         }
 
@@ -192,35 +210,14 @@ final class CapedwarfTransaction implements Transaction {
             throw new IllegalStateException("Not current transaction -- other tx in progress!");
     }
 
-    private void suspend() {
-        try {
-            transactions.set(tm.suspend());
-        } catch (SystemException e) {
-            throw new DatastoreFailureException("Cannot suspend tx.", e);
-        }
-    }
-
-    private void resume(boolean ignoreException) {
-        javax.transaction.Transaction t = getTransaction();
-        try {
-            transactions.remove(); // cleanup
-            tm.resume(t);
-        } catch (Exception e) {
-            if (ignoreException == false)
-                throw new DatastoreFailureException("Cannot resume tx.", e);
-            else
-                log.log(Level.SEVERE, "Failed to resume previous tx: " + t, e);
-        }
-    }
-
     static CapedwarfTransaction currentTransaction() {
-        final Stack<CapedwarfTransaction> stack = current.get();
-        return (stack != null) ? stack.peek() : null;
+        final TxContext context = current.get();
+        return (context != null) ? context.peek() : null;
     }
 
     static TransactionOptions currentTransactionOptions() {
-        final Stack<CapedwarfTransaction> stack = current.get();
-        return (stack != null) ? stack.peek().options : null;
+        final CapedwarfTransaction tx = currentTransaction();
+        return (tx != null) ? tx.options : null;
     }
 
     static boolean isXG() {
@@ -229,38 +226,39 @@ final class CapedwarfTransaction implements Transaction {
     }
 
     private CapedwarfTransaction cleanup(boolean resume) {
-        final Stack<CapedwarfTransaction> stack = current.get();
-        if (stack == null)
+        final TxContext context = current.get();
+        if (context == null)
             throw new IllegalStateException("Illegal call to cleanup - stack should exist");
 
-        final CapedwarfTransaction jt = stack.peek();
+        final CapedwarfTransaction jt = context.peek();
         if (jt != this)
             throw new IllegalArgumentException("Cannot cleanup non-current tx!");
 
-        stack.pop(); // remove current
+        context.pop(); // remove current
 
         CapedwarfTransaction previous = null;
-        if (stack.isEmpty()) {
+        if (context.isEmpty()) {
             current.remove();
         } else {
-            previous = stack.peek();
+            previous = context.peek();
             if (resume) {
-                previous.resume(false); // resume previous
+                context.resume(false); // resume previous
             }
         }
         return previous;
     }
 
-    @SuppressWarnings({"unchecked"})
     static Collection<Transaction> getTransactions() {
-        Stack stack = current.get();
-        return (stack != null) ? Collections.unmodifiableCollection(stack) : Collections.<Transaction>emptyList();
+        final TxContext context = current.get();
+        return (context != null) ? context.getTransactions() : Collections.<Transaction>emptyList();
     }
 
     public void commit() {
         checkIfCurrent();
+        // conflicts surface as CME, before JTA could turn them into rollback
+        EntityGroupTracker.claimRoots();
         try {
-            finish(getTx(), new Callable<Void>() {
+            finish(new Callable<Void>() {
                 public Void call() throws Exception {
                     tm.commit();
                     return null;
@@ -275,9 +273,10 @@ final class CapedwarfTransaction implements Transaction {
 
     public Future<Void> commitAsync() {
         checkIfCurrent();
+        EntityGroupTracker.claimRoots();
 
-        final CapedwarfTransaction previous = cleanup(false);
-        final javax.transaction.Transaction tx = resumeAsync(previous);
+        cleanup(false);
+        final javax.transaction.Transaction tx = resumeAsync();
         if (tx == null) {
             throw new IllegalArgumentException("No Tx -- should exist?!");
         }
@@ -286,7 +285,7 @@ final class CapedwarfTransaction implements Transaction {
             public Void call() throws Exception {
                 resumeTx(tx);
                 try {
-                    return finish(tx, new Callable<Void>() {
+                    return finish(new Callable<Void>() {
                         public Void call() throws Exception {
                             tx.commit();
                             return null;
@@ -303,7 +302,7 @@ final class CapedwarfTransaction implements Transaction {
     public void rollback() {
         checkIfCurrent();
         try {
-            finish(getTx(), new Callable<Void>() {
+            finish(new Callable<Void>() {
                 public Void call() throws Exception {
                     tm.rollback();
                     return null;
@@ -319,8 +318,8 @@ final class CapedwarfTransaction implements Transaction {
     public Future<Void> rollbackAsync() {
         checkIfCurrent();
 
-        final CapedwarfTransaction previous = cleanup(false);
-        final javax.transaction.Transaction tx = resumeAsync(previous);
+        cleanup(false);
+        final javax.transaction.Transaction tx = resumeAsync();
         if (tx == null) {
             throw new IllegalArgumentException("No Tx -- should exist?!");
         }
@@ -329,7 +328,7 @@ final class CapedwarfTransaction implements Transaction {
             public Void call() throws Exception {
                 resumeTx(tx);
                 try {
-                    return finish(tx, new Callable<Void>() {
+                    return finish(new Callable<Void>() {
                         public Void call() throws Exception {
                             tx.rollback();
                             return null;
@@ -343,18 +342,16 @@ final class CapedwarfTransaction implements Transaction {
         return ExecutorFactory.wrap(Wrappers.wrap(callable));
     }
 
-    private static javax.transaction.Transaction resumeAsync(CapedwarfTransaction previous) {
+    private static javax.transaction.Transaction resumeAsync() {
         final javax.transaction.Transaction tx = suspendTx(); // reset current thread
-        if (previous != null) {
-            previous.resume(false); // resume previous
+        final TxContext context = current.get();
+        if (context != null) {
+            context.resume(false); // resume previous
         }
         return tx;
     }
 
-    public synchronized String getId() {
-        if (txId == null) {
-            txId = getTxId(getTx());
-        }
+    public String getId() {
         return txId;
     }
 
@@ -366,35 +363,80 @@ final class CapedwarfTransaction implements Transaction {
         return isTxActive();
     }
 
-    private static Void finish(final javax.transaction.Transaction tx, final Callable<Void> callable) throws Exception {
-        try {
-            int counter = asyncRetryCount;
-            while(counter > 0 && TxTasks.isDone(tx) == false) {
-                counter--;
-                TxTasks.finish(tx);
-            }
-            if (TxTasks.isDone(tx)) {
-                return callable.call();
-            } else {
-                throw new IllegalStateException("Cannot execute tx operation, unfinished tasks for tx: " + tx);
-            }
-        } finally {
-            TxTasks.clear(tx); // clear anyway
+    private Void finish(final Callable<Void> callable) throws Exception {
+        if (tasks.await(tasksTimeout, TimeUnit.MILLISECONDS)) {
+            return callable.call();
+        } else {
+            throw new IllegalStateException("Cannot execute tx operation, unfinished tasks for tx: " + txId);
         }
     }
 
     /**
-     * Impl detail!
-     * - https://github.com/jbosstm/narayana/blob/master/ArjunaJTS/jtax/classes/com/arjuna/ats/internal/jta/transaction/jts/TransactionImple.java#L1091
-     * - https://github.com/jbosstm/narayana/blob/master/ArjunaJTA/jta/classes/com/arjuna/ats/internal/jta/transaction/arjunacore/TransactionImple.java#L1010
-     * - https://github.com/jbosstm/narayana/blob/master/ArjunaCore/arjuna/classes/com/arjuna/ats/arjuna/common/Uid.java
+     * Per thread tx context.
+     * Stack of txs used in this thread, with their suspended JTA tx, if any.
      */
-    static String getTxId(javax.transaction.Transaction tx) {
-        try {
-            Method get_uid = tx.getClass().getMethod("get_uid");
-            return get_uid.invoke(tx).toString();
-        } catch (Exception e) {
-            throw new IllegalStateException(e);
+    private static final class TxContext {
+        private final List<CapedwarfTransaction> transactions = new ArrayList<CapedwarfTransaction>(2);
+        private final List<javax.transaction.Transaction> suspended = new ArrayList<javax.transaction.Transaction>(2);
+
+        boolean isEmpty() {
+            return transactions.isEmpty();
+        }
+
+        void push(CapedwarfTransaction tx) {
+            transactions.add(tx);
+            suspended.add(null);
+        }
+
+        CapedwarfTransaction peek() {
+            final int size = transactions.size();
+            return (size > 0) ? transactions.get(size - 1) : null;
+        }
+
+        void pop() {
+            final int last = transactions.size() - 1;
+            transactions.remove(last);
+            suspended.remove(last);
+        }
+
+        javax.transaction.Transaction getSuspended(CapedwarfTransaction tx) {
+            for (int i = transactions.size() - 1; i >= 0; i--) {
+                if (transactions.get(i) == tx) {
+                    return suspended.get(i);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Suspend top tx.
+         */
+        void suspend() {
+            try {
+                suspended.set(suspended.size() - 1, tm.suspend());
+            } catch (SystemException e) {
+                throw new DatastoreFailureException("Cannot suspend tx.", e);
+            }
+        }
+
+        /**
+         * Resume top tx.
+         */
+        void resume(boolean ignoreException) {
+            final int last = suspended.size() - 1;
+            final javax.transaction.Transaction t = suspended.set(last, null); // cleanup
+            try {
+                tm.resume(t);
+            } catch (Exception e) {
+                if (ignoreException == false)
+                    throw new DatastoreFailureException("Cannot resume tx.", e);
+                else
+                    log.log(Level.SEVERE, "Failed to resume previous tx: " + t, e);
+            }
+        }
+
+        Collection<Transaction> getTransactions() {
+            return Collections.<Transaction>unmodifiableList(new ArrayList<Transaction>(transactions));
         }
     }
 }
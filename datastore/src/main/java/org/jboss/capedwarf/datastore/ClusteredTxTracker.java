@@ -22,12 +22,18 @@
 
 package org.jboss.capedwarf.datastore;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.ConcurrentModificationException;
-import java.util.concurrent.ConcurrentMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
-import com.google.appengine.api.datastore.Transaction;
+import org.infinispan.Cache;
 import org.jboss.capedwarf.common.infinispan.InfinispanUtils;
 import org.jboss.capedwarf.shared.components.AppIdFactory;
 import org.jboss.capedwarf.shared.config.CacheName;
@@ -38,9 +44,9 @@ import org.jboss.capedwarf.shared.config.CacheName;
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
 class ClusteredTxTracker implements TxTracker {
-    private volatile ConcurrentMap<String, String> usedRoots;
+    private volatile Cache<String, String> usedRoots;
 
-    private ConcurrentMap<String, String> getUsedRoots() {
+    private Cache<String, String> getUsedRoots() {
         if (usedRoots == null) {
             usedRoots = InfinispanUtils.getCache(AppIdFactory.getAppId(), CacheName.DIST);
         }
@@ -51,33 +57,73 @@ class ClusteredTxTracker implements TxTracker {
         return "TxT:" + KeyFactory.keyToString(key);
     }
 
-    public void track(Key currentRoot) {
-        final Transaction current = CapedwarfTransaction.currentTransaction();
-        final String key = mask(currentRoot);
-        final String currentId = current.getId();
+    public void track(Collection<Key> roots) {
+        final String currentId = CapedwarfTransaction.currentTransaction().getId();
 
-        final String previousId;
         final javax.transaction.Transaction tx = CapedwarfTransaction.suspendTx();
         try {
-            previousId = getUsedRoots().putIfAbsent(key, currentId);
+            final Cache<String, String> cache = getUsedRoots();
+            // fire all claims at once, so we only pay a single round trip
+            final Map<Key, Future<String>> futures = new LinkedHashMap<>();
+            for (Key root : roots) {
+                futures.put(root, cache.putIfAbsentAsync(mask(root), currentId));
+            }
+
+            final List<String> claimed = new ArrayList<>();
+            Key conflict = null;
+            RuntimeException failure = null;
+            for (Map.Entry<Key, Future<String>> entry : futures.entrySet()) {
+                final String key = mask(entry.getKey());
+                try {
+                    final String previousId = entry.getValue().get();
+                    if (previousId == null || previousId.equals(currentId)) {
+                        claimed.add(key);
+                    } else if (conflict == null) {
+                        conflict = entry.getKey();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = new IllegalStateException(e);
+                } catch (ExecutionException e) {
+                    failure = new IllegalStateException(e.getCause());
+                }
+            }
+
+            if (conflict != null || failure != null) {
+                for (String key : claimed) {
+                    cache.remove(key, currentId);
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                throw new ConcurrentModificationException("Different transactions on same entity group: " + conflict);
+            }
         } finally {
             CapedwarfTransaction.resumeTx(tx);
         }
-
-        if (previousId != null && previousId.equals(currentId) == false) {
-            throw new ConcurrentModificationException("Different transactions on same entity group: " + currentRoot);
-        }
     }
 
-    public void beforeCompletion(Key currentRoot) {
+    public void beforeCompletion(Collection<Key> roots) {
     }
 
-    public void afterCompletion(int status, Key currentRoot) {
-        final String key = mask(currentRoot);
-
+    public void afterCompletion(int status, Collection<Key> roots) {
         final javax.transaction.Transaction tx = CapedwarfTransaction.suspendTx();
         try {
-            getUsedRoots().remove(key);
+            final Cache<String, String> cache = getUsedRoots();
+            final List<Future<String>> futures = new ArrayList<>();
+            for (Key root : roots) {
+                futures.add(cache.removeAsync(mask(root)));
+            }
+            // wait for release, so the same groups can be used right away
+            for (Future<String> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
         } finally {
             CapedwarfTransaction.resumeTx(tx);
         }
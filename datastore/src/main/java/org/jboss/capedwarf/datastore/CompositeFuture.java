@@ -0,0 +1,111 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.datastore;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Future composed of non-blocking cache futures.
+ * No extra thread is used, the result is composed by the first caller of get, once all parts are done.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+abstract class CompositeFuture<T> implements Future<T> {
+    private final List<? extends Future<?>> parts;
+
+    private boolean composed;
+    private T result;
+    private ExecutionException failure;
+
+    CompositeFuture(List<? extends Future<?>> parts) {
+        this.parts = parts;
+    }
+
+    /**
+     * Compose the result, all parts are done at this point.
+     *
+     * @return the result
+     * @throws Exception for any error
+     */
+    protected abstract T compose() throws Exception;
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = false;
+        for (Future<?> part : parts) {
+            cancelled |= part.cancel(mayInterruptIfRunning);
+        }
+        return cancelled;
+    }
+
+    public boolean isCancelled() {
+        for (Future<?> part : parts) {
+            if (part.isCancelled()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isDone() {
+        for (Future<?> part : parts) {
+            if (part.isDone() == false) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public T get() throws InterruptedException, ExecutionException {
+        for (Future<?> part : parts) {
+            part.get();
+        }
+        return getResult();
+    }
+
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Future<?> part : parts) {
+            part.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+        return getResult();
+    }
+
+    private synchronized T getResult() throws ExecutionException {
+        if (composed == false) {
+            try {
+                result = compose();
+            } catch (Exception e) {
+                failure = new ExecutionException(e);
+            }
+            composed = true;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return result;
+    }
+}
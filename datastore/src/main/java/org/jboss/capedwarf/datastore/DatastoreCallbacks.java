@@ -22,11 +22,15 @@
 
 package org.jboss.capedwarf.datastore;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 import com.google.appengine.api.datastore.DeleteContext;
 import com.google.appengine.api.datastore.Entity;
@@ -37,16 +41,39 @@ import com.google.appengine.api.datastore.PreQueryContext;
 import com.google.appengine.api.datastore.PutContext;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Transaction;
-import org.jboss.capedwarf.shared.reflection.MethodInvocation;
-import org.jboss.capedwarf.shared.reflection.ReflectionUtils;
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 /**
  * Datastore callbacks.
  *
+ * Resolved once per config callbacks instance; apps without callbacks get a no-op instance,
+ * others get invokers and context constructors bound up-front.
+ *
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
 final class DatastoreCallbacks {
     private static final Class<?> ctpClass;
+    private static final Class<?> noOpClass;
+
+    private static final MethodHandle ctpProxy;
+    private static final MethodHandle newPutContext;
+    private static final MethodHandle newDeleteContext;
+    private static final MethodHandle newPreGetContext;
+    private static final MethodHandle newPostLoadContext;
+    private static final MethodHandle newPostLoadListContext;
+    private static final MethodHandle newPreQueryContext;
+
+    private static final DatastoreCallbacks NOOP = new DatastoreCallbacks();
+
+    private static final LoadingCache<Object, DatastoreCallbacks> cache = CacheBuilder.newBuilder().weakKeys().build(new CacheLoader<Object, DatastoreCallbacks>() {
+        public DatastoreCallbacks load(Object callbacks) throws Exception {
+            return new DatastoreCallbacks(callbacks);
+        }
+    });
 
     static Class<?> getCurrentTransactionProviderClass() {
         try {
@@ -56,34 +83,128 @@ final class DatastoreCallbacks {
         }
     }
 
+    /**
+     * SDK's no-op callbacks, used when there is no META-INF/datastorecallbacks.xml.
+     *
+     * @return no-op callbacks class or null if this SDK doesn't have it
+     */
+    static Class<?> getNoOpCallbacksClass() {
+        try {
+            return DatastoreCallbacks.class.getClassLoader().loadClass("com.google.appengine.api.datastore.DatastoreCallbacks$NoOpDatastoreCallbacks");
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
     static {
         ctpClass = getCurrentTransactionProviderClass();
+        noOpClass = getNoOpCallbacksClass();
+        try {
+            Class<?> proxyClass = Proxy.getProxyClass(ctpClass.getClassLoader(), ctpClass);
+            ctpProxy = constructor(proxyClass, InvocationHandler.class);
+            newPutContext = constructor(PutContext.class, ctpClass, List.class);
+            newDeleteContext = constructor(DeleteContext.class, ctpClass, List.class);
+            newPreGetContext = constructor(PreGetContext.class, ctpClass, List.class, Map.class);
+            newPostLoadContext = constructor(PostLoadContext.class, ctpClass, Entity.class);
+            newPostLoadListContext = constructor(PostLoadContext.class, ctpClass, List.class);
+            newPreQueryContext = constructor(PreQueryContext.class, ctpClass, Query.class);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
     }
 
-    private final MethodInvocation executePrePutCallbacks;
-    private final MethodInvocation executePostPutCallbacks;
-    private final MethodInvocation executePreDeleteCallbacks;
-    private final MethodInvocation executePostDeleteCallbacks;
-    private final MethodInvocation executePreGetCallbacks;
-    private final MethodInvocation executePostLoadCallbacks;
-    private final MethodInvocation executePreQueryCallbacks;
+    private final boolean enabled;
+    private final MethodHandle executePrePutCallbacks;
+    private final MethodHandle executePostPutCallbacks;
+    private final MethodHandle executePreDeleteCallbacks;
+    private final MethodHandle executePostDeleteCallbacks;
+    private final MethodHandle executePreGetCallbacks;
+    private final MethodHandle executePostLoadCallbacks;
+    private final MethodHandle executePreQueryCallbacks;
+
+    private DatastoreCallbacks() {
+        enabled = false;
+        executePrePutCallbacks = null;
+        executePostPutCallbacks = null;
+        executePreDeleteCallbacks = null;
+        executePostDeleteCallbacks = null;
+        executePreGetCallbacks = null;
+        executePostLoadCallbacks = null;
+        executePreQueryCallbacks = null;
+    }
 
-    DatastoreCallbacks(Object callbacks) {
-        executePrePutCallbacks = ReflectionUtils.cacheTargetMethod(callbacks, "executePrePutCallbacks", PutContext.class);
-        executePostPutCallbacks = ReflectionUtils.cacheTargetMethod(callbacks, "executePostPutCallbacks", PutContext.class);
-        executePreDeleteCallbacks = ReflectionUtils.cacheTargetMethod(callbacks, "executePreDeleteCallbacks", DeleteContext.class);
-        executePostDeleteCallbacks = ReflectionUtils.cacheTargetMethod(callbacks, "executePostDeleteCallbacks", DeleteContext.class);
-        executePreGetCallbacks = ReflectionUtils.cacheTargetMethod(callbacks, "executePreGetCallbacks", PreGetContext.class);
-        executePostLoadCallbacks = ReflectionUtils.cacheTargetMethod(callbacks, "executePostLoadCallbacks", PostLoadContext.class);
-        executePreQueryCallbacks = ReflectionUtils.cacheTargetMethod(callbacks, "executePreQueryCallbacks", PreQueryContext.class);
+    private DatastoreCallbacks(Object callbacks) throws Exception {
+        enabled = true;
+        executePrePutCallbacks = method(callbacks, "executePrePutCallbacks", PutContext.class);
+        executePostPutCallbacks = method(callbacks, "executePostPutCallbacks", PutContext.class);
+        executePreDeleteCallbacks = method(callbacks, "executePreDeleteCallbacks", DeleteContext.class);
+        executePostDeleteCallbacks = method(callbacks, "executePostDeleteCallbacks", DeleteContext.class);
+        executePreGetCallbacks = method(callbacks, "executePreGetCallbacks", PreGetContext.class);
+        executePostLoadCallbacks = method(callbacks, "executePostLoadCallbacks", PostLoadContext.class);
+        executePreQueryCallbacks = method(callbacks, "executePreQueryCallbacks", PreQueryContext.class);
     }
 
-    private static void execute(MethodInvocation mi, Object context) {
-        mi.invoke(context);
+    /**
+     * Get callbacks for config's callbacks instance.
+     *
+     * @param callbacks the config's callbacks
+     * @return datastore callbacks
+     */
+    static DatastoreCallbacks getInstance(Object callbacks) {
+        // no META-INF/datastorecallbacks.xml in the app
+        if (callbacks == null || (noOpClass != null && noOpClass.isInstance(callbacks))) {
+            return NOOP;
+        }
+        try {
+            return cache.get(callbacks);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> clazz, Class<?>... types) throws Exception {
+        Constructor<?> ctor = clazz.getDeclaredConstructor(types);
+        ctor.setAccessible(true);
+        return MethodHandles.lookup().unreflectConstructor(ctor);
+    }
+
+    private static MethodHandle method(Object target, String name, Class<?> type) throws Exception {
+        Method method = findMethod(target.getClass(), name, type);
+        method.setAccessible(true);
+        return MethodHandles.lookup().unreflect(method).bindTo(target);
+    }
+
+    private static Method findMethod(Class<?> clazz, String name, Class<?> type) throws NoSuchMethodException {
+        Class<?> current = clazz;
+        while (current != null) {
+            try {
+                return current.getDeclaredMethod(name, type);
+            } catch (NoSuchMethodException ignored) {
+            }
+            current = current.getSuperclass();
+        }
+        throw new NoSuchMethodException(clazz.getName() + "." + name);
+    }
+
+    private static <T> T newContext(MethodHandle ctor, Object... args) {
+        try {
+            //noinspection unchecked
+            return (T) ctor.invokeWithArguments(args);
+        } catch (Throwable t) {
+            throw Throwables.propagate(t);
+        }
+    }
+
+    private static void execute(MethodHandle mh, Object context) {
+        try {
+            mh.invoke(context);
+        } catch (Throwable t) {
+            throw Throwables.propagate(t);
+        }
     }
 
     private static Object getCurrentTransactionProvider(final CurrentTransactionProvider ctp) {
-        return Proxy.newProxyInstance(ctpClass.getClassLoader(), new Class<?>[]{ctpClass}, new InvocationHandler() {
+        return newContext(ctpProxy, new InvocationHandler() {
             public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
                 final String name = method.getName();
                 if ("toString".equals(name)) {
@@ -99,107 +220,60 @@ final class DatastoreCallbacks {
         });
     }
 
-    private static PutContext createPutContext(final CurrentTransactionProvider ctp, List<Entity> entities) {
-        Class[] types = {ctpClass, List.class};
-        Object[] args = {getCurrentTransactionProvider(ctp), entities};
-        return ReflectionUtils.newInstance(PutContext.class, types, args);
-    }
-
-    private static DeleteContext createDeleteContext(final CurrentTransactionProvider ctp, List<Key> keys) {
-        Class[] types = {ctpClass, List.class};
-        Object[] args = {getCurrentTransactionProvider(ctp), keys};
-        return ReflectionUtils.newInstance(DeleteContext.class, types, args);
-    }
-
-    private static PreGetContext createPreGetContext(final CurrentTransactionProvider ctp, List<Key> keys, Map<Key,Entity> resultMap) {
-        Class[] types = {ctpClass, List.class, Map.class};
-        Object[] args = {getCurrentTransactionProvider(ctp), keys, resultMap};
-        return ReflectionUtils.newInstance(PreGetContext.class, types, args);
-    }
-
-    private static PostLoadContext createPostLoadContext(final CurrentTransactionProvider ctp, Entity result) {
-        Class[] types = {ctpClass, Entity.class};
-        Object[] args = {getCurrentTransactionProvider(ctp), result};
-        return ReflectionUtils.newInstance(PostLoadContext.class, types, args);
-    }
-
-    private static PostLoadContext createPostLoadContext(final CurrentTransactionProvider ctp, List<Entity> results) {
-        Class[] types = {ctpClass, List.class};
-        Object[] args = {getCurrentTransactionProvider(ctp), results};
-        return ReflectionUtils.newInstance(PostLoadContext.class, types, args);
-    }
-
-    private static PreQueryContext createPreQueryContext(final CurrentTransactionProvider ctp, Query query) {
-        Class[] types = {ctpClass, Query.class};
-        Object[] args = {getCurrentTransactionProvider(ctp), query};
-        return ReflectionUtils.newInstance(PreQueryContext.class, types, args);
+    /**
+     * Does the app have any callbacks.
+     *
+     * @return true if there are callbacks, false otherwise
+     */
+    boolean isEnabled() {
+        return enabled;
     }
 
     void executePrePutCallbacks(CurrentTransactionProvider ctp, List<Entity> entities) {
-        final PutContext context = createPutContext(ctp, entities);
-        executePrePutCallbacks(context);
-    }
-
-    private void executePrePutCallbacks(PutContext putContext) {
-        execute(executePrePutCallbacks, putContext);
+        if (enabled) {
+            execute(executePrePutCallbacks, newContext(newPutContext, getCurrentTransactionProvider(ctp), entities));
+        }
     }
 
     void executePostPutCallbacks(CurrentTransactionProvider ctp, List<Entity> entities) {
-        final PutContext context = createPutContext(ctp, entities);
-        executePostPutCallbacks(context);
-    }
-
-    private void executePostPutCallbacks(PutContext putContext) {
-        execute(executePostPutCallbacks, putContext);
+        if (enabled) {
+            execute(executePostPutCallbacks, newContext(newPutContext, getCurrentTransactionProvider(ctp), entities));
+        }
     }
 
     void executePreDeleteCallbacks(CurrentTransactionProvider ctp, List<Key> keys) {
-        final DeleteContext context = createDeleteContext(ctp, keys);
-        executePreDeleteCallbacks(context);
-    }
-
-    private void executePreDeleteCallbacks(DeleteContext deleteContext) {
-        execute(executePreDeleteCallbacks, deleteContext);
+        if (enabled) {
+            execute(executePreDeleteCallbacks, newContext(newDeleteContext, getCurrentTransactionProvider(ctp), keys));
+        }
     }
 
     void executePostDeleteCallbacks(CurrentTransactionProvider ctp, List<Key> keys) {
-        final DeleteContext context = createDeleteContext(ctp, keys);
-        executePostDeleteCallbacks(context);
-    }
-
-    private void executePostDeleteCallbacks(DeleteContext deleteContext) {
-        execute(executePostDeleteCallbacks, deleteContext);
-    }
-
-    void executePreGetCallbacks(CurrentTransactionProvider ctp, List<Key> keys, Map<Key,Entity> resultMap) {
-        final PreGetContext context = createPreGetContext(ctp, keys, resultMap);
-        executePreGetCallbacks(context);
+        if (enabled) {
+            execute(executePostDeleteCallbacks, newContext(newDeleteContext, getCurrentTransactionProvider(ctp), keys));
+        }
     }
 
-    private void executePreGetCallbacks(PreGetContext preGetContext) {
-        execute(executePreGetCallbacks, preGetContext);
+    void executePreGetCallbacks(CurrentTransactionProvider ctp, List<Key> keys, Map<Key, Entity> resultMap) {
+        if (enabled) {
+            execute(executePreGetCallbacks, newContext(newPreGetContext, getCurrentTransactionProvider(ctp), keys, resultMap));
+        }
     }
 
     void executePostLoadCallbacks(CurrentTransactionProvider ctp, Entity entity) {
-        final PostLoadContext context = createPostLoadContext(ctp, entity);
-        executePostLoadCallbacks(context);
+        if (enabled) {
+            execute(executePostLoadCallbacks, newContext(newPostLoadContext, getCurrentTransactionProvider(ctp), entity));
+        }
     }
 
     void executePostLoadCallbacks(CurrentTransactionProvider ctp, List<Entity> entities) {
-        final PostLoadContext context = createPostLoadContext(ctp, entities);
-        executePostLoadCallbacks(context);
-    }
-
-    private void executePostLoadCallbacks(PostLoadContext postLoadContext) {
-        execute(executePostLoadCallbacks, postLoadContext);
+        if (enabled) {
+            execute(executePostLoadCallbacks, newContext(newPostLoadListContext, getCurrentTransactionProvider(ctp), entities));
+        }
     }
 
     void executePreQueryCallbacks(CurrentTransactionProvider ctp, Query query) {
-        final PreQueryContext context = createPreQueryContext(ctp, query);
-        executePreQueryCallbacks(context);
-    }
-
-    private void executePreQueryCallbacks(PreQueryContext preQueryContext) {
-        execute(executePreQueryCallbacks, preQueryContext);
+        if (enabled) {
+            execute(executePreQueryCallbacks, newContext(newPreQueryContext, getCurrentTransactionProvider(ctp), query));
+        }
     }
 }
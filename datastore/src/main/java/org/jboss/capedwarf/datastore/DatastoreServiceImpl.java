@@ -24,10 +24,13 @@ package org.jboss.capedwarf.datastore;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
 
 import javax.transaction.Status;
 import javax.transaction.Synchronization;
@@ -41,19 +44,19 @@ import com.google.appengine.api.datastore.ImplicitTransactionManagementPolicy;
 import com.google.appengine.api.datastore.Index;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyRange;
-import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.api.datastore.TransactionOptions;
 import com.google.common.base.Function;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import org.jboss.capedwarf.common.infinispan.InfinispanUtils;
+import org.jboss.capedwarf.datastore.query.IndexModel;
 import org.jboss.capedwarf.shared.compatibility.Compatibility;
 import org.jboss.capedwarf.shared.components.ComponentRegistry;
 import org.jboss.capedwarf.shared.components.MapKey;
 import org.jboss.capedwarf.shared.components.Slot;
-import org.jboss.capedwarf.shared.config.ApplicationConfiguration;
-import org.jboss.capedwarf.shared.config.IndexesXml;
 import org.jboss.capedwarf.shared.reflection.MethodInvocation;
 import org.jboss.capedwarf.shared.reflection.ReflectionUtils;
 import org.jboss.capedwarf.shared.reflection.TargetInvocation;
@@ -72,8 +75,6 @@ class DatastoreServiceImpl extends BaseDatastoreServiceImpl implements Datastore
     private DatastoreAttributes datastoreAttributes;
     private volatile Map<String, Integer> allocationsMap;
 
-    private Map<Index, Index.IndexState> indexes;
-
     private final boolean async; // do we use async frontend
     private final EntityModifier entityModifier;
 
@@ -134,7 +135,36 @@ class DatastoreServiceImpl extends BaseDatastoreServiceImpl implements Datastore
 
         EntityGroupTracker.trackKey(key);
         Entity entity = store.get(key);
-        return EntityUtils.cloneEntity(entity);
+        return EntityUtils.copyOnWrite(entity);
+    }
+
+    /**
+     * Bulk get, outside of tx.
+     * Keys are grouped by owner node, each group is fetched in a single call.
+     *
+     * @param keys the keys
+     * @param map the results
+     */
+    protected void getEntities(List<Key> keys, Map<Key, Entity> map) {
+        final List<Key> bulk = new ArrayList<Key>(keys.size());
+        for (Key key : keys) {
+            if (Entities.ENTITY_GROUP_METADATA_KIND.equals(key.getKind()) == false) {
+                bulk.add(key);
+            }
+        }
+
+        final Map<Key, Entity> entities = InfinispanUtils.getAll(appId, getCacheName(), store, bulk);
+        for (Key key : keys) {
+            final Entity entity;
+            if (Entities.ENTITY_GROUP_METADATA_KIND.equals(key.getKind())) {
+                entity = getEntityGroupMetadataEntity(key);
+            } else {
+                entity = EntityUtils.copyOnWrite(entities.get(key));
+            }
+            if (entity != null) {
+                map.put(key, entity);
+            }
+        }
     }
 
     public Entity get(Transaction tx, Key key) {
@@ -156,10 +186,15 @@ class DatastoreServiceImpl extends BaseDatastoreServiceImpl implements Datastore
         try {
             final javax.transaction.Transaction transaction = beforeTx(tx);
             try {
-                for (Key key : keys) {
-                    Entity entity = getEntity(key);
-                    if (entity != null) {
-                        map.put(key, entity);
+                if (CapedwarfTransaction.getTx() == null) {
+                    getEntities(keys, map);
+                } else {
+                    // keep per-key tx semantics
+                    for (Key key : keys) {
+                        Entity entity = getEntity(key);
+                        if (entity != null) {
+                            map.put(key, entity);
+                        }
                     }
                 }
             } finally {
@@ -188,6 +223,7 @@ class DatastoreServiceImpl extends BaseDatastoreServiceImpl implements Datastore
                     EntityGroupTracker.trackKey(key);
                     keyToEntityMap.add(new Tuple(key, entityModifier.modify(entity)));
                 }
+                EntityGroupTracker.claimRoots();
                 putInTx(keyToEntityMap, post);
                 return Lists.transform(keyToEntityMap, FN);
             } finally {
@@ -210,9 +246,10 @@ class DatastoreServiceImpl extends BaseDatastoreServiceImpl implements Datastore
     private void assignIdIfNeeded(Entity entity) {
         Key key = entity.getKey();
         if (key.isComplete() == false) {
-            Long id = getRangeStart(key.getParent(), key.getKind(), 1).getStart();
+            SequenceTuple st = SequenceTuple.getSequenceTuple(getAllocationsMap(), key.getKind());
+            Long id = KeyGenerator.allocateId(appId, key.getParent(), st.getSequenceName(), st.getAllocationSize());
             setId.invokeWithTarget(key, id);
-        } else if (isChecked.invokeUnchecked(key) == false) {
+        } else if (key.getId() != 0 && isChecked.invokeUnchecked(key) == false) {
             SequenceTuple st = SequenceTuple.getSequenceTuple(getAllocationsMap(), key.getKind());
             String sequenceName = st.getSequenceName();
             long allocationSize = st.getAllocationSize();
@@ -221,6 +258,94 @@ class DatastoreServiceImpl extends BaseDatastoreServiceImpl implements Datastore
         setChecked.invokeWithTarget(key, true);
     }
 
+    public Future<Entity> getAsync(Key key) {
+        if (Entities.ENTITY_GROUP_METADATA_KIND.equals(key.getKind())) {
+            return Futures.immediateFuture(getEntityGroupMetadataEntity(key));
+        }
+
+        final Future<Entity> future;
+        final javax.transaction.Transaction transaction = beforeTx(null);
+        try {
+            future = store.getAsync(key);
+        } finally {
+            afterTx(transaction);
+        }
+        return new CompositeFuture<Entity>(Collections.singletonList(future)) {
+            protected Entity compose() throws Exception {
+                return EntityUtils.copyOnWrite(future.get());
+            }
+        };
+    }
+
+    public Future<Map<Key, Entity>> getAsync(final List<Key> keys) {
+        final Map<Key, Future<Entity>> futures = new LinkedHashMap<Key, Future<Entity>>();
+        final javax.transaction.Transaction transaction = beforeTx(null);
+        try {
+            for (Key key : keys) {
+                if (Entities.ENTITY_GROUP_METADATA_KIND.equals(key.getKind()) == false && futures.containsKey(key) == false) {
+                    futures.put(key, store.getAsync(key));
+                }
+            }
+        } finally {
+            afterTx(transaction);
+        }
+        return new CompositeFuture<Map<Key, Entity>>(new ArrayList<Future<Entity>>(futures.values())) {
+            protected Map<Key, Entity> compose() throws Exception {
+                final Map<Key, Entity> map = new LinkedHashMap<Key, Entity>();
+                for (Key key : keys) {
+                    final Entity entity;
+                    if (Entities.ENTITY_GROUP_METADATA_KIND.equals(key.getKind())) {
+                        entity = getEntityGroupMetadataEntity(key);
+                    } else {
+                        entity = EntityUtils.copyOnWrite(futures.get(key).get());
+                    }
+                    if (entity != null) {
+                        map.put(key, entity);
+                    }
+                }
+                return map;
+            }
+        };
+    }
+
+    public Future<List<Key>> putAsync(Iterable<Entity> entities) {
+        final List<Tuple> keyToEntityMap = new ArrayList<Tuple>();
+        final Future<?> future;
+        final javax.transaction.Transaction transaction = beforeTx(null);
+        try {
+            for (Entity entity : entities) {
+                checkEntity(entity);
+                assignIdIfNeeded(entity);
+                keyToEntityMap.add(new Tuple(entity.getKey(), entityModifier.modify(entity)));
+            }
+            future = doPutAsync(keyToEntityMap);
+        } finally {
+            afterTx(transaction);
+        }
+        return new CompositeFuture<List<Key>>(Collections.singletonList(future)) {
+            protected List<Key> compose() throws Exception {
+                return new ArrayList<Key>(Lists.transform(keyToEntityMap, FN));
+            }
+        };
+    }
+
+    public Future<Void> deleteAsync(Iterable<Key> keys) {
+        final List<Future<Entity>> futures = new ArrayList<Future<Entity>>();
+        final javax.transaction.Transaction transaction = beforeTx(null);
+        try {
+            for (Key key : keys) {
+                futures.add(ignoreReturnStore.removeAsync(key));
+            }
+        } finally {
+            afterTx(transaction);
+        }
+        return new CompositeFuture<Void>(futures) {
+            protected Void compose() throws Exception {
+                return null;
+            }
+        };
+    }
+
     @Override
     public void delete(Transaction tx, Iterable<Key> keys, Runnable post) {
         try {
@@ -229,6 +354,7 @@ class DatastoreServiceImpl extends BaseDatastoreServiceImpl implements Datastore
                 for (Key key : keys) {
                     EntityGroupTracker.trackKey(key);
                 }
+                EntityGroupTracker.claimRoots();
                 removeInTx(keys, post);
             } finally {
                 afterTx(transaction);
@@ -244,40 +370,8 @@ class DatastoreServiceImpl extends BaseDatastoreServiceImpl implements Datastore
         return CapedwarfTransaction.newTransaction(options);
     }
 
-    public synchronized Map<Index, Index.IndexState> getIndexes() {
-        if (indexes == null) {
-            indexes = new HashMap<Index, Index.IndexState>();
-            long id = 0;
-            IndexesXml indexesXml = ApplicationConfiguration.getInstance().getIndexesXml();
-            for (IndexesXml.Index i : indexesXml.getIndexes().values()) {
-                List<Index.Property> properties = new ArrayList<Index.Property>();
-                for (IndexesXml.Property p : i.getProperties()) {
-                    Index.Property property = ReflectionUtils.newInstance(
-                            Index.Property.class,
-                            new Class[]{String.class, Query.SortDirection.class},
-                            new Object[]{p.getName(), toDirection(p.getDirection())}
-                    );
-                    properties.add(property);
-                }
-                Index index = ReflectionUtils.newInstance(
-                        Index.class,
-                        new Class[]{Long.TYPE, String.class, Boolean.TYPE, List.class},
-                        new Object[]{++id, i.getKind(), i.isAncestor(), properties}
-                );
-                indexes.put(index, Index.IndexState.SERVING);
-            }
-        }
-        return indexes;
-    }
-
-    private static Query.SortDirection toDirection(String direction) {
-        if ("ASC".equalsIgnoreCase(direction)) {
-            return Query.SortDirection.ASCENDING;
-        } else if ("DESC".equalsIgnoreCase(direction)) {
-            return Query.SortDirection.DESCENDING;
-        } else {
-            throw new IllegalArgumentException("No such direction: " + direction);
-        }
+    public Map<Index, Index.IndexState> getIndexes() {
+        return IndexModel.getInstance().getIndexes();
     }
 
     public KeyRange allocateIds(Key parent, String kind, long num) {
@@ -356,15 +450,43 @@ class DatastoreServiceImpl extends BaseDatastoreServiceImpl implements Datastore
     }
 
     private void doPut(List<Tuple> keyToEntityMap, Runnable post) {
-        for (Tuple tuple : keyToEntityMap) {
+        if (keyToEntityMap.size() == 1) {
+            Tuple tuple = keyToEntityMap.get(0);
             putEntityGroupKey(tuple.key);
             ignoreReturnStore.put(tuple.key, tuple.entity);
+        } else {
+            // single version bump per entity group, single put of all entities (and index changes)
+            final Set<Key> entityGroupKeys = new LinkedHashSet<Key>();
+            final Map<Key, Entity> entities = new LinkedHashMap<Key, Entity>();
+            for (Tuple tuple : keyToEntityMap) {
+                entityGroupKeys.add(Entities.createEntityGroupKey(tuple.key));
+                entities.put(tuple.key, tuple.entity);
+            }
+            putEntityGroupKeys(entityGroupKeys);
+            ignoreReturnStore.putAll(entities);
         }
         if (post != null) {
             post.run();
         }
     }
 
+    private Future<?> doPutAsync(List<Tuple> keyToEntityMap) {
+        if (keyToEntityMap.size() == 1) {
+            Tuple tuple = keyToEntityMap.get(0);
+            putEntityGroupKey(tuple.key);
+            return ignoreReturnStore.putAsync(tuple.key, tuple.entity);
+        } else {
+            final Set<Key> entityGroupKeys = new LinkedHashSet<Key>();
+            final Map<Key, Entity> entities = new LinkedHashMap<Key, Entity>();
+            for (Tuple tuple : keyToEntityMap) {
+                entityGroupKeys.add(Entities.createEntityGroupKey(tuple.key));
+                entities.put(tuple.key, tuple.entity);
+            }
+            putEntityGroupKeys(entityGroupKeys);
+            return ignoreReturnStore.putAllAsync(entities);
+        }
+    }
+
     private void doRemove(Iterable<Key> keys, Runnable post) {
         for (Key key : keys) {
             ignoreReturnStore.remove(key);
@@ -378,6 +500,10 @@ class DatastoreServiceImpl extends BaseDatastoreServiceImpl implements Datastore
         return Iterators.filter(store.values().iterator(), SkipMetadataAndStatsEntities.INSTANCE);
     }
 
+    public EntityScan scan(String token) {
+        return new EntityScan(this, store, token);
+    }
+
     /**
      * Testing only!
      */
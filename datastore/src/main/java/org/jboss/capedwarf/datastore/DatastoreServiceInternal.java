@@ -25,6 +25,7 @@ package org.jboss.capedwarf.datastore;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import com.google.appengine.api.datastore.BaseDatastoreService;
 import com.google.appengine.api.datastore.DatastoreAttributes;
@@ -97,6 +98,38 @@ interface DatastoreServiceInternal extends BaseDatastoreService {
      */
     void delete(Transaction tx, Iterable<Key> keys, Runnable post);
 
+    /**
+     * Non-blocking get, outside of tx.
+     *
+     * @param key key
+     * @return entity future
+     */
+    Future<Entity> getAsync(Key key);
+
+    /**
+     * Non-blocking get, outside of tx.
+     *
+     * @param keys keys
+     * @return entities future
+     */
+    Future<Map<Key, Entity>> getAsync(List<Key> keys);
+
+    /**
+     * Non-blocking put, outside of tx.
+     *
+     * @param entities entities
+     * @return keys future
+     */
+    Future<List<Key>> putAsync(Iterable<Entity> entities);
+
+    /**
+     * Non-blocking delete, outside of tx.
+     *
+     * @param keys keys
+     * @return delete future
+     */
+    Future<Void> deleteAsync(Iterable<Key> keys);
+
     /**
      * Begin tx.
      *
@@ -151,6 +184,14 @@ interface DatastoreServiceInternal extends BaseDatastoreService {
      */
     Iterator<Entity> getAllEntitiesIterator();
 
+    /**
+     * Scan all entities, per kind in key order.
+     *
+     * @param token the resume token, can be null
+     * @return entity scan
+     */
+    EntityScan scan(String token);
+
     /**
      * Clear cache.
      */
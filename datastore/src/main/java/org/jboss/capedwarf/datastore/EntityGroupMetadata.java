@@ -24,14 +24,88 @@ package org.jboss.capedwarf.datastore;
 
 import java.io.Serializable;
 
+import org.infinispan.container.entries.CacheEntry;
+import org.infinispan.container.versioning.EntryVersion;
+import org.infinispan.metadata.Metadata;
+import org.jboss.capedwarf.shared.reflection.FieldInvocation;
+import org.jboss.capedwarf.shared.reflection.ReflectionUtils;
+
 /**
+ * Entity group metadata, tracks the entity group version.
+ * The version is bumped on every write to the entity group.
+ * Entries written before the version was tracked here read as version 0 (legacy),
+ * their version is still the Infinispan entry version.
+ *
  * @author <a href="mailto:mluksa@redhat.com">Marko Luksa</a>
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
- *
- * Empty and for now. May need it in the future.
  */
 public class EntityGroupMetadata implements Serializable {
-    static final EntityGroupMetadata SINGLETON = new EntityGroupMetadata();
+    static final EntityGroupMetadata INITIAL = new EntityGroupMetadata(1L);
+
+    private static final String CLUSTERED_VERSION_CLASS = "org.infinispan.container.versioning.SimpleClusteredVersion";
+    private static final FieldInvocation<Long> CLUSTERED_VERSION = ReflectionUtils.cacheField(CLUSTERED_VERSION_CLASS, "version");
 
     private static final long serialVersionUID = 1L;
+
+    private final long version;
+
+    private EntityGroupMetadata(long version) {
+        this.version = version;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    boolean isLegacy() {
+        return version == 0;
+    }
+
+    /**
+     * Version of legacy entry, as previously issued from the Infinispan entry version.
+     *
+     * @param entry the cache entry
+     * @return legacy version, 0 if there is none
+     */
+    static long legacyVersion(CacheEntry entry) {
+        final Metadata metadata = (entry != null) ? entry.getMetadata() : null;
+        final EntryVersion ev = (metadata != null) ? metadata.version() : null;
+        if (ev != null && CLUSTERED_VERSION_CLASS.equals(ev.getClass().getName())) {
+            return CLUSTERED_VERSION.invoke(ev);
+        }
+        return 0;
+    }
+
+    /**
+     * Upgrade legacy entry, next version is above any version issued for it so far.
+     *
+     * @param entry the legacy cache entry
+     * @return metadata with bumped version
+     */
+    static EntityGroupMetadata upgrade(CacheEntry entry) {
+        return new EntityGroupMetadata(legacyVersion(entry)).next();
+    }
+
+    /**
+     * Next version.
+     *
+     * @return metadata with bumped version
+     */
+    EntityGroupMetadata next() {
+        return new EntityGroupMetadata(version + 1);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        EntityGroupMetadata that = (EntityGroupMetadata) o;
+        return version == that.version;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (version ^ (version >>> 32));
+    }
 }
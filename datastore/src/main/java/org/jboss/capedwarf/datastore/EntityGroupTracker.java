@@ -22,7 +22,12 @@
 
 package org.jboss.capedwarf.datastore;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import javax.transaction.RollbackException;
@@ -36,6 +41,11 @@ import org.jboss.capedwarf.shared.compatibility.Compatibility;
 /**
  * Track entity groups.
  *
+ * Roots are only checked locally while the tx runs, reads never talk to the cluster;
+ * all roots seen so far are claimed cluster wide in a single batch
+ * on the first put or delete, and again at commit for the ones seen since.
+ * Roots are memoized per key (and its ancestors) for the life of the tx.
+ *
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
 class EntityGroupTracker implements Synchronization {
@@ -45,6 +55,12 @@ class EntityGroupTracker implements Synchronization {
     private final Transaction tx;
     private final TxChecker checker;
     private final Map<Key, Key> keys;
+    // key (or ancestor) to its root
+    private final Map<Key, Key> roots = new ConcurrentHashMap<>();
+    // roots seen, but not yet claimed
+    private final Set<Key> pending = new LinkedHashSet<>();
+    // roots claimed with TxTracker
+    private final List<Key> claimed = new ArrayList<>();
 
     private EntityGroupTracker(Transaction tx) {
         this.tx = tx;
@@ -72,6 +88,11 @@ class EntityGroupTracker implements Synchronization {
         return egt;
     }
 
+    /**
+     * Check key's root, claim it later with claimRoots.
+     *
+     * @param key the key
+     */
     static void trackKey(Key key) {
         final EntityGroupTracker egt = registerTracker(key);
         if (egt != null) {
@@ -79,6 +100,21 @@ class EntityGroupTracker implements Synchronization {
         }
     }
 
+    /**
+     * Claim all pending roots of current tx.
+     * Should be invoked after checking the keys of a batch, before the write, and at commit.
+     */
+    static void claimRoots() {
+        final Transaction transaction = CapedwarfTransaction.getTx();
+        if (ignoreTracking(transaction))
+            return;
+
+        final EntityGroupTracker egt = trackers.get(transaction);
+        if (egt != null) {
+            egt.claim();
+        }
+    }
+
     private static boolean ignoreTracking() {
         Compatibility instance = Compatibility.getInstance();
         return instance.isEnabled(Compatibility.Feature.DISABLE_ENTITY_GROUPS);
@@ -103,23 +139,47 @@ class EntityGroupTracker implements Synchronization {
         if (checker.isInvalid(currentRoot, key)) {
             throw new IllegalArgumentException("can't operate on multiple entity groups in a single transaction. found: " + keys.keySet());
         }
+
+        synchronized (pending) {
+            if (claimed.contains(currentRoot) == false) {
+                pending.add(currentRoot);
+            }
+        }
+    }
+
+    private void claim() {
+        synchronized (pending) {
+            if (pending.isEmpty() == false) {
+                final Collection<Key> roots = new ArrayList<>(pending);
+                TxTrackerUtil.track(roots);
+                // only once all are claimed, see TxTracker::track
+                claimed.addAll(roots);
+                pending.clear();
+            }
+        }
     }
 
-    private static Key getRoot(Key key) {
-        Key currentRoot = key;
-        while (currentRoot.getParent() != null) {
-            currentRoot = currentRoot.getParent();
+    private Key getRoot(Key key) {
+        Key root = roots.get(key);
+        if (root == null) {
+            final Key parent = key.getParent();
+            root = (parent != null) ? getRoot(parent) : key;
+            roots.put(key, root);
         }
-        return currentRoot;
+        return root;
     }
 
     public void beforeCompletion() {
-        checker.beforeCompletion();
+        // commit claims them, this only covers other ways of completing the tx
+        claim();
+        TxTrackerUtil.beforeCompletion(claimed);
     }
 
     public void afterCompletion(int status) {
         try {
-            checker.afterCompletion(status);
+            if (claimed.isEmpty() == false) {
+                TxTrackerUtil.afterCompletion(status, claimed);
+            }
         } finally {
             trackers.remove(tx);
         }
@@ -0,0 +1,80 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.datastore;
+
+import java.io.Serializable;
+import java.util.Set;
+
+import com.google.appengine.api.datastore.Key;
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.infinispan.distexec.DistributedCallable;
+
+/**
+ * Entity group version bump task.
+ * Executed on the primary owner, bumps all its input entity groups in one go.
+ * Only used outside of a transaction, each bump is then its own conditional write.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class EntityGroupVersionTask implements DistributedCallable<Key, EntityGroupMetadata, Void>, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private transient AdvancedCache<Key, EntityGroupMetadata> cache;
+    private transient Set<Key> inputKeys;
+
+    public void setEnvironment(Cache<Key, EntityGroupMetadata> cache, Set<Key> inputKeys) {
+        this.cache = cache.getAdvancedCache();
+        this.inputKeys = inputKeys;
+    }
+
+    public Void call() throws Exception {
+        for (Key key : inputKeys) {
+            bump(cache, key);
+        }
+        return null;
+    }
+
+    /**
+     * Bump entity group version.
+     * Within a transaction the write is part of it, covered by the versions cache's write-skew check.
+     *
+     * @param cache the versions cache
+     * @param key the entity group key
+     */
+    static void bump(AdvancedCache<Key, EntityGroupMetadata> cache, Key key) {
+        while (true) {
+            final EntityGroupMetadata current = cache.get(key);
+            if (current == null) {
+                if (cache.putIfAbsent(key, EntityGroupMetadata.INITIAL) == null) {
+                    return;
+                }
+            } else {
+                final EntityGroupMetadata next = current.isLegacy() ? EntityGroupMetadata.upgrade(cache.getCacheEntry(key)) : current.next();
+                if (cache.replace(key, current, next)) {
+                    return;
+                }
+            }
+        }
+    }
+}
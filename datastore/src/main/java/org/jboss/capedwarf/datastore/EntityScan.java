@@ -0,0 +1,261 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.datastore;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.Entities;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import org.infinispan.Cache;
+import org.infinispan.distexec.mapreduce.MapReduceTask;
+import org.jboss.capedwarf.common.async.Wrappers;
+import org.jboss.capedwarf.shared.compatibility.Compatibility;
+
+/**
+ * Full datastore scan, e.g. for export / backup.
+ *
+ * (namespace, kind) groups are read from __namespace__ and __kind__ metadata
+ * (or collected with a cluster wide map/reduce, if metadata is disabled),
+ * then each group is streamed in key order, in chunks, off the index.
+ * The first chunks of the next few groups are fetched in parallel,
+ * within a group only one chunk is read ahead, so a slow consumer holds back the scan.
+ *
+ * The scan can be resumed from any token, see {@link #getToken()}.
+ * Close the scan if it is not read to the end, so pending reads are cancelled.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public final class EntityScan implements Iterator<Entity>, Closeable {
+    private static final int CHUNK_SIZE = Integer.parseInt(System.getProperty("jboss.capedwarf.datastore.scanChunkSize", "500"));
+    private static final int PARALLELISM = Integer.parseInt(System.getProperty("jboss.capedwarf.datastore.scanParallelism", "4"));
+    private static final char SEPARATOR = '/'; // cannot be part of namespace
+
+    private final BaseDatastoreServiceImpl datastore;
+    private final Iterator<String> groups;
+    // first chunks of the next groups
+    private final Deque<Head> heads = new ArrayDeque<>();
+
+    private Key resume;
+    private String group;
+    private Future<List<Entity>> next;
+    private Iterator<Entity> chunk = Collections.emptyIterator();
+    private Key last;
+    private boolean closed;
+
+    EntityScan(BaseDatastoreServiceImpl datastore, Cache<Key, Entity> store, String token) {
+        this.datastore = datastore;
+
+        final List<String> sorted = getGroups(store);
+        Collections.sort(sorted);
+
+        if (token != null) {
+            final Key start = KeyFactory.stringToKey(token);
+            final String startGroup = toGroup(start.getNamespace(), start.getKind());
+            int index = 0;
+            while (index < sorted.size() && sorted.get(index).compareTo(startGroup) < 0) {
+                index++;
+            }
+            if (index < sorted.size() && sorted.get(index).equals(startGroup)) {
+                resume = start;
+            }
+            groups = sorted.subList(index, sorted.size()).iterator();
+            last = start;
+        } else {
+            groups = sorted.iterator();
+        }
+    }
+
+    static String toGroup(String namespace, String kind) {
+        return namespace + SEPARATOR + kind;
+    }
+
+    private List<String> getGroups(Cache<Key, Entity> store) {
+        if (Compatibility.getInstance().isEnabled(Compatibility.Feature.DISABLE_METADATA)) {
+            final MapReduceTask<Key, Entity, String, Long> task = new MapReduceTask<>(store);
+            final Map<String, Long> counts = task.mappedWith(new KindsMapper()).reducedWith(new KindsReducer()).execute();
+            return new ArrayList<>(counts.keySet());
+        }
+
+        // metadata is never removed, empty groups just yield nothing
+        final List<String> result = new ArrayList<>();
+        final String previous = NamespaceManager.get();
+        try {
+            NamespaceManager.set("");
+            final List<String> namespaces = new ArrayList<>();
+            for (Entity entity : datastore.prepare(null, new Query(Entities.NAMESPACE_METADATA_KIND).setKeysOnly()).asIterable()) {
+                namespaces.add(Entities.getNamespaceFromNamespaceKey(entity.getKey()));
+            }
+            for (String namespace : namespaces) {
+                NamespaceManager.set(namespace);
+                for (Entity entity : datastore.prepare(null, new Query(Entities.KIND_METADATA_KIND).setKeysOnly()).asIterable()) {
+                    final String kind = entity.getKey().getName();
+                    if (KindUtils.isSpecial(kind) == false) {
+                        result.add(toGroup(namespace, kind));
+                    }
+                }
+            }
+        } finally {
+            NamespaceManager.set(previous);
+        }
+        return result;
+    }
+
+    /**
+     * Resume token, null if nothing was returned yet.
+     * Pass it to a new scan to continue after the last returned entity.
+     *
+     * @return the token
+     */
+    public String getToken() {
+        return (last != null) ? KeyFactory.keyToString(last) : null;
+    }
+
+    public boolean hasNext() {
+        while (chunk.hasNext() == false) {
+            if (closed) {
+                return false;
+            }
+            if (next == null) {
+                fill();
+                final Head head = heads.poll();
+                if (head == null) {
+                    return false;
+                }
+                group = head.group;
+                next = head.first;
+            }
+
+            final List<Entity> entities = get(next);
+            if (entities.size() == CHUNK_SIZE) {
+                next = fetch(group, entities.get(entities.size() - 1).getKey()); // read ahead
+            } else {
+                next = null;
+            }
+            chunk = entities.iterator();
+        }
+        return true;
+    }
+
+    public Entity next() {
+        if (hasNext() == false) {
+            throw new NoSuchElementException();
+        }
+        final Entity entity = chunk.next();
+        last = entity.getKey();
+        return entity;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("Remove is not supported.");
+    }
+
+    /**
+     * Cancel pending reads.
+     */
+    public void close() {
+        closed = true;
+        chunk = Collections.emptyIterator();
+        if (next != null) {
+            next.cancel(true);
+            next = null;
+        }
+        for (Head head : heads) {
+            head.first.cancel(true);
+        }
+        heads.clear();
+    }
+
+    private void fill() {
+        while (heads.size() < PARALLELISM && groups.hasNext()) {
+            final String g = groups.next();
+            heads.add(new Head(g, fetch(g, resume)));
+            resume = null; // only the first group is resumed
+        }
+    }
+
+    private Future<List<Entity>> fetch(String group, Key after) {
+        final int p = group.indexOf(SEPARATOR);
+        final String namespace = group.substring(0, p);
+        final String kind = group.substring(p + 1);
+
+        final Query query;
+        final String previous = NamespaceManager.get();
+        NamespaceManager.set(namespace);
+        try {
+            query = new Query(kind);
+            if (after != null) {
+                query.setFilter(new Query.FilterPredicate(Entity.KEY_RESERVED_PROPERTY, Query.FilterOperator.GREATER_THAN, after));
+            }
+            query.addSort(Entity.KEY_RESERVED_PROPERTY);
+        } finally {
+            NamespaceManager.set(previous);
+        }
+
+        return Wrappers.future(new Callable<List<Entity>>() {
+            public List<Entity> call() throws Exception {
+                return new ArrayList<>(datastore.prepare(null, query).asList(FetchOptions.Builder.withLimit(CHUNK_SIZE)));
+            }
+        });
+    }
+
+    private static List<Entity> get(Future<List<Entity>> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private static class Head {
+        private final String group;
+        private final Future<List<Entity>> first;
+
+        private Head(String group, Future<List<Entity>> first) {
+            this.group = group;
+            this.first = first;
+        }
+    }
+}
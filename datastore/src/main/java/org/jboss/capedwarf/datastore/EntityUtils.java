@@ -23,12 +23,16 @@
 package org.jboss.capedwarf.datastore;
 
 import com.google.appengine.api.datastore.Entity;
+import org.jboss.capedwarf.shared.reflection.ReflectionUtils;
+import org.jboss.capedwarf.shared.reflection.TargetInvocation;
 
 /**
  * @author <a href="mailto:mluksa@redhat.com">Marko Luksa</a>
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
 public class EntityUtils {
+    private static final TargetInvocation<Entity> copyOnWrite = ReflectionUtils.cacheInvocation(Entity.class, "copyOnWrite");
+
     /**
      * Clone entity.
      *
@@ -45,4 +49,23 @@ public class EntityUtils {
         DatastoreServiceImpl.applyKeyChecked(entity, clone);
         return clone;
     }
+
+    /**
+     * Copy-on-write view of entity.
+     * The view shares the original's properties until it is modified,
+     * so the original must not be modified in place -- e.g. entity held by the store.
+     *
+     * @param entity the original entity
+     * @return copy-on-write view
+     */
+    public static Entity copyOnWrite(Entity entity) {
+        if (entity == null) {
+            return null;
+        }
+
+        Entity view = copyOnWrite.invokeUnchecked(entity);
+        // apply checked key hack
+        DatastoreServiceImpl.applyKeyChecked(entity, view);
+        return view;
+    }
 }
@@ -34,5 +34,6 @@ import com.google.appengine.api.datastore.Entity;
 public interface ExposedDatastoreService extends DatastoreService {
     DatastoreServiceConfig getDatastoreServiceConfig();
     Iterator<Entity> getAllEntitiesIterator();
+    EntityScan scan(String token);
     void clearCache();
 }
@@ -0,0 +1,179 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.datastore;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+
+import com.google.appengine.api.datastore.Key;
+import org.jboss.capedwarf.common.async.Wrappers;
+import org.jboss.capedwarf.shared.util.Utils;
+
+/**
+ * Per node id allocator.
+ * Leases blocks of ids per sequence and hands them out from memory,
+ * the next block is leased async before the current one runs out.
+ *
+ * Once a sequence gets an explicit id inside an outstanding block, every node drops its blocks
+ * of the sequence and leases new ones above the id on next allocation.
+ * Unused ids are never given back, GAE allows gaps.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public final class IdAllocator {
+    private static final long BLOCK_SIZE = Long.parseLong(System.getProperty("jboss.capedwarf.datastore.idBlockSize", "100"));
+    private static final long LOW_WATERMARK = BLOCK_SIZE / 5;
+
+    private static final ConcurrentMap<String, IdAllocator> allocators = new ConcurrentHashMap<>();
+
+    private final String appId;
+    private final ConcurrentMap<String, Sequence> sequences = new ConcurrentHashMap<>();
+
+    private IdAllocator(String appId) {
+        this.appId = appId;
+    }
+
+    static IdAllocator getInstance(String appId) {
+        IdAllocator allocator = allocators.get(appId);
+        if (allocator == null) {
+            allocator = new IdAllocator(appId);
+            IdAllocator previous = allocators.putIfAbsent(appId, allocator);
+            if (previous != null) {
+                allocator = previous;
+            }
+        }
+        return allocator;
+    }
+
+    /**
+     * Forget leased blocks, on app undeploy.
+     * Unused ids are simply skipped.
+     *
+     * @param appId the app id
+     */
+    public static void release(String appId) {
+        final IdAllocator allocator = allocators.remove(appId);
+        if (allocator != null) {
+            for (Sequence sequence : allocator.sequences.values()) {
+                sequence.drop();
+            }
+        }
+    }
+
+    /**
+     * Allocate range.
+     *
+     * @param parent the parent
+     * @param sequenceName the sequence name
+     * @param num the size of range
+     * @return range start
+     */
+    long allocate(Key parent, String sequenceName, long num) {
+        if (BLOCK_SIZE > 1 && num <= LOW_WATERMARK) {
+            final Long start = getSequence(sequenceName).allocate(num);
+            if (start != null) {
+                return start;
+            }
+        }
+        return KeyGenerator.generateRange(appId, parent, sequenceName, num);
+    }
+
+    /**
+     * Drop leased blocks of the sequence on this node, the next allocation leases a new one.
+     *
+     * @param sequenceName the sequence name
+     */
+    void drop(String sequenceName) {
+        getSequence(sequenceName).drop();
+    }
+
+    private Sequence getSequence(String sequenceName) {
+        Sequence sequence = sequences.get(sequenceName);
+        if (sequence == null) {
+            sequence = new Sequence(sequenceName);
+            Sequence previous = sequences.putIfAbsent(sequenceName, sequence);
+            if (previous != null) {
+                sequence = previous;
+            }
+        }
+        return sequence;
+    }
+
+    private class Sequence {
+        private final String sequenceName;
+        // current block: [next, end)
+        private long next;
+        private long end;
+        private Future<Long> prefetch;
+        // the environment doesn't lease
+        private boolean unsupported;
+
+        private Sequence(String sequenceName) {
+            this.sequenceName = sequenceName;
+        }
+
+        private Long lease() {
+            return KeyGenerator.leaseRange(appId, sequenceName, BLOCK_SIZE);
+        }
+
+        synchronized Long allocate(long num) {
+            if (unsupported) {
+                return null;
+            }
+
+            if (end - next < num) {
+                final Future<Long> current = prefetch;
+                prefetch = null;
+                final Long start = (current != null) ? Utils.quietGet(current) : lease();
+                if (start == null) {
+                    unsupported = true;
+                    return null;
+                }
+                next = start;
+                end = next + BLOCK_SIZE;
+            }
+
+            final long start = next;
+            next += num;
+
+            if (prefetch == null && end - next <= LOW_WATERMARK) {
+                prefetch = Wrappers.future(new Callable<Long>() {
+                    public Long call() throws Exception {
+                        return lease();
+                    }
+                });
+            }
+            return start;
+        }
+
+        synchronized void drop() {
+            next = end;
+            if (prefetch != null) {
+                prefetch.cancel(false);
+                prefetch = null;
+            }
+        }
+    }
+}
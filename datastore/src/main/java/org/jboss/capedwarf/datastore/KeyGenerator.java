@@ -22,10 +22,14 @@
 
 package org.jboss.capedwarf.datastore;
 
+import java.util.concurrent.Future;
+
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyRange;
+import org.jboss.capedwarf.common.infinispan.InfinispanUtils;
 import org.jboss.capedwarf.environment.EnvironmentFactory;
+import org.jboss.capedwarf.shared.util.Utils;
 
 /**
  * Entity key id generator.
@@ -41,7 +45,21 @@ class KeyGenerator {
         return EnvironmentFactory.getEnvironment().checkRange(appId, keyRange, seqName);
     }
 
+    static Long allocateId(String appId, Key parent, String kind, long num) {
+        return IdAllocator.getInstance(appId).allocate(parent, kind, num);
+    }
+
+    static Long leaseRange(String appId, String sequenceName, long num) {
+        return EnvironmentFactory.getEnvironment().leaseRange(appId, sequenceName, num);
+    }
+
     static void updateRange(String appId, long id, String sequenceName, long allocationSize) {
-        EnvironmentFactory.getEnvironment().updateRange(appId, id, sequenceName, allocationSize);
+        if (EnvironmentFactory.getEnvironment().updateRange(appId, id, sequenceName, allocationSize)) {
+            // id is in some node's leased block, wait for all nodes to drop their blocks
+            IdAllocator.getInstance(appId).drop(sequenceName);
+            for (Future<Void> future : InfinispanUtils.everywhere(appId, new IdLeaseDrop(appId, sequenceName))) {
+                Utils.quietGet(future);
+            }
+        }
     }
 }
@@ -38,19 +38,10 @@ class SingleTxChecker implements TxChecker {
         if (invalid == false) {
             if (root == null) {
                 root = currentRoot;
-                TxTrackerUtil.track(currentRoot);
             } else if (root.equals(currentRoot) == false) {
                 invalid = true;
             }
         }
         return invalid;
     }
-
-    public void beforeCompletion() {
-        TxTrackerUtil.beforeCompletion(root);
-    }
-
-    public void afterCompletion(int status) {
-        TxTrackerUtil.afterCompletion(status, root);
-    }
 }
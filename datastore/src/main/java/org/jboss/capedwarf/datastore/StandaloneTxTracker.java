@@ -22,7 +22,10 @@
 
 package org.jboss.capedwarf.datastore;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.ConcurrentModificationException;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -38,19 +41,28 @@ import com.google.appengine.api.datastore.Key;
 class StandaloneTxTracker implements TxTracker {
     private final ConcurrentMap<Key, Transaction> usedRoots = new ConcurrentHashMap<>();
 
-    public void track(Key currentRoot) {
+    public void track(Collection<Key> roots) {
         final Transaction current = CapedwarfTransaction.getTx();
-        final Transaction previous = usedRoots.putIfAbsent(currentRoot, current);
-        if (previous != null && current.equals(previous) == false) {
-            throw new ConcurrentModificationException("Different transactions on same entity group: " + currentRoot);
+        final List<Key> claimed = new ArrayList<>();
+        for (Key root : roots) {
+            final Transaction previous = usedRoots.putIfAbsent(root, current);
+            if (previous != null && current.equals(previous) == false) {
+                for (Key key : claimed) {
+                    usedRoots.remove(key, current);
+                }
+                throw new ConcurrentModificationException("Different transactions on same entity group: " + root);
+            }
+            claimed.add(root);
         }
     }
 
-    public void beforeCompletion(Key currentRoot) {
+    public void beforeCompletion(Collection<Key> roots) {
     }
 
-    public void afterCompletion(int status, Key currentRoot) {
-        usedRoots.remove(currentRoot);
+    public void afterCompletion(int status, Collection<Key> roots) {
+        for (Key root : roots) {
+            usedRoots.remove(root);
+        }
     }
 
     public void dump() {
@@ -22,8 +22,6 @@
 
 package org.jboss.capedwarf.datastore;
 
-import javax.transaction.Synchronization;
-
 import com.google.appengine.api.datastore.Key;
 
 /**
@@ -31,7 +29,7 @@ import com.google.appengine.api.datastore.Key;
  *
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
-interface TxChecker extends Synchronization {
+interface TxChecker {
     /**
      * Is current checker invalid.
      *
@@ -22,82 +22,74 @@
 
 package org.jboss.capedwarf.datastore;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
-
-import javax.transaction.Transaction;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Track tx tasks.
  * Cannot commit or rollback until they are finished.
  *
+ * One instance per tx, see CapedwarfTransaction.
+ * Each running task is a registered party; phase advances once they are all done.
+ *
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
-@SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter")
 final class TxTasks {
-    private static Map<Transaction, AtomicInteger> counters = new ConcurrentHashMap<Transaction, AtomicInteger>();
+    private final Phaser phaser = new Phaser() {
+        protected boolean onAdvance(int phase, int registeredParties) {
+            return false; // never terminate, tasks can come and go
+        }
+    };
 
     static void begin() {
-        begin(CapedwarfTransaction.getTx());
-    }
-
-    static void begin(Transaction tx) {
+        final CapedwarfTransaction tx = CapedwarfTransaction.currentTransaction();
         if (tx == null) return;
 
-        AtomicInteger ai = counters.get(tx);
-        if (ai == null) {
-            ai = new AtomicInteger(0);
-            counters.put(tx, ai);
-        }
-        ai.incrementAndGet();
+        tx.getTasks().phaser.register();
     }
 
     static void end() {
-        end(CapedwarfTransaction.getTx());
-    }
-
-    static void end(Transaction tx) {
+        final CapedwarfTransaction tx = CapedwarfTransaction.currentTransaction();
         if (tx == null) return;
 
-        final AtomicInteger ai = counters.get(tx);
-        if (ai == null) {
-            throw new IllegalStateException("No counter?!");
-        }
-        if (ai.decrementAndGet() == 0) {
-            counters.remove(tx);
-            synchronized (ai) {
-                ai.notifyAll();
-            }
+        try {
+            tx.getTasks().phaser.arriveAndDeregister();
+        } catch (IllegalStateException e) {
+            throw new IllegalStateException("No counter?!", e);
         }
     }
 
-    static boolean isDone(Transaction tx) {
-        if (tx == null) return true;
-
-        final AtomicInteger ai = counters.get(tx);
-        return (ai == null || ai.get() <= 0);
+    boolean isDone() {
+        return (phaser.getRegisteredParties() == 0);
     }
 
-    static void finish(Transaction tx) {
-        if (tx == null) return;
-
-        final AtomicInteger ai = counters.get(tx);
-        if (ai != null && ai.get() > 0) {
-            synchronized (ai) {
-                try {
-                    ai.wait(60 * 1000L); // global limit
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    throw new RuntimeException(e);
-                }
+    /**
+     * Wait for all current tasks to finish.
+     *
+     * @param timeout the timeout
+     * @param unit the timeout unit
+     * @return true if all done, false otherwise
+     */
+    boolean await(long timeout, TimeUnit unit) {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            final int phase = phaser.getPhase();
+            if (isDone()) {
+                return true;
+            }
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                phaser.awaitAdvanceInterruptibly(phase, remaining, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (TimeoutException e) {
+                return isDone();
             }
         }
     }
-
-    static void clear(Transaction tx) {
-        if (tx == null) return;
-
-        counters.remove(tx);
-    }
 }
@@ -22,6 +22,8 @@
 
 package org.jboss.capedwarf.datastore;
 
+import java.util.Collection;
+
 import com.google.appengine.api.datastore.Key;
 
 /**
@@ -30,11 +32,17 @@ import com.google.appengine.api.datastore.Key;
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
 interface TxTracker {
-    void track(Key currentRoot);
+    /**
+     * Claim all roots for current tx, in a single batch.
+     * Either all roots are claimed, or none is (and CME is thrown).
+     *
+     * @param roots the roots
+     */
+    void track(Collection<Key> roots);
 
-    void beforeCompletion(Key currentRoot);
+    void beforeCompletion(Collection<Key> roots);
 
-    void afterCompletion(int status, Key currentRoot);
+    void afterCompletion(int status, Collection<Key> roots);
 
     void dump();
 }
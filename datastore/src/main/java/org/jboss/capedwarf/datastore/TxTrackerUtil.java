@@ -22,6 +22,8 @@
 
 package org.jboss.capedwarf.datastore;
 
+import java.util.Collection;
+
 import com.google.appengine.api.datastore.Key;
 import org.jboss.capedwarf.shared.compatibility.Compatibility;
 import org.jboss.capedwarf.shared.components.ComponentRegistry;
@@ -40,16 +42,16 @@ class TxTrackerUtil {
         return (tracker != null) ? tracker : lazy;
     }
 
-    static void track(Key currentRoot) {
-        getTracker().track(currentRoot);
+    static void track(Collection<Key> roots) {
+        getTracker().track(roots);
     }
 
-    static void beforeCompletion(Key currentRoot) {
-        getTracker().beforeCompletion(currentRoot);
+    static void beforeCompletion(Collection<Key> roots) {
+        getTracker().beforeCompletion(roots);
     }
 
-    static void afterCompletion(int status, Key currentRoot) {
-        getTracker().afterCompletion(status, currentRoot);
+    static void afterCompletion(int status, Collection<Key> roots) {
+        getTracker().afterCompletion(status, roots);
     }
 
     static void dump() {
@@ -74,16 +76,16 @@ class TxTrackerUtil {
             return delegate;
         }
 
-        public void track(Key currentRoot) {
-            getDelegate().track(currentRoot);
+        public void track(Collection<Key> roots) {
+            getDelegate().track(roots);
         }
 
-        public void beforeCompletion(Key currentRoot) {
-            getDelegate().beforeCompletion(currentRoot);
+        public void beforeCompletion(Collection<Key> roots) {
+            getDelegate().beforeCompletion(roots);
         }
 
-        public void afterCompletion(int status, Key currentRoot) {
-            getDelegate().afterCompletion(status, currentRoot);
+        public void afterCompletion(int status, Collection<Key> roots) {
+            getDelegate().afterCompletion(status, roots);
         }
 
         public void dump() {
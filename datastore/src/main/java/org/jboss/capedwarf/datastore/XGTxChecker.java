@@ -39,25 +39,8 @@ class XGTxChecker implements TxChecker {
     private Set<Key> roots = new HashSet<Key>();
 
     public boolean isInvalid(Key currentRoot, Key key) {
-        TxTrackerUtil.track(currentRoot);
-
         roots.add(currentRoot);
 
         return (roots.size() > MAX_ENTITY_GROUPS);
     }
-
-    // if it was added into roots, it passed used check
-    // so we can safely remove it
-
-    public void beforeCompletion() {
-        for (Key root : roots) {
-            TxTrackerUtil.beforeCompletion(root);
-        }
-    }
-
-    public void afterCompletion(int status) {
-        for (Key root : roots) {
-            TxTrackerUtil.afterCompletion(status, root);
-        }
-    }
 }
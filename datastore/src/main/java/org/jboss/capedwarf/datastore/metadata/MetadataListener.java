@@ -22,12 +22,19 @@
 
 package org.jboss.capedwarf.datastore.metadata;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.infinispan.notifications.Listener;
 import org.infinispan.notifications.cachelistener.event.CacheEntryRemovedEvent;
+import org.jboss.capedwarf.datastore.PropertyUtils;
 import org.jboss.capedwarf.datastore.notifications.AbstractPutRemoveCacheListener;
 import org.jboss.capedwarf.datastore.notifications.CacheListenerHandle;
 
@@ -39,15 +46,26 @@ import org.jboss.capedwarf.datastore.notifications.CacheListenerHandle;
 public class MetadataListener extends AbstractPutRemoveCacheListener implements CacheListenerHandle {
     private static final Logger log = Logger.getLogger(MetadataListener.class.getName());
 
+    private static final long KNOWN_SIZE = Long.getLong("jboss.capedwarf.datastore.metadataCacheSize", 10000L);
+
+    /**
+     * Already recorded namespaces, kinds and properties.
+     * Metadata entities are never removed, so this is only a hint in front of the datastore,
+     * which stays the cluster-wide record -- tasks re-check it before writing.
+     */
+    private final Cache<List<String>, Boolean> known = CacheBuilder.newBuilder().maximumSize(KNOWN_SIZE).build();
+
     public Object createListener(ClassLoader cl) {
         return new MetadataListener();
     }
 
-    protected void executeCallable(MetadataTask task) {
+    protected boolean executeCallable(MetadataTask task) {
         try {
             task.call();
+            return true;
         } catch (Throwable t) {
             log.warning("Cannot update metadata: " + t.getMessage());
+            return false;
         }
     }
 
@@ -56,11 +74,41 @@ public class MetadataListener extends AbstractPutRemoveCacheListener implements
     }
 
     protected void onPostPut(Entity trigger) {
+        final String namespace = trigger.getNamespace();
+        final String kind = trigger.getKind();
+
+        final List<String> namespaceKey = Arrays.asList(namespace);
+        final boolean newNamespace = (known.getIfPresent(namespaceKey) == null);
+        final List<String> kindKey = Arrays.asList(namespace, kind);
+        final boolean newKind = (known.getIfPresent(kindKey) == null);
+
+        final List<String> properties = new ArrayList<String>();
+        for (Map.Entry<String, Object> entry : trigger.getProperties().entrySet()) {
+            final String property = entry.getKey();
+            if (PropertyUtils.isIndexedProperty(entry.getValue()) && PropertyUtils.isSpecialProperty(property) == false) {
+                if (known.getIfPresent(Arrays.asList(namespace, kind, property)) == null) {
+                    properties.add(property);
+                }
+            }
+        }
+
+        if (newNamespace == false && newKind == false && properties.isEmpty()) {
+            return;
+        }
+
         MetadataQueryTypeFactory.setFlag(true);
         try {
-            executeCallable(new NamespaceMetadataTask(trigger.getNamespace()));
-            executeCallable(new KindMetadataTask(trigger.getKind(), trigger.getNamespace()));
-            executeCallable(new PropertyMetadataTask(trigger));
+            if (newNamespace && executeCallable(new NamespaceMetadataTask(namespace))) {
+                known.put(namespaceKey, Boolean.TRUE);
+            }
+            if (newKind && executeCallable(new KindMetadataTask(kind, namespace))) {
+                known.put(kindKey, Boolean.TRUE);
+            }
+            if (properties.isEmpty() == false && executeCallable(new PropertyMetadataTask(kind, namespace, properties))) {
+                for (String property : properties) {
+                    known.put(Arrays.asList(namespace, kind, property), Boolean.TRUE);
+                }
+            }
         } finally {
             MetadataQueryTypeFactory.setFlag(false);
         }
@@ -23,37 +23,48 @@
 package org.jboss.capedwarf.datastore.metadata;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entities;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
-import org.datanucleus.store.types.sco.backed.Map;
-import org.jboss.capedwarf.datastore.PropertyUtils;
 
 /**
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
 public class PropertyMetadataTask extends MetadataTask {
-    private final Entity trigger;
+    private final String kind;
+    private final String namespace;
+    private final Collection<String> properties;
 
-    public PropertyMetadataTask(Entity trigger) {
-        this.trigger = trigger;
+    public PropertyMetadataTask(String kind, String namespace, Collection<String> properties) {
+        this.kind = kind;
+        this.namespace = namespace;
+        this.properties = properties;
     }
 
     protected void execute(DatastoreService ds) {
+        List<Key> keys = new ArrayList<Key>(properties.size());
+        for (String property : properties) {
+            keys.add(Entities.createPropertyKey(kind, property));
+        }
+        // skip the ones already recorded, possibly by another node
+        Map<Key, Entity> existing = ds.get(keys);
         List<Entity> entities = new ArrayList<Entity>();
-        for (Map.Entry<String, Object> entry : trigger.getProperties().entrySet()) {
-            if (PropertyUtils.isIndexedProperty(entry.getValue()) && PropertyUtils.isSpecialProperty(entry.getKey()) == false) {
-                Key key = Entities.createPropertyKey(trigger.getKind(), entry.getKey());
+        for (Key key : keys) {
+            if (existing.containsKey(key) == false) {
                 entities.add(new Entity(key));
             }
         }
-        ds.put(entities);
+        if (entities.isEmpty() == false) {
+            ds.put(entities);
+        }
     }
 
     protected String getNamespace() {
-        return trigger.getNamespace();
+        return namespace;
     }
 }
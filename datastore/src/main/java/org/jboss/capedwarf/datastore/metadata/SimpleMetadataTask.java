@@ -24,6 +24,7 @@ package org.jboss.capedwarf.datastore.metadata;
 
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
 
 /**
@@ -38,7 +39,11 @@ public abstract class SimpleMetadataTask extends MetadataTask {
 
     protected void execute(DatastoreService ds) {
         Key key = createKey();
-        ds.put(new Entity(key));
+        try {
+            ds.get(key); // already recorded, possibly by another node
+        } catch (EntityNotFoundException e) {
+            ds.put(new Entity(key));
+        }
     }
 
     protected abstract Key createKey();
@@ -125,6 +125,24 @@ public enum Bridge implements TwoWayStringBridge {
         return bridge.getValue(value);
     }
 
+    /**
+     * Get numeric value, as indexed into numeric field.
+     *
+     * @param object the value
+     * @return Long or Double, null if this bridge is not numeric
+     */
+    public Number toNumber(Object object) {
+        if (bridge instanceof NumericBridgeSpi) {
+            return NumericBridgeSpi.class.cast(bridge).toNumber(object);
+        } else {
+            return null;
+        }
+    }
+
+    String getOrderPrefix() {
+        return orderingPrefixer.orderPrefix;
+    }
+
     static void checkType(Object value, Class<?> clazz) {
         if (clazz.isInstance(value) == false) {
             throw new IllegalArgumentException("Type mismatch");
@@ -253,7 +271,7 @@ public enum Bridge implements TwoWayStringBridge {
         }
     }
 
-    private static class DoubleBridge implements BridgeSpi {
+    private static class DoubleBridge implements NumericBridgeSpi {
         public Set<Class<?>> types() {
             return Sets.<Class<?>>newHashSet(Float.class, Double.class);
         }
@@ -262,6 +280,10 @@ public enum Bridge implements TwoWayStringBridge {
             return double2sortableStr(((Number) object).doubleValue());
         }
 
+        public Number toNumber(Object object) {
+            return ((Number) object).doubleValue();
+        }
+
         public Object stringToObject(String stringValue) {
             long f = sortableStr2long(stringValue);
             if (f < 0) f ^= 0x7fffffffffffffffL;
@@ -314,7 +336,7 @@ public enum Bridge implements TwoWayStringBridge {
         }
     }
 
-    private static class LongBridge implements BridgeSpi {
+    private static class LongBridge implements NumericBridgeSpi {
 
         private static final int RADIX = 36;
 
@@ -346,6 +368,10 @@ public enum Bridge implements TwoWayStringBridge {
             return longToString(num);
         }
 
+        public Number toNumber(Object object) {
+            return ((Number) object).longValue();
+        }
+
         public Object stringToObject(String stringValue) {
             if (MIN_STRING_VALUE.equals(stringValue))
                 return Long.MIN_VALUE;
@@ -653,7 +679,7 @@ public enum Bridge implements TwoWayStringBridge {
         }
     }
 
-    private static abstract class LongTypeBasedBridge<T> extends AbstractBridgeSpi {
+    private static abstract class LongTypeBasedBridge<T> extends AbstractBridgeSpi implements NumericBridgeSpi {
         private LongBridge longBridge = new LongBridge();
 
         @Override
@@ -676,6 +702,11 @@ public enum Bridge implements TwoWayStringBridge {
             return longBridge.objectToString(toLong((T) object));
         }
 
+        @SuppressWarnings("unchecked")
+        public Number toNumber(Object object) {
+            return toLong((T) object);
+        }
+
         @Override
         public Object stringToObject(String stringValue) {
             return convertValue(getValue(stringValue));
@@ -22,10 +22,13 @@
 
 package org.jboss.capedwarf.datastore.query;
 
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import org.jboss.capedwarf.shared.reflection.MethodInvocation;
 import org.jboss.capedwarf.shared.reflection.ReflectionUtils;
 import org.jboss.capedwarf.shared.reflection.TargetInvocation;
 
@@ -37,12 +40,22 @@ import org.jboss.capedwarf.shared.reflection.TargetInvocation;
  */
 final class CapedwarfCursorHelper {
     private static TargetInvocation<Integer> getIndex = ReflectionUtils.cacheInvocation(Cursor.class, "getIndex");
+    private static TargetInvocation<String> getPosition = ReflectionUtils.cacheInvocation(Cursor.class, "getPosition");
+    private static MethodInvocation<Void> setPosition = ReflectionUtils.cacheMethod(Cursor.class, "setPosition", String.class);
 
     static Cursor createCursor(final AtomicInteger index, final LazySize size) {
         return ReflectionUtils.newInstance(Cursor.class, new Class[]{AtomicInteger.class, LazySize.class}, new Object[]{index, size});
     }
 
-    static Cursor createListCursor(final LazySize size, final FetchOptions fetchOptions) {
+    static Cursor createCursor(final AtomicInteger index, final LazySize size, final String position) {
+        final Cursor cursor = createCursor(index, size);
+        if (position != null) {
+            setPosition.invokeWithTarget(cursor, position);
+        }
+        return cursor;
+    }
+
+    static Cursor createListCursor(final LazySize size, final FetchOptions fetchOptions, final Query query, final List<?> results) {
         if (fetchOptions == null)
             return null;
 
@@ -62,7 +75,8 @@ final class CapedwarfCursorHelper {
                     offset = x;
                 }
             }
-            return createCursor(new AtomicInteger(offset + limit), size);
+            final String position = results.isEmpty() ? null : KeysetPosition.encode(query, results.get(results.size() - 1));
+            return createCursor(new AtomicInteger(offset + limit), size, position);
         } else {
             return null; // cannot determine cursor
         }
@@ -75,4 +89,12 @@ final class CapedwarfCursorHelper {
             throw new RuntimeException(e);
         }
     }
+
+    static String readPosition(Cursor cursor) {
+        try {
+            return getPosition.invoke(cursor);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
\ No newline at end of file
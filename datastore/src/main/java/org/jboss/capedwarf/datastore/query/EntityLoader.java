@@ -30,6 +30,7 @@ import java.util.Set;
 
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Query;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ForwardingIterator;
 import org.infinispan.query.CacheQuery;
 import org.infinispan.query.FetchOptions;
@@ -48,39 +49,86 @@ public class EntityLoader {
         PROJECTIONS
     }
 
+    private static final int DISTINCT_CHUNK_SIZE = Integer.getInteger("jboss.capedwarf.datastore.distinctChunkSize", 1000);
+
     private final Query query;
     private final CacheQuery cacheQuery;
+    private final QueryDeadline deadline;
+    private Iterator<Object> resultIterator;
 
     public EntityLoader(Query query, CacheQuery cacheQuery) {
+        this(query, cacheQuery, null);
+    }
+
+    EntityLoader(Query query, CacheQuery cacheQuery, QueryDeadline deadline) {
         this.query = query;
         this.cacheQuery = cacheQuery;
+        this.deadline = deadline;
     }
 
     public List<Object> getList() {
+        if (isDistinct()) {
+            // stream the rows, only distinct ones are kept
+            List<Object> list = new ArrayList<Object>();
+            ResultIterator iterator = cacheQuery.iterator(new FetchOptions().fetchSize(DISTINCT_CHUNK_SIZE));
+            try {
+                Iterator<Object> rows = new DistinctIterator(bound(iterator, DISTINCT_CHUNK_SIZE));
+                boolean conversionNeeded = mustConvertResultsToEntities();
+                while (rows.hasNext()) {
+                    Object result = rows.next();
+                    if (conversionNeeded) {
+                        list.add(Projections.convertToEntity(query, result));
+                    } else {
+                        list.add(EntityUtils.copyOnWrite((Entity) result));
+                    }
+                }
+            } finally {
+                iterator.close();
+            }
+            return list;
+        }
+
         boolean conversionNeeded = mustConvertResultsToEntities();
-        Set<EntityWrapper> distinct = (getType() == Type.PROJECTIONS && query.getDistinct() ? new HashSet<EntityWrapper>() : null);
+        long start = System.nanoTime();
         List<Object> results = cacheQuery.list();
+        if (deadline != null) {
+            // a single fetch
+            deadline.check(start);
+        }
         List<Object> list = new ArrayList<Object>(results.size());
         for (Object result : results) {
             if (conversionNeeded) {
-                Entity entity = Projections.convertToEntity(query, result);
-                if (distinct == null || distinct.add(new EntityWrapper(entity))) {
-                    list.add(entity);
-                }
+                list.add(Projections.convertToEntity(query, result));
             } else {
-                list.add(EntityUtils.cloneEntity((Entity) result));
+                list.add(EntityUtils.copyOnWrite((Entity) result));
             }
         }
         return list;
     }
 
-    public Iterator<Object> getIterator(Integer chunkSize) {
-        // TODO -- in-memory distinct
-        if (query.getDistinct()) {
-            return getList().iterator();
+    /**
+     * Count distinct projection results.
+     * Rows are streamed and collapsed on projected values, no entities are created.
+     *
+     * @return distinct results count
+     */
+    public int countDistinct() {
+        int count = 0;
+        ResultIterator iterator = cacheQuery.iterator(new FetchOptions().fetchSize(DISTINCT_CHUNK_SIZE));
+        try {
+            Iterator<Object> distinct = new DistinctIterator(bound(iterator, DISTINCT_CHUNK_SIZE));
+            while (distinct.hasNext()) {
+                distinct.next();
+                count++;
+            }
+        } finally {
+            iterator.close();
         }
+        return count;
+    }
 
-        final Iterator<Object> iterator;
+    public Iterator<Object> getIterator(Integer chunkSize) {
+        Iterator<Object> iterator;
         if (chunkSize == null) {
             iterator = toClosingIterator(cacheQuery.iterator());
         } else if (chunkSize == Integer.MAX_VALUE) {
@@ -88,6 +136,10 @@ public class EntityLoader {
         } else {
             iterator = toClosingIterator(cacheQuery.iterator(new FetchOptions().fetchSize(chunkSize)));
         }
+        iterator = bound(iterator, chunkSize);
+        if (isDistinct()) {
+            iterator = new DistinctIterator(iterator);
+        }
         if (mustConvertResultsToEntities()) {
             return new WrappingIterator(iterator);
         } else {
@@ -96,7 +148,21 @@ public class EntityLoader {
     }
 
     private Iterator<Object> toClosingIterator(ResultIterator iterator) {
-        return new ClosingIterator(iterator);
+        resultIterator = ResultIterators.track(iterator);
+        return resultIterator;
+    }
+
+    /**
+     * Close the result iterator opened by #getIterator, e.g. when not all results are needed.
+     */
+    void close() {
+        if (resultIterator != null) {
+            ResultIterators.close(resultIterator);
+        }
+    }
+
+    private Iterator<Object> bound(Iterator<Object> iterator, Integer chunkSize) {
+        return (deadline != null) ? deadline.bound(iterator, chunkSize) : iterator;
     }
 
     private Type getType() {
@@ -113,6 +179,10 @@ public class EntityLoader {
         return (getType() != Type.NONE);
     }
 
+    boolean isDistinct() {
+        return (getType() == Type.PROJECTIONS && query.getDistinct());
+    }
+
     private class WrappingIterator implements Iterator<Object> {
         private final Iterator iterator;
 
@@ -147,54 +217,31 @@ public class EntityLoader {
 
         public Object next() {
             Entity entity = (Entity) iterator.next();
-            return EntityUtils.cloneEntity(entity);
+            return EntityUtils.copyOnWrite(entity);
         }
     }
 
-    private static class ClosingIterator extends ForwardingIterator<Object> {
-        private final ResultIterator delegate;
-
-        private ClosingIterator(ResultIterator delegate) {
-            this.delegate = delegate;
-        }
+    /**
+     * Skips rows whose projected values were already seen.
+     * Only the distinct projected values are kept, not the rows.
+     */
+    private class DistinctIterator extends AbstractIterator<Object> {
+        private final Iterator<Object> iterator;
+        private final List<String> projections = Projections.getProjections(query);
+        private final Set<List<Object>> seen = new HashSet<List<Object>>();
 
-        protected Iterator<Object> delegate() {
-            return delegate;
+        private DistinctIterator(Iterator<Object> iterator) {
+            this.iterator = iterator;
         }
 
-        protected void finalize() throws Throwable {
-            try {
-                delegate.close(); // any better way to do this?
-            } catch (Throwable t) {
-                System.err.println(t);
-            } finally {
-                super.finalize();
+        protected Object computeNext() {
+            while (iterator.hasNext()) {
+                Object row = iterator.next();
+                if (seen.add(Projections.getDistinctKey(projections, row))) {
+                    return row;
+                }
             }
-        }
-    }
-
-    private static class EntityWrapper {
-        private Entity entity;
-
-        private EntityWrapper(Entity entity) {
-            this.entity = entity;
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-
-            EntityWrapper that = (EntityWrapper) o;
-
-            if (!entity.getProperties().equals(that.entity.getProperties())) return false;
-
-            return true;
-        }
-
-        @Override
-        public int hashCode() {
-            return entity.getProperties().hashCode();
+            return endOfData();
         }
     }
 }
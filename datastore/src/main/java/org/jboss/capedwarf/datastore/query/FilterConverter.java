@@ -32,6 +32,7 @@ import org.apache.lucene.search.Query;
 
 import static com.google.appengine.api.datastore.Query.CompositeFilter;
 import static com.google.appengine.api.datastore.Query.Filter;
+import static com.google.appengine.api.datastore.Query.FilterOperator;
 import static com.google.appengine.api.datastore.Query.FilterPredicate;
 
 /**
@@ -80,10 +81,11 @@ public class FilterConverter {
     }
 
     public Query convert(FilterPredicate filterPredicate) {
-        String fieldName = filterPredicate.getPropertyName();
-        Object value = filterPredicate.getValue();
+        return convert(filterPredicate.getPropertyName(), filterPredicate.getOperator(), filterPredicate.getValue());
+    }
 
-        switch (filterPredicate.getOperator()) {
+    public Query convert(String fieldName, FilterOperator operator, Object value) {
+        switch (operator) {
             case EQUAL:
                 return queryBuilder.equal(fieldName, value);
             case NOT_EQUAL:
@@ -99,7 +101,7 @@ public class FilterConverter {
             case LESS_THAN_OR_EQUAL:
                 return queryBuilder.lessThanOrEqual(fieldName, value);
             default:
-                throw new IllegalArgumentException("Unknown operator " + filterPredicate.getOperator());
+                throw new IllegalArgumentException("Unknown operator " + operator);
         }
     }
 
@@ -0,0 +1,187 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.datastore.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Index;
+import com.google.appengine.api.datastore.Query;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.jboss.capedwarf.shared.config.ApplicationConfiguration;
+import org.jboss.capedwarf.shared.config.IndexesXml;
+import org.jboss.capedwarf.shared.reflection.ReflectionUtils;
+
+/**
+ * Immutable model of app's composite indexes.
+ *
+ * Built once per datastore-indexes.xml (per deployment), read w/o locking.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public final class IndexModel {
+    private static final LoadingCache<IndexesXml, IndexModel> models = CacheBuilder.newBuilder().weakKeys().build(new CacheLoader<IndexesXml, IndexModel>() {
+        public IndexModel load(IndexesXml indexesXml) throws Exception {
+            return new IndexModel(indexesXml);
+        }
+    });
+
+    private final boolean autoGenerate;
+    private final Map<Index, Index.IndexState> indexes;
+    private final Map<String, List<IndexesXml.Index>> definitions;
+    private final Map<String, List<Definition>> candidates;
+
+    private IndexModel(IndexesXml indexesXml) {
+        this.autoGenerate = indexesXml.isAutoGenerate();
+
+        final ImmutableMap.Builder<Index, Index.IndexState> indexes = ImmutableMap.builder();
+        final Map<String, List<IndexesXml.Index>> definitions = new HashMap<>();
+        final Map<String, List<Definition>> candidates = new HashMap<>();
+
+        long id = 0;
+        for (IndexesXml.Index i : indexesXml.getIndexes().values()) {
+            final List<Index.Property> properties = new ArrayList<>();
+            for (IndexesXml.Property p : i.getProperties()) {
+                Index.Property property = ReflectionUtils.newInstance(
+                    Index.Property.class,
+                    new Class[]{String.class, Query.SortDirection.class},
+                    new Object[]{p.getName(), toDirection(p.getDirection())}
+                );
+                properties.add(property);
+            }
+            Index index = ReflectionUtils.newInstance(
+                Index.class,
+                new Class[]{Long.TYPE, String.class, Boolean.TYPE, List.class},
+                new Object[]{++id, i.getKind(), i.isAncestor(), properties}
+            );
+            indexes.put(index, Index.IndexState.SERVING);
+
+            List<IndexesXml.Index> perKind = definitions.get(i.getKind());
+            if (perKind == null) {
+                perKind = new ArrayList<>();
+                definitions.put(i.getKind(), perKind);
+            }
+            perKind.add(i);
+
+            List<Definition> perKindCandidates = candidates.get(i.getKind());
+            if (perKindCandidates == null) {
+                perKindCandidates = new ArrayList<>();
+                candidates.put(i.getKind(), perKindCandidates);
+            }
+            perKindCandidates.add(new Definition(i, ImmutableList.copyOf(i.getPropertyNames())));
+        }
+
+        this.indexes = indexes.build();
+        this.definitions = immutable(definitions);
+        this.candidates = immutable(candidates);
+    }
+
+    private static <T> Map<String, List<T>> immutable(Map<String, List<T>> map) {
+        final ImmutableMap.Builder<String, List<T>> builder = ImmutableMap.builder();
+        for (Map.Entry<String, List<T>> entry : map.entrySet()) {
+            builder.put(entry.getKey(), ImmutableList.copyOf(entry.getValue()));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Get current app's index model.
+     *
+     * @return the model
+     */
+    public static IndexModel getInstance() {
+        return models.getUnchecked(ApplicationConfiguration.getInstance().getIndexesXml());
+    }
+
+    private static Query.SortDirection toDirection(String direction) {
+        if ("ASC".equalsIgnoreCase(direction)) {
+            return Query.SortDirection.ASCENDING;
+        } else if ("DESC".equalsIgnoreCase(direction)) {
+            return Query.SortDirection.DESCENDING;
+        } else {
+            throw new IllegalArgumentException("No such direction: " + direction);
+        }
+    }
+
+    public boolean isAutoGenerate() {
+        return autoGenerate;
+    }
+
+    /**
+     * Get all composite indexes, as exposed via datastore api.
+     *
+     * @return immutable indexes
+     */
+    public Map<Index, Index.IndexState> getIndexes() {
+        return indexes;
+    }
+
+    /**
+     * Get index definitions for kind.
+     *
+     * @param kind the kind
+     * @return immutable definitions, empty if none
+     */
+    public List<IndexesXml.Index> getDefinitions(String kind) {
+        final List<IndexesXml.Index> list = definitions.get(kind);
+        return (list != null) ? list : Collections.<IndexesXml.Index>emptyList();
+    }
+
+    /**
+     * Find composite index which serves the query.
+     *
+     * @param query the query
+     * @return matching index or null
+     */
+    public IndexesXml.Index getIndex(Query query) {
+        final List<Definition> list = candidates.get(query.getKind());
+        if (list == null) {
+            return null;
+        }
+
+        final Indexes.QueryProperties properties = Indexes.getQueryProperties(query);
+        for (Definition definition : list) {
+            if (Indexes.indexMatches(definition.propertyNames, properties)) {
+                return definition.index;
+            }
+        }
+        return null;
+    }
+
+    private static class Definition {
+        private final IndexesXml.Index index;
+        private final List<String> propertyNames;
+
+        private Definition(IndexesXml.Index index, List<String> propertyNames) {
+            this.index = index;
+            this.propertyNames = propertyNames;
+        }
+    }
+}
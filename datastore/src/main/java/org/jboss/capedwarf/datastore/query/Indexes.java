@@ -14,7 +14,6 @@ import com.google.common.collect.Sets;
 import org.jboss.capedwarf.common.app.Application;
 import org.jboss.capedwarf.datastore.KindUtils;
 import org.jboss.capedwarf.shared.compatibility.Compatibility;
-import org.jboss.capedwarf.shared.config.ApplicationConfiguration;
 import org.jboss.capedwarf.shared.config.IndexesXml;
 import org.jboss.capedwarf.shared.reflection.ReflectionUtils;
 
@@ -27,12 +26,7 @@ public class Indexes {
     private static final Set<String> KEY_RESERVED_PROPERTY_AS_SET = Collections.singleton(Entity.KEY_RESERVED_PROPERTY);
 
     public static IndexesXml.Index getIndex(Query query) {
-        for (IndexesXml.Index index : ApplicationConfiguration.getInstance().getIndexesXml().getIndexes().values()) {
-            if (indexMatches(index, query)) {
-                return index;
-            }
-        }
-        return null;
+        return IndexModel.getInstance().getIndex(query);
     }
 
     public static void checkIfExplicitlyDefinedIndexIsRequired(Query query) {
@@ -43,7 +37,7 @@ public class Indexes {
 
     private static boolean needsExplicitlyDefinedIndex(Query query) {
         if (Application.isDevelopmentEnv()) {
-            if (ApplicationConfiguration.getInstance().getIndexesXml().isAutoGenerate()) {
+            if (IndexModel.getInstance().isAutoGenerate()) {
                 return false;
             }
         } else {
@@ -146,17 +140,20 @@ public class Indexes {
         return properties;
     }
 
-    private static boolean indexMatches(IndexesXml.Index index, Query query) {
-        if (!index.getKind().equals(query.getKind())) {
-            return false;
-        }
-
+    static QueryProperties getQueryProperties(Query query) {
         Set<String> filterProperties = getFilterProperties(query);
         Set<String> sortProperties = getSortProperties(query);
         Set<String> projectionProperties = getProjectionProperties(query);
         removeDuplicates(filterProperties, sortProperties, projectionProperties);
+        return new QueryProperties(filterProperties, sortProperties, projectionProperties);
+    }
 
-        List<String> indexProperties = index.getPropertyNames();
+    static boolean indexMatches(List<String> indexPropertyNames, QueryProperties properties) {
+        Set<String> filterProperties = new HashSet<>(properties.filterProperties);
+        Set<String> sortProperties = new HashSet<>(properties.sortProperties);
+        Set<String> projectionProperties = new HashSet<>(properties.projectionProperties);
+
+        List<String> indexProperties = new ArrayList<>(indexPropertyNames);
 
         while (!indexProperties.isEmpty()) {
             String property = indexProperties.get(0);
@@ -242,4 +239,16 @@ public class Indexes {
         }
         return set;
     }
+
+    static class QueryProperties {
+        private final Set<String> filterProperties;
+        private final Set<String> sortProperties;
+        private final Set<String> projectionProperties;
+
+        private QueryProperties(Set<String> filterProperties, Set<String> sortProperties, Set<String> projectionProperties) {
+            this.filterProperties = filterProperties;
+            this.sortProperties = sortProperties;
+            this.projectionProperties = projectionProperties;
+        }
+    }
 }
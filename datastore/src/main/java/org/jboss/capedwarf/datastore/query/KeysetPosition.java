@@ -0,0 +1,181 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.datastore.query;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Query;
+import com.google.common.io.BaseEncoding;
+import org.jboss.capedwarf.datastore.PropertyUtils;
+
+/**
+ * Keyset cursor position.
+ *
+ * A position holds the indexed sort values of the last returned entity, plus its key as tie breaker.
+ * Resuming from it adds a range clause to the query, instead of having Lucene collect and skip all previous hits.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+final class KeysetPosition {
+    private static final BaseEncoding ENCODING = BaseEncoding.base64Url().omitPadding();
+    private static final Query.SortPredicate KEY_SORT = new Query.SortPredicate(Entity.KEY_RESERVED_PROPERTY, Query.SortDirection.ASCENDING);
+
+    private KeysetPosition() {
+    }
+
+    /**
+     * Only sorted queries, whose order is fully decided by the index, can be resumed by position.
+     *
+     * @param query the query
+     * @return true if keyset positions apply
+     */
+    static boolean isApplicable(Query query) {
+        return query.getSortPredicates().isEmpty() == false
+            && query.getDistinct() == false
+            && new QueryResultProcessor(query).isProcessingNeeded() == false;
+    }
+
+    /**
+     * Get query's sort predicates, with key as last sort to make the order total.
+     *
+     * @param query the query
+     * @return sort predicates
+     */
+    static List<Query.SortPredicate> getSortPredicates(Query query) {
+        List<Query.SortPredicate> sorts = new ArrayList<>();
+        for (Query.SortPredicate sort : query.getSortPredicates()) {
+            sorts.add(sort);
+            if (Entity.KEY_RESERVED_PROPERTY.equals(sort.getPropertyName())) {
+                return sorts; // key is unique, nothing more to order by
+            }
+        }
+        sorts.add(KEY_SORT);
+        return sorts;
+    }
+
+    /**
+     * Encode position right after the result.
+     *
+     * @param query the query
+     * @param result the last returned result
+     * @return encoded position or null if result's position cannot be determined
+     */
+    static String encode(Query query, Object result) {
+        if (result instanceof Entity == false || isApplicable(query) == false) {
+            return null;
+        }
+
+        final Entity entity = (Entity) result;
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(baos)) {
+            for (Query.SortPredicate sort : getSortPredicates(query)) {
+                final String name = sort.getPropertyName();
+                final Object value;
+                if (Entity.KEY_RESERVED_PROPERTY.equals(name)) {
+                    value = entity.getKey();
+                } else {
+                    if (entity.hasProperty(name) == false || entity.isUnindexedProperty(name)) {
+                        return null;
+                    }
+                    value = entity.getProperty(name);
+                    // multi-valued properties have no single sort value
+                    if (value instanceof Collection || PropertyUtils.isIndexedProperty(value) == false) {
+                        return null;
+                    }
+                }
+                out.writeUTF(BridgeUtils.matchBridge(value).objectToString(value));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return ENCODING.encode(baos.toByteArray());
+    }
+
+    /**
+     * Read cursor's position values.
+     *
+     * @param query the query
+     * @param cursor the cursor
+     * @return position values or null if cursor has no position usable with this query
+     */
+    static List<String> read(Query query, Cursor cursor) {
+        if (cursor == null) {
+            return null;
+        }
+        final String position = CapedwarfCursorHelper.readPosition(cursor);
+        if (position == null || isApplicable(query) == false) {
+            return null;
+        }
+
+        final int size = getSortPredicates(query).size();
+        final List<String> values = new ArrayList<>(size);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(ENCODING.decode(position)))) {
+            for (int i = 0; i < size; i++) {
+                values.add(in.readUTF());
+            }
+            return (in.available() == 0) ? values : null;
+        } catch (IOException | IllegalArgumentException e) {
+            return null; // cursor from another query, fall back to index
+        }
+    }
+
+    /**
+     * Match everything that sorts after position.
+     * (s1 > v1) or (s1 = v1 and s2 > v2) or ... or (s1 = v1 and ... and key > k)
+     *
+     * @param builder the query builder
+     * @param query the query
+     * @param values the position values
+     * @return lucene query
+     */
+    static org.apache.lucene.search.Query after(LuceneQueryBuilder builder, Query query, List<String> values) {
+        final List<Query.SortPredicate> sorts = getSortPredicates(query);
+        final List<org.apache.lucene.search.Query> alternatives = new ArrayList<>(sorts.size());
+        for (int i = 0; i < sorts.size(); i++) {
+            final List<org.apache.lucene.search.Query> clauses = new ArrayList<>(i + 1);
+            for (int j = 0; j < i; j++) {
+                clauses.add(builder.equal(sorts.get(j).getPropertyName(), values.get(j)));
+            }
+            clauses.add(beyond(builder, sorts.get(i), values.get(i)));
+            alternatives.add(builder.all(clauses));
+        }
+        return builder.any(alternatives);
+    }
+
+    private static org.apache.lucene.search.Query beyond(LuceneQueryBuilder builder, Query.SortPredicate sort, String value) {
+        if (sort.getDirection() == Query.SortDirection.DESCENDING) {
+            return builder.range(sort.getPropertyName(), null, value, true, false);
+        } else {
+            return builder.range(sort.getPropertyName(), value, null, false, true);
+        }
+    }
+}
@@ -42,48 +42,115 @@ public class LazyChecker extends LazyKeyChecker {
     protected final QueryHolder holder;
     protected final FetchOptions fetchOptions;
 
+    private volatile CacheQuery cacheQuery;
+    private volatile QueryDeadline deadline;
+    private volatile int firstResult;
+    private volatile Integer maxResults;
+
     public LazyChecker(QueryHolder holder, FetchOptions fetchOptions) {
         super(holder.getQuery().getAncestor(), holder.isInTx());
         this.holder = holder;
         this.fetchOptions = fetchOptions;
     }
 
+    protected CacheQuery getCacheQuery() {
+        if (cacheQuery == null) {
+            synchronized (this) {
+                if (cacheQuery == null) {
+                    deadline = holder.newDeadline();
+                    cacheQuery = holder.getCacheQuery(fetchOptions, deadline);
+                }
+            }
+        }
+        return cacheQuery;
+    }
+
+    /**
+     * Deadline of this execution, null if none.
+     *
+     * @return the deadline
+     */
+    protected QueryDeadline getDeadline() {
+        getCacheQuery();
+        return deadline;
+    }
+
+    /**
+     * Check a single fetch against the deadline, if any.
+     *
+     * @param start the fetch start, System.nanoTime based
+     */
+    protected void checkDeadline(long start) {
+        final QueryDeadline qd = getDeadline();
+        if (qd != null) {
+            qd.check(start);
+        }
+    }
+
     protected LazySize getLazySize() {
         return new LazySize() {
             public int getSize() {
-                return holder.getCacheQuery().getResultSize();
+                return getCacheQuery().getResultSize();
             }
         };
     }
 
+    /**
+     * Absolute index of the first result, used by index cursors.
+     *
+     * @return first result index
+     */
+    protected int getFirstResult() {
+        return firstResult;
+    }
+
+    /**
+     * Max number of results, null if unlimited.
+     *
+     * @return max results
+     */
+    protected Integer getMaxResults() {
+        return maxResults;
+    }
+
     protected void apply() {
-        final CacheQuery cacheQuery = holder.getCacheQuery();
+        final CacheQuery cacheQuery = getCacheQuery();
+        final Query query = holder.getQuery();
 
         Integer offset = fetchOptions.getOffset();
         Integer cursorOffset = null;
+        boolean keysetStart = false;
         Cursor startCursor = fetchOptions.getStartCursor();
         if (startCursor != null) {
             cursorOffset = CapedwarfCursorHelper.readIndex(startCursor);
+            keysetStart = (KeysetPosition.read(query, startCursor) != null);
         }
         if (offset != null || cursorOffset != null) {
-            offset = (offset == null ? 0 : offset)
+            int first = (offset == null ? 0 : offset)
                 + (cursorOffset == null ? 0 : cursorOffset);
-            cacheQuery.firstResult(offset);
+            // keyset start is already part of the query, only skip explicit offset
+            if (keysetStart == false) {
+                cacheQuery.firstResult(first);
+            } else if (offset != null) {
+                cacheQuery.firstResult(offset);
+            }
+            offset = first;
         }
+        firstResult = (offset == null) ? 0 : offset;
 
         Integer limit = fetchOptions.getLimit();
         Integer cursorLimit = null;
         Cursor endCursor = fetchOptions.getEndCursor();
-        if (endCursor != null) {
+        if (endCursor != null && KeysetPosition.read(query, endCursor) == null) {
             int last = CapedwarfCursorHelper.readIndex(endCursor)-1;
             int first = (offset == null) ? 0 : offset;
             cursorLimit = Math.max(0, last - first + 1);
         }
         if (limit != null || cursorLimit != null) {
-            cacheQuery.maxResults(
-                Math.min(
-                    limit == null ? Integer.MAX_VALUE : limit,
-                    cursorLimit == null ? Integer.MAX_VALUE : cursorLimit));
+            maxResults = Math.min(
+                limit == null ? Integer.MAX_VALUE : limit,
+                cursorLimit == null ? Integer.MAX_VALUE : cursorLimit);
+            cacheQuery.maxResults(maxResults);
         }
     }
 
@@ -48,12 +48,16 @@ class LazyQueryResultIterator<E> extends LazyChecker implements QueryResultItera
                 if (delegate == null) {
                     new FilterNamespaceChecker().checkNamespace(holder.getQuery());
                     apply();
-                    EntityLoader entityLoader = new EntityLoader(holder.getQuery(), holder.getCacheQuery());
                     Integer chunkSize = fetchOptions.getChunkSize();
-                    Iterator iterator = entityLoader.getIterator(chunkSize);
-                    iterator = new QueryResultProcessor(holder.getQuery()).process(iterator);
+                    QueryResultProcessor processor = new QueryResultProcessor(holder.getQuery());
+                    Iterator iterator;
+                    if (processor.isProcessingNeeded()) {
+                        iterator = processor.merge(holder, getDeadline(), getFirstResult(), getMaxResults(), chunkSize);
+                    } else {
+                        iterator = new EntityLoader(holder.getQuery(), getCacheQuery(), getDeadline()).getIterator(chunkSize);
+                    }
                     iterator = new PostLoadIterator(iterator, (chunkSize != null ? chunkSize : Integer.MAX_VALUE), holder);
-                    delegate = new QueryResultIteratorImpl<E>(iterator, getLazySize());
+                    delegate = new QueryResultIteratorImpl<E>(iterator, getLazySize(), holder.getQuery(), getFirstResult());
                 }
             }
         }
@@ -29,6 +29,7 @@ import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Index;
 import com.google.appengine.api.datastore.QueryResultList;
+import com.google.common.collect.Lists;
 
 /**
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
@@ -48,12 +49,17 @@ class LazyQueryResultList<E> extends LazyList<E> implements QueryResultList<E> {
                 if (delegate == null) {
                     new FilterNamespaceChecker().checkNamespace(holder.getQuery());
                     apply();
-                    EntityLoader entityLoader = new EntityLoader(holder.getQuery(), holder.getCacheQuery());
-                    List objects = entityLoader.getList();
-                    objects = new QueryResultProcessor(holder.getQuery()).process(objects);
+                    QueryResultProcessor processor = new QueryResultProcessor(holder.getQuery());
+                    List objects;
+                    if (processor.isProcessingNeeded()) {
+                        objects = Lists.newArrayList(processor.merge(holder, getDeadline(), getFirstResult(), getMaxResults(), fetchOptions.getChunkSize()));
+                    } else {
+                        objects = new EntityLoader(holder.getQuery(), getCacheQuery(), getDeadline()).getList();
+                    }
+                    Cursor cursor = CapedwarfCursorHelper.createListCursor(getLazySize(), fetchOptions, holder.getQuery(), objects);
                     Integer chunkSize = fetchOptions.getChunkSize();
                     objects = new PostLoadList(objects, (chunkSize == null ? objects.size() : chunkSize), holder);
-                    delegate = new QueryResultListImpl<E>(objects, CapedwarfCursorHelper.createListCursor(getLazySize(), fetchOptions));
+                    delegate = new QueryResultListImpl<E>(objects, cursor);
                 }
             }
         }
@@ -3,33 +3,29 @@ package org.jboss.capedwarf.datastore.query;
 import java.util.Arrays;
 import java.util.Collection;
 
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
-import org.hibernate.search.query.dsl.BooleanJunction;
-import org.hibernate.search.query.dsl.QueryBuilder;
-import org.hibernate.search.query.dsl.RangeMatchingContext;
-import org.hibernate.search.query.dsl.TermMatchingContext;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
 
 /**
+ * Builds Lucene queries directly, as the Hibernate Search DSL would
+ * with ignored field bridges and analyzers, minus the DSL's per clause context objects.
+ *
  * @author <a href="mailto:mluksa@redhat.com">Marko Luksa</a>
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
 public class LuceneQueryBuilder {
 
-    private QueryBuilder queryBuilder;
-
-    public LuceneQueryBuilder(QueryBuilder queryBuilder) {
-        this.queryBuilder = queryBuilder;
-    }
-
     public Query matchAll() {
-        return queryBuilder.all().createQuery();
+        return new MatchAllDocsQuery();
     }
 
     public Query all(Collection<Query> subQueries) {
-        BooleanJunction<BooleanJunction> bool = queryBuilder.bool();
-        for (Query subQuery : subQueries) {
-            bool.must(subQuery);
-        }
-        return bool.createQuery();
+        return bool(subQueries, BooleanClause.Occur.MUST);
     }
 
     public Query any(Query... subQueries) {
@@ -37,19 +33,26 @@ public class LuceneQueryBuilder {
     }
 
     public Query any(Collection<Query> subQueries) {
-        BooleanJunction<BooleanJunction> bool = queryBuilder.bool();
+        return bool(subQueries, BooleanClause.Occur.SHOULD);
+    }
+
+    private Query bool(Collection<Query> subQueries, BooleanClause.Occur occur) {
+        if (subQueries.size() == 1) {
+            return subQueries.iterator().next();
+        }
+        BooleanQuery bool = new BooleanQuery();
         for (Query subQuery : subQueries) {
-            bool.should(subQuery);
+            bool.add(subQuery, occur);
         }
-        return bool.createQuery();
+        return bool;
     }
 
     public Query in(String fieldName, Collection<?> values) {
-        BooleanJunction<BooleanJunction> bool = queryBuilder.bool();
+        BooleanQuery bool = new BooleanQuery();
         for (Object value : values) {
-            bool.should(equal(fieldName, value));
+            bool.add(equal(fieldName, value), BooleanClause.Occur.SHOULD);
         }
-        return bool.createQuery();
+        return bool;
     }
 
     public Query notEqual(String fieldName, Object value) {
@@ -59,7 +62,10 @@ public class LuceneQueryBuilder {
     }
 
     public Query not(Query query) {
-        return queryBuilder.bool().must(query).not().createQuery();
+        BooleanQuery bool = new BooleanQuery();
+        bool.add(matchAll(), BooleanClause.Occur.MUST);
+        bool.add(query, BooleanClause.Occur.MUST_NOT);
+        return bool;
     }
 
     public Query equal(String fieldName, Object value) {
@@ -67,47 +73,66 @@ public class LuceneQueryBuilder {
     }
 
     public Query equal(String fieldName, String stringValue) {
-        return keywordOnField(fieldName)
-            .matching(stringValue)
-            .createQuery();
-    }
-
-    private TermMatchingContext keywordOnField(String fieldName) {
-        return queryBuilder
-            .keyword().onField(fieldName)
-            .ignoreFieldBridge()
-            .ignoreAnalyzer();
+        return new TermQuery(new Term(fieldName, stringValue));
     }
 
     public Query greaterThan(String fieldName, Object value) {
-        return rangeOnField(fieldName)
-            .above(convertToString(value)).excludeLimit()
-            .createQuery();
+        Query numeric = numericRange(fieldName, value, false, false);
+        if (numeric != null) {
+            return numeric;
+        }
+        return range(fieldName, convertToString(value), null, false, true);
     }
 
     public Query greaterThanOrEqual(String fieldName, Object value) {
-        return rangeOnField(fieldName)
-            .above(convertToString(value))
-            .createQuery();
+        Query numeric = numericRange(fieldName, value, false, true);
+        if (numeric != null) {
+            return numeric;
+        }
+        return range(fieldName, convertToString(value), null, true, true);
     }
 
     public Query lessThan(String fieldName, Object value) {
-        return rangeOnField(fieldName)
-            .below(convertToString(value)).excludeLimit()
-            .createQuery();
+        Query numeric = numericRange(fieldName, value, true, false);
+        if (numeric != null) {
+            return numeric;
+        }
+        return range(fieldName, null, convertToString(value), true, false);
     }
 
     public Query lessThanOrEqual(String fieldName, Object value) {
-        return rangeOnField(fieldName)
-            .below(convertToString(value))
-            .createQuery();
+        Query numeric = numericRange(fieldName, value, true, true);
+        if (numeric != null) {
+            return numeric;
+        }
+        return range(fieldName, null, convertToString(value), true, true);
+    }
+
+    /**
+     * Numeric range within the value's type group,
+     * plus the string range over all type groups on the other side of it.
+     */
+    private Query numericRange(String fieldName, Object value, boolean upper, boolean inclusive) {
+        Bridge bridge = BridgeUtils.matchBridge(value);
+        Query numeric = NumericFields.range(fieldName, bridge, value, upper, inclusive);
+        if (numeric == null) {
+            return null;
+        }
+        String prefix = bridge.getOrderPrefix();
+        Query others;
+        if (upper) {
+            others = range(fieldName, null, prefix, true, false);
+        } else {
+            others = range(fieldName, prefix + ";", null, true, true);
+        }
+        return any(numeric, others);
     }
 
-    public RangeMatchingContext rangeOnField(String fieldName) {
-        return queryBuilder
-            .range().onField(fieldName)
-            .ignoreFieldBridge()
-            .ignoreAnalyzer();
+    /**
+     * String term range, null bound is open.
+     */
+    public Query range(String fieldName, String lower, String upper, boolean includeLower, boolean includeUpper) {
+        return new TermRangeQuery(fieldName, lower, upper, includeLower, includeUpper);
     }
 
     private String convertToString(Object value) {
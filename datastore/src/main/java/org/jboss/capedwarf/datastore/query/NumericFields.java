@@ -0,0 +1,183 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.datastore.query;
+
+import java.io.IOException;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.NumericUtils;
+
+/**
+ * Numeric (trie encoded) fields, indexed next to the ordered string form of long, rating, date and double values.
+ *
+ * Ranges over numbers use NumericRangeQuery on these fields, instead of scanning string terms;
+ * string terms are kept for equality, and for the cross type ordering of mixed type properties.
+ *
+ * Off by default: entities indexed before it was enabled have no numeric fields,
+ * and would be missed by ranges and sorted as missing, so only enable it on a fresh (or re-built) index.
+ * The flag is read on every use, so it can be switched on a running node.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+final class NumericFields {
+    private static final String ENABLED_KEY = "jboss.capedwarf.datastore.numericFields";
+    static final int PRECISION_STEP = Integer.parseInt(System.getProperty("jboss.capedwarf.datastore.numericPrecisionStep", String.valueOf(NumericUtils.PRECISION_STEP_DEFAULT)));
+
+    private static final String LONG_PREFIX = "____capedwarf.numeric.long___";
+    private static final String DOUBLE_PREFIX = "____capedwarf.numeric.double___";
+
+    private NumericFields() {
+    }
+
+    static boolean isEnabled() {
+        return Boolean.getBoolean(ENABLED_KEY);
+    }
+
+    private static String getFieldName(String propertyName, Number number) {
+        return ((number instanceof Double) ? DOUBLE_PREFIX : LONG_PREFIX) + propertyName;
+    }
+
+    static void addField(Document document, String propertyName, Bridge bridge, Object value) {
+        if (isEnabled() == false) {
+            return;
+        }
+
+        final Number number = bridge.toNumber(value);
+        if (number != null) {
+            final NumericField field = new NumericField(getFieldName(propertyName, number), PRECISION_STEP, Field.Store.NO, true);
+            if (number instanceof Double) {
+                field.setDoubleValue(number.doubleValue());
+            } else {
+                field.setLongValue(number.longValue());
+            }
+            document.add(field);
+        }
+    }
+
+    /**
+     * Numeric range, matching only values of the bound's type group.
+     *
+     * @param propertyName the property name
+     * @param bridge the bound's bridge
+     * @param value the bound
+     * @param upper is value upper bound
+     * @param inclusive is bound inclusive
+     * @return numeric range query or null if value is not numeric
+     */
+    static Query range(String propertyName, Bridge bridge, Object value, boolean upper, boolean inclusive) {
+        if (isEnabled() == false || value == null) {
+            return null;
+        }
+
+        final Number number = bridge.toNumber(value);
+        if (number == null) {
+            return null;
+        }
+
+        final String field = getFieldName(propertyName, number);
+        if (number instanceof Double) {
+            final Double x = number.doubleValue();
+            return upper
+                ? NumericRangeQuery.newDoubleRange(field, PRECISION_STEP, null, x, true, inclusive)
+                : NumericRangeQuery.newDoubleRange(field, PRECISION_STEP, x, null, inclusive, true);
+        } else {
+            final Long x = number.longValue();
+            return upper
+                ? NumericRangeQuery.newLongRange(field, PRECISION_STEP, null, x, true, inclusive)
+                : NumericRangeQuery.newLongRange(field, PRECISION_STEP, x, null, inclusive, true);
+        }
+    }
+
+    /**
+     * The numeric type group of property, if all indexed values are of that single group (or null).
+     * Mixed type properties keep the string sort, as only that one knows the cross type ordering.
+     *
+     * @param reader the index reader
+     * @param propertyName the property name
+     * @return the group's order prefix or null if property is not purely numeric
+     * @throws IOException for any I/O error
+     */
+    static String sortGroup(IndexReader reader, String propertyName) throws IOException {
+        final String group = firstGroup(reader, propertyName);
+        if (group == null || hasTermsAfter(reader, propertyName, group)) {
+            return null;
+        }
+        return group;
+    }
+
+    /**
+     * Numeric sort for the sort group.
+     *
+     * @param group the group, see sortGroup
+     * @param propertyName the property name
+     * @param reverse is sort descending
+     * @return numeric sort field or null if group is not numeric
+     */
+    static SortField sortField(String group, String propertyName, boolean reverse) {
+        // missing values (no property or null) are lowest, as with string sort
+        if (group.equals(Bridge.LONG.getOrderPrefix())) {
+            SortField sortField = new SortField(LONG_PREFIX + propertyName, FieldCache.NUMERIC_UTILS_LONG_PARSER, reverse);
+            return sortField.setMissingValue(Long.MIN_VALUE);
+        } else if (group.equals(Bridge.DOUBLE.getOrderPrefix())) {
+            SortField sortField = new SortField(DOUBLE_PREFIX + propertyName, FieldCache.NUMERIC_UTILS_DOUBLE_PARSER, reverse);
+            return sortField.setMissingValue(Double.NEGATIVE_INFINITY);
+        } else {
+            return null;
+        }
+    }
+
+    // group of the first non-null term
+    private static String firstGroup(IndexReader reader, String propertyName) throws IOException {
+        final String afterNull = Bridge.NULL.getOrderPrefix() + ";";
+        final TermEnum terms = reader.terms(new Term(propertyName, afterNull));
+        try {
+            final Term term = terms.term();
+            if (term == null || propertyName.equals(term.field()) == false) {
+                return null;
+            }
+            final String text = term.text();
+            return text.substring(0, Math.min(text.length(), afterNull.length() - 1));
+        } finally {
+            terms.close();
+        }
+    }
+
+    private static boolean hasTermsAfter(IndexReader reader, String propertyName, String group) throws IOException {
+        final TermEnum terms = reader.terms(new Term(propertyName, group + ";"));
+        try {
+            final Term term = terms.term();
+            return term != null && propertyName.equals(term.field());
+        } finally {
+            terms.close();
+        }
+    }
+}
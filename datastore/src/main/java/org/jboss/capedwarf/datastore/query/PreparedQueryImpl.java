@@ -48,17 +48,22 @@ public class PreparedQueryImpl extends QueryHolder implements PreparedQuery {
     private final PostLoadHandle callback;
     private final Query gaeQuery;
     private final IndexesXml.Index index;
+    private final QueryConverter converter;
+    private final Double deadlineSeconds;
     private final CacheQuery cacheQuery;
     private final boolean inTx;
 
-    public PreparedQueryImpl(PostLoadHandle callback, Query gaeQuery, IndexesXml.Index index, CacheQuery cacheQuery, boolean inTx) {
+    public PreparedQueryImpl(PostLoadHandle callback, Query gaeQuery, IndexesXml.Index index, QueryConverter converter, Double deadlineSeconds, boolean inTx) {
         this.callback = callback;
         this.gaeQuery = gaeQuery;
         this.index = index;
-        this.cacheQuery = cacheQuery;
+        this.converter = converter;
+        this.deadlineSeconds = deadlineSeconds;
+        this.cacheQuery = converter.convert(gaeQuery, index);
         this.inTx = inTx;
     }
 
+
     Query getQuery() {
         return gaeQuery;
     }
@@ -67,8 +72,30 @@ public class PreparedQueryImpl extends QueryHolder implements PreparedQuery {
         return index;
     }
 
-    CacheQuery getCacheQuery() {
-        return cacheQuery;
+    QueryDeadline newDeadline() {
+        return QueryDeadline.start(deadlineSeconds);
+    }
+
+    CacheQuery getCacheQuery(FetchOptions fetchOptions, QueryDeadline deadline) {
+        List<String> start = KeysetPosition.read(gaeQuery, fetchOptions.getStartCursor());
+        List<String> end = KeysetPosition.read(gaeQuery, fetchOptions.getEndCursor());
+        if (start == null && end == null) {
+            if (deadline == null) {
+                return cacheQuery;
+            }
+            // timeout is set on the query, so it needs its own
+            return deadline.apply(converter.convert(gaeQuery, index));
+        }
+        // seek directly to the positions, instead of skipping over all previous hits
+        return applyDeadline(converter.convert(gaeQuery, index, start, end), deadline);
+    }
+
+    CacheQuery createCacheQuery(Query query, QueryDeadline deadline) {
+        return applyDeadline(converter.convert(query, index), deadline);
+    }
+
+    private static CacheQuery applyDeadline(CacheQuery query, QueryDeadline deadline) {
+        return (deadline != null) ? deadline.apply(query) : query;
     }
 
     boolean isInTx() {
@@ -141,11 +168,7 @@ public class PreparedQueryImpl extends QueryHolder implements PreparedQuery {
     }
 
     public int countEntities(FetchOptions fetchOptions) {
-        if (isDistinct()) {
-            return asQueryResultList(fetchOptions).size();
-        } else {
-            return new CountEntities(this, fetchOptions).count();
-        }
+        return new CountEntities(this, fetchOptions).count();
     }
 
     private static class CountEntities extends LazyChecker {
@@ -157,7 +180,17 @@ public class PreparedQueryImpl extends QueryHolder implements PreparedQuery {
             check();
             apply();
 
-            int totalResults = holder.getCacheQuery().getResultSize();
+            if (holder.isDistinct()) {
+                EntityLoader loader = new EntityLoader(holder.getQuery(), getCacheQuery(), getDeadline());
+                if (loader.isDistinct()) {
+                    // offset and limit are already applied to the rows
+                    return loader.countDistinct();
+                }
+            }
+
+            long start = System.nanoTime();
+            int totalResults = getCacheQuery().getResultSize();
+            checkDeadline(start);
             Integer offset = fetchOptions.getOffset();
             Integer limit = fetchOptions.getLimit();
             if (offset == null) {
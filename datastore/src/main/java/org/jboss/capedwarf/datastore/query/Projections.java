@@ -68,8 +68,19 @@ class Projections {
      */
     static void applyProjections(Query gaeQuery, CacheQuery cacheQuery, IndexesXml.Index index) {
         List<String> projections = getProjections(gaeQuery);
-        if (projections.isEmpty() == false) {
-            cacheQuery.projection(projections.toArray(new String[projections.size()]));
+        applyProjections(gaeQuery, cacheQuery, index, projections.toArray(new String[projections.size()]));
+    }
+
+    /**
+     * Apply already resolved projections onto Cache projections.
+     *
+     * @param gaeQuery    the GAE query
+     * @param cacheQuery  the cache query
+     * @param projections the projection fields
+     */
+    static void applyProjections(Query gaeQuery, CacheQuery cacheQuery, IndexesXml.Index index, String[] projections) {
+        if (projections.length > 0) {
+            cacheQuery.projection(projections);
             if (!gaeQuery.isKeysOnly()) {
                 if (index != null) {
                     try {
@@ -99,7 +110,7 @@ class Projections {
         cacheQuery.sort(new Sort(sortFields.toArray(new SortField[sortFields.size()])));
     }
 
-    private static List<String> getProjections(Query gaeQuery) {
+    static List<String> getProjections(Query gaeQuery) {
         List<String> projections = new ArrayList<String>();
         if (gaeQuery.isKeysOnly()) {
             projections.add(ProjectionConstants.KEY);
@@ -228,6 +239,24 @@ class Projections {
         return entity;
     }
 
+    /**
+     * Distinct key of a projection row -- projected values and their bridges.
+     *
+     * @param projections the projection fields, see getProjections
+     * @param result      the current result
+     * @return distinct key
+     */
+    static List<Object> getDistinctKey(List<String> projections, Object result) {
+        final Object[] row = (Object[]) result;
+        final Properties bridges = readPropertiesBridges(row[1].toString());
+        final List<Object> key = new ArrayList<Object>(2 * (row.length - OFFSET));
+        for (int i = OFFSET; i < row.length; i++) {
+            key.add(bridges.getProperty(projections.get(i)));
+            key.add(row[i]);
+        }
+        return key;
+    }
+
     private static boolean mustBeWrappedInRawValue(PropertyProjection propertyProjection) {
         return propertyProjection.getType() == null;
     }
@@ -52,10 +52,12 @@ public class PropertyMapBridge implements FieldBridge {
                         if (PropertyUtils.isIndexedProperty(element)) {
                             final Bridge inner = BridgeUtils.matchBridge(element);
                             luceneOptions.addFieldToDocument(propertyName, inner.objectToString(element), document);
+                            NumericFields.addField(document, propertyName, inner, element);
                         }
                     }
                 } else {
                     luceneOptions.addFieldToDocument(propertyName, bridge.objectToString(propertyValue), document);
+                    NumericFields.addField(document, propertyName, bridge, propertyValue);
                 }
                 projections.storePropertyBridge(propertyName, bridge);
             }
@@ -2,12 +2,15 @@ package org.jboss.capedwarf.datastore.query;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.Projection;
 import com.google.appengine.api.datastore.Query;
-import org.apache.lucene.search.Sort;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import org.infinispan.query.CacheQuery;
 import org.infinispan.query.SearchManager;
 import org.jboss.capedwarf.shared.config.IndexesXml;
@@ -16,6 +19,7 @@ import org.jboss.capedwarf.shared.config.IndexesXml;
  * Converts a GAE query to Infinispan's CacheQuery
  *
  * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
 public class QueryConverter {
 
@@ -23,100 +27,85 @@ public class QueryConverter {
     public static final String NAMESPACE_PROPERTY_KEY = "____capedwarf.entity.namespace___";
     public static final String ANCESTOR_PROPERTY_KEY = "____capedwarf.entity.ancestor.key___";
 
+    private static final long PLAN_CACHE_SIZE = Long.parseLong(System.getProperty("jboss.capedwarf.datastore.queryPlanCacheSize", "256"));
+
     private LuceneQueryBuilder queryBuilder;
     private SearchManager searchManager;
 
     private FilterConverter filterConverter;
     private SortPredicateConverter sortPredicateConverter;
 
+    private final Cache<Object, QueryPlan> plans;
+
     public QueryConverter(SearchManager searchManager) {
         this.searchManager = searchManager;
-        this.queryBuilder = new LuceneQueryBuilder(searchManager.buildQueryBuilderForClass(Entity.class).get());
+        this.queryBuilder = new LuceneQueryBuilder();
         this.filterConverter = new FilterConverter(queryBuilder);
-        this.sortPredicateConverter = new SortPredicateConverter();
+        this.sortPredicateConverter = new SortPredicateConverter(searchManager.getSearchFactory().getIndexReaderAccessor());
+        this.plans = CacheBuilder.newBuilder().maximumSize(PLAN_CACHE_SIZE).build();
     }
 
     public CacheQuery convert(Query gaeQuery, IndexesXml.Index index) {
-        CacheQuery cacheQuery = getCacheQuery(createLuceneQuery(gaeQuery));
-        Projections.applyProjections(gaeQuery, cacheQuery, index);
-        addSortToQuery(cacheQuery, gaeQuery);
-        return cacheQuery;
-    }
-
-    private void addSortToQuery(CacheQuery cacheQuery, Query gaeQuery) {
-        List<Query.SortPredicate> sortPredicates = gaeQuery.getSortPredicates();
-        if (!sortPredicates.isEmpty()) {
-            Sort sort = sortPredicateConverter.convert(sortPredicates);
-            cacheQuery.sort(sort);
-        }
-    }
-
-    private CacheQuery getCacheQuery(org.apache.lucene.search.Query luceneQuery) {
-        return searchManager.getQuery(luceneQuery, Entity.class);
-    }
-
-    private org.apache.lucene.search.Query createLuceneQuery(Query gaeQuery) {
-        return queryBuilder.all(getQueryList(gaeQuery));
+        return convert(gaeQuery, index, null, null);
     }
 
-    private List<org.apache.lucene.search.Query> getQueryList(Query gaeQuery) {
-        List<org.apache.lucene.search.Query> list = new ArrayList<org.apache.lucene.search.Query>();
-        addFilterQuery(list, gaeQuery);
-        addNamespaceQuery(list, QueryUtils.getNamespace(gaeQuery));
-        addEntityKindQuery(list, gaeQuery.getKind());
-        addAncestorQuery(list, gaeQuery.getAncestor());
-        addProjectionsFilterQuery(list, gaeQuery);
-        return list;
+    /**
+     * Convert query, bounded by keyset positions.
+     *
+     * @param gaeQuery the query
+     * @param index the index
+     * @param start start position values, can be null
+     * @param end end position values, can be null
+     * @return cache query
+     */
+    public CacheQuery convert(Query gaeQuery, IndexesXml.Index index, List<String> start, List<String> end) {
+        List<Object> params = new ArrayList<>();
+        QueryPlan plan = getPlan(gaeQuery, params);
+        CacheQuery cacheQuery = getCacheQuery(createLuceneQuery(plan, params, gaeQuery, start, end));
+        Projections.applyProjections(gaeQuery, cacheQuery, index, plan.getProjections());
+        addSortToQuery(cacheQuery, plan);
+        return cacheQuery;
     }
 
-    private void addProjectionsFilterQuery(List<org.apache.lucene.search.Query> list, Query gaeQuery) {
-        for (Projection projection : gaeQuery.getProjections()) {
-            list.add(queryBuilder.notEqual(projection.getName(), Bridge.NullBridge.NULL_TOKEN));
+    private QueryPlan getPlan(final Query gaeQuery, List<Object> params) {
+        Object shape = QueryPlan.shape(gaeQuery, params);
+        try {
+            return plans.get(shape, new Callable<QueryPlan>() {
+                public QueryPlan call() throws Exception {
+                    return QueryPlan.compile(filterConverter, gaeQuery);
+                }
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
         }
     }
 
-    private void addFilterQuery(List<org.apache.lucene.search.Query> list, Query gaeQuery) {
-        Query.Filter filter = getFilter(gaeQuery);
-        list.add(filterConverter.convert(filter));
-    }
-
-    private Query.Filter getFilter(Query gaeQuery) {
-        List<Query.Filter> filters = getAllFilterPredicates(gaeQuery);
-        if (filters.size() == 1) {
-            return filters.get(0);
-        } else if (filters.size() > 1) {
-            return Query.CompositeFilterOperator.and(filters);
-        } else {
-            return null;
+    private void addSortToQuery(CacheQuery cacheQuery, QueryPlan plan) {
+        List<Query.SortPredicate> sortPredicates = plan.getSortPredicates();
+        if (sortPredicates != null) {
+            // key tie breaker makes the order total, so keyset positions are exact
+            cacheQuery.sort(sortPredicateConverter.convert(sortPredicates));
         }
     }
 
-    @SuppressWarnings("deprecation")
-    private List<Query.Filter> getAllFilterPredicates(Query gaeQuery) {
-        List<Query.Filter> list = new ArrayList<Query.Filter>();
-        if (gaeQuery.getFilter() != null) {
-            list.add(gaeQuery.getFilter());
-        }
-        list.addAll(gaeQuery.getFilterPredicates());
-        return list;
+    private CacheQuery getCacheQuery(org.apache.lucene.search.Query luceneQuery) {
+        return searchManager.getQuery(luceneQuery, Entity.class);
     }
 
-    private void addAncestorQuery(List<org.apache.lucene.search.Query> list, Key ancestor) {
-        if (ancestor != null) {
-            list.add(equal(ANCESTOR_PROPERTY_KEY, Bridge.KEY.objectToString(ancestor)));
+    private org.apache.lucene.search.Query createLuceneQuery(QueryPlan plan, List<Object> params, Query gaeQuery, List<String> start, List<String> end) {
+        org.apache.lucene.search.Query query = plan.bind(queryBuilder, params);
+        if (start == null && end == null) {
+            return query;
         }
-    }
-
-    private void addEntityKindQuery(List<org.apache.lucene.search.Query> list, String kind) {
-        if (kind != null) {
-            list.add(equal(KIND_PROPERTY_KEY, kind));
+        List<org.apache.lucene.search.Query> list = new ArrayList<>();
+        list.add(query);
+        if (start != null) {
+            list.add(KeysetPosition.after(queryBuilder, gaeQuery, start));
         }
-    }
-
-    private void addNamespaceQuery(List<org.apache.lucene.search.Query> list, String namespace) {
-        if (namespace != null) {
-            list.add(equal(NAMESPACE_PROPERTY_KEY, NamespaceBridge.objectToString(namespace)));
+        if (end != null) {
+            list.add(queryBuilder.not(KeysetPosition.after(queryBuilder, gaeQuery, end)));
         }
+        return queryBuilder.all(list);
     }
 
     public org.apache.lucene.search.Query equal(String fieldName, String value) {
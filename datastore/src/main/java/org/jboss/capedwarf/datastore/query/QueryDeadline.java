@@ -0,0 +1,137 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.datastore.query;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.collect.ForwardingIterator;
+import org.infinispan.query.CacheQuery;
+
+/**
+ * Deadline of a query's datastore fetches.
+ *
+ * As with GAE, the deadline applies to each fetch, not to the whole iteration:
+ * Lucene search gets it as its timeout (checked in the collector),
+ * result iteration gets it per chunk of results, counting only the time spent in the datastore,
+ * never the time the app spends handling results.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+final class QueryDeadline {
+    // GAE's default batch size
+    private static final int DEFAULT_CHUNK_SIZE = 20;
+
+    private final long nanos;
+
+    private QueryDeadline(long nanos) {
+        this.nanos = nanos;
+    }
+
+    /**
+     * Start new deadline.
+     *
+     * @param seconds the deadline in seconds, can be null
+     * @return new deadline or null if no deadline
+     */
+    static QueryDeadline start(Double seconds) {
+        if (seconds == null) {
+            return null;
+        }
+        return new QueryDeadline((long) (seconds * 1000 * 1000 * 1000));
+    }
+
+    /**
+     * Apply deadline as search timeout.
+     * The query must not be shared with other executions.
+     *
+     * @param query the cache query
+     * @return the same cache query
+     */
+    CacheQuery apply(CacheQuery query) {
+        query.timeout(Math.max(1L, TimeUnit.NANOSECONDS.toMicros(nanos)), TimeUnit.MICROSECONDS);
+        return query;
+    }
+
+    /**
+     * Check a single fetch.
+     *
+     * @param start the fetch start, System.nanoTime based
+     */
+    void check(long start) {
+        if (System.nanoTime() - start > nanos) {
+            throw exceeded();
+        }
+    }
+
+    private static RuntimeException exceeded() {
+        return new ApiProxy.ApiDeadlineExceededException("datastore", "RunQuery");
+    }
+
+    /**
+     * Bound the iterator, each chunk of results must be fetched within the deadline.
+     * Once the deadline is exceeded, the iterator is closed and exception thrown.
+     *
+     * @param iterator the iterator
+     * @param chunkSize the chunk size, can be null
+     * @return bounded iterator
+     */
+    Iterator<Object> bound(final Iterator<Object> iterator, Integer chunkSize) {
+        final int chunk = (chunkSize != null) ? chunkSize : DEFAULT_CHUNK_SIZE;
+        return new ForwardingIterator<Object>() {
+            private long spent;
+            private int count;
+
+            protected Iterator<Object> delegate() {
+                return iterator;
+            }
+
+            public boolean hasNext() {
+                final long start = System.nanoTime();
+                final boolean hasNext = iterator.hasNext();
+                spent(start);
+                return hasNext;
+            }
+
+            public Object next() {
+                final long start = System.nanoTime();
+                final Object next = iterator.next();
+                spent(start);
+                if (++count >= chunk) {
+                    count = 0;
+                    spent = 0;
+                }
+                return next;
+            }
+
+            private void spent(long start) {
+                spent += System.nanoTime() - start;
+                if (spent > nanos) {
+                    ResultIterators.close(iterator);
+                    throw exceeded();
+                }
+            }
+        };
+    }
+}
@@ -22,6 +22,7 @@
 
 package org.jboss.capedwarf.datastore.query;
 
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Query;
 import org.infinispan.query.CacheQuery;
 import org.jboss.capedwarf.shared.config.IndexesXml;
@@ -32,7 +33,10 @@ import org.jboss.capedwarf.shared.config.IndexesXml;
 public abstract class QueryHolder {
     abstract Query getQuery();
     abstract IndexesXml.Index getIndex();
-    abstract CacheQuery getCacheQuery();
+    abstract QueryDeadline newDeadline();
+    abstract CacheQuery getCacheQuery(FetchOptions fetchOptions, QueryDeadline deadline);
+
+    abstract CacheQuery createCacheQuery(Query query, QueryDeadline deadline);
     abstract boolean isInTx();
     abstract boolean isDistinct();
     abstract void executePostLoad(Object result);
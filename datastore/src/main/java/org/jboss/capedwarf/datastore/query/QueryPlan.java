@@ -0,0 +1,361 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.datastore.query;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Projection;
+import com.google.appengine.api.datastore.Query;
+
+/**
+ * Compiled query shape.
+ *
+ * Shape holds everything but the filter, namespace and ancestor values;
+ * running a query only binds its values into the already compiled clauses.
+ * Filter clauses remember their last converted value, so re-running with the same values converts nothing.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+final class QueryPlan {
+    private final Clause clause;
+    private final String[] projections;
+    private final List<Query.SortPredicate> sortPredicates;
+
+    private QueryPlan(Clause clause, String[] projections, List<Query.SortPredicate> sortPredicates) {
+        this.clause = clause;
+        this.projections = projections;
+        this.sortPredicates = sortPredicates;
+    }
+
+    /**
+     * Compile query's shape.
+     *
+     * @param filterConverter the filter converter
+     * @param gaeQuery the query
+     * @return new plan
+     */
+    static QueryPlan compile(FilterConverter filterConverter, Query gaeQuery) {
+        Walker walker = new Walker(filterConverter, true);
+        Clause clause = walker.walk(gaeQuery);
+        List<String> projections = Projections.getProjections(gaeQuery);
+        List<Query.SortPredicate> sorts = gaeQuery.getSortPredicates().isEmpty() ? null : Collections.unmodifiableList(KeysetPosition.getSortPredicates(gaeQuery));
+        return new QueryPlan(clause, projections.toArray(new String[projections.size()]), sorts);
+    }
+
+    /**
+     * Get query's shape key, and collect its values.
+     *
+     * @param gaeQuery the query
+     * @param params the values
+     * @return the shape key
+     */
+    static Object shape(Query gaeQuery, List<Object> params) {
+        Walker walker = new Walker(null, false);
+        walker.walk(gaeQuery);
+        params.addAll(walker.params);
+        return walker.key;
+    }
+
+    /**
+     * Bind values.
+     *
+     * @param params the values, as collected by #shape
+     * @return lucene query
+     */
+    org.apache.lucene.search.Query bind(LuceneQueryBuilder builder, List<Object> params) {
+        return clause.bind(builder, params);
+    }
+
+    String[] getProjections() {
+        return projections;
+    }
+
+    /**
+     * @return sort predicates, with key tie breaker; null if query is not sorted
+     */
+    List<Query.SortPredicate> getSortPredicates() {
+        return sortPredicates;
+    }
+
+    private static interface Clause {
+        org.apache.lucene.search.Query bind(LuceneQueryBuilder builder, List<Object> params);
+    }
+
+    private static class MatchAllClause implements Clause {
+        public org.apache.lucene.search.Query bind(LuceneQueryBuilder builder, List<Object> params) {
+            return builder.matchAll();
+        }
+    }
+
+    private static class PredicateClause implements Clause {
+        private final FilterConverter filterConverter;
+        private final String fieldName;
+        private final Query.FilterOperator operator;
+        private final int index;
+
+        private PredicateClause(FilterConverter filterConverter, String fieldName, Query.FilterOperator operator, int index) {
+            this.filterConverter = filterConverter;
+            this.fieldName = fieldName;
+            this.operator = operator;
+            this.index = index;
+        }
+
+        private volatile Bound last;
+
+        public org.apache.lucene.search.Query bind(LuceneQueryBuilder builder, List<Object> params) {
+            final Object value = params.get(index);
+            Bound bound = last;
+            if (bound != null && bound.matches(value)) {
+                return bound.query;
+            }
+            final org.apache.lucene.search.Query query = filterConverter.convert(fieldName, operator, value);
+            final Object snapshot = snapshot(value);
+            if (snapshot != null) {
+                last = new Bound(snapshot, query);
+            }
+            return query;
+        }
+
+        // immutable copy of value, null if value cannot be remembered
+        private static Object snapshot(Object value) {
+            if (value instanceof Collection) {
+                final List<Object> copy = new ArrayList<>();
+                for (Object element : (Collection<?>) value) {
+                    if (element == null || isImmutable(element)) {
+                        copy.add(element);
+                    } else {
+                        return null;
+                    }
+                }
+                return copy;
+            }
+            return isImmutable(value) ? value : null;
+        }
+
+        private static boolean isImmutable(Object value) {
+            return value instanceof String || value instanceof Long || value instanceof Integer || value instanceof Double || value instanceof Boolean || value instanceof Key;
+        }
+    }
+
+    private static class Bound {
+        private final Object value;
+        private final org.apache.lucene.search.Query query;
+
+        private Bound(Object value, org.apache.lucene.search.Query query) {
+            this.value = value;
+            this.query = query;
+        }
+
+        private boolean matches(Object other) {
+            if (value instanceof List && other instanceof Collection) {
+                return value.equals(new ArrayList<>((Collection<?>) other));
+            }
+            return value.equals(other);
+        }
+    }
+
+    private static class JunctionClause implements Clause {
+        private final Query.CompositeFilterOperator operator;
+        private final Clause[] clauses;
+
+        private JunctionClause(Query.CompositeFilterOperator operator, List<Clause> clauses) {
+            this.operator = operator;
+            this.clauses = clauses.toArray(new Clause[clauses.size()]);
+        }
+
+        public org.apache.lucene.search.Query bind(LuceneQueryBuilder builder, List<Object> params) {
+            final List<org.apache.lucene.search.Query> queries = new ArrayList<>(clauses.length);
+            for (Clause clause : clauses) {
+                queries.add(clause.bind(builder, params));
+            }
+            switch (operator) {
+                case AND:
+                    return builder.all(queries);
+                case OR:
+                    return builder.any(queries);
+                default:
+                    throw new IllegalArgumentException("Unknown operator " + operator);
+            }
+        }
+    }
+
+    private static class TermClause implements Clause {
+        private final String fieldName;
+        private final int index;
+
+        private TermClause(String fieldName, int index) {
+            this.fieldName = fieldName;
+            this.index = index;
+        }
+
+        public org.apache.lucene.search.Query bind(LuceneQueryBuilder builder, List<Object> params) {
+            return builder.equal(fieldName, (String) params.get(index));
+        }
+    }
+
+    private static class FixedTermClause implements Clause {
+        private final String fieldName;
+        private final String value;
+
+        private FixedTermClause(String fieldName, String value) {
+            this.fieldName = fieldName;
+            this.value = value;
+        }
+
+        public org.apache.lucene.search.Query bind(LuceneQueryBuilder builder, List<Object> params) {
+            return builder.equal(fieldName, value);
+        }
+    }
+
+    private static class NotNullClause implements Clause {
+        private final String propertyName;
+
+        private NotNullClause(String propertyName) {
+            this.propertyName = propertyName;
+        }
+
+        public org.apache.lucene.search.Query bind(LuceneQueryBuilder builder, List<Object> params) {
+            return builder.notEqual(propertyName, Bridge.NullBridge.NULL_TOKEN);
+        }
+    }
+
+    /**
+     * Walks the query in a fixed order, so compiled parameter indexes match collected values.
+     */
+    private static class Walker {
+        private final FilterConverter filterConverter;
+        private final boolean compile;
+        private final List<Object> key = new ArrayList<>();
+        private final List<Object> params = new ArrayList<>();
+
+        private Walker(FilterConverter filterConverter, boolean compile) {
+            this.filterConverter = filterConverter;
+            this.compile = compile;
+        }
+
+        private Clause walk(Query gaeQuery) {
+            final List<Clause> clauses = new ArrayList<>();
+            add(clauses, filter(getFilter(gaeQuery)));
+            add(clauses, namespace(QueryUtils.getNamespace(gaeQuery)));
+            add(clauses, kind(gaeQuery.getKind()));
+            add(clauses, ancestor(gaeQuery.getAncestor()));
+            for (Projection projection : gaeQuery.getProjections()) {
+                add(clauses, notNull(projection.getName()));
+            }
+            key.add(gaeQuery.isKeysOnly());
+            for (Query.SortPredicate sort : gaeQuery.getSortPredicates()) {
+                key.add(sort.getPropertyName());
+                key.add(sort.getDirection());
+            }
+            return compile ? new JunctionClause(Query.CompositeFilterOperator.AND, clauses) : null;
+        }
+
+        private void add(List<Clause> clauses, Clause clause) {
+            if (clause != null) {
+                clauses.add(clause);
+            }
+        }
+
+        private int param(Object value) {
+            params.add(value);
+            return params.size() - 1;
+        }
+
+        private Clause filter(Query.Filter filter) {
+            if (filter == null) {
+                key.add(null);
+                return compile ? new MatchAllClause() : null;
+            } else if (filter instanceof Query.CompositeFilter) {
+                Query.CompositeFilter composite = (Query.CompositeFilter) filter;
+                key.add(composite.getOperator());
+                key.add(composite.getSubFilters().size());
+                List<Clause> clauses = new ArrayList<>();
+                for (Query.Filter subFilter : composite.getSubFilters()) {
+                    add(clauses, filter(subFilter));
+                }
+                return compile ? new JunctionClause(composite.getOperator(), clauses) : null;
+            } else if (filter instanceof Query.FilterPredicate) {
+                Query.FilterPredicate predicate = (Query.FilterPredicate) filter;
+                key.add(predicate.getPropertyName());
+                key.add(predicate.getOperator());
+                int index = param(predicate.getValue());
+                return compile ? new PredicateClause(filterConverter, predicate.getPropertyName(), predicate.getOperator(), index) : null;
+            } else {
+                throw new IllegalArgumentException("Unknown filter type: " + filter);
+            }
+        }
+
+        private Clause namespace(String namespace) {
+            key.add(namespace != null);
+            if (namespace == null) {
+                return null;
+            }
+            int index = param(NamespaceBridge.objectToString(namespace));
+            return compile ? new TermClause(QueryConverter.NAMESPACE_PROPERTY_KEY, index) : null;
+        }
+
+        private Clause kind(String kind) {
+            key.add(kind);
+            return (compile && kind != null) ? new FixedTermClause(QueryConverter.KIND_PROPERTY_KEY, kind) : null;
+        }
+
+        private Clause ancestor(Key ancestor) {
+            key.add(ancestor != null);
+            if (ancestor == null) {
+                return null;
+            }
+            int index = param(Bridge.KEY.objectToString(ancestor));
+            return compile ? new TermClause(QueryConverter.ANCESTOR_PROPERTY_KEY, index) : null;
+        }
+
+        private Clause notNull(String propertyName) {
+            key.add(propertyName);
+            return compile ? new NotNullClause(propertyName) : null;
+        }
+
+        private static Query.Filter getFilter(Query gaeQuery) {
+            List<Query.Filter> filters = getAllFilterPredicates(gaeQuery);
+            if (filters.size() == 1) {
+                return filters.get(0);
+            } else if (filters.size() > 1) {
+                return Query.CompositeFilterOperator.and(filters);
+            } else {
+                return null;
+            }
+        }
+
+        @SuppressWarnings("deprecation")
+        private static List<Query.Filter> getAllFilterPredicates(Query gaeQuery) {
+            List<Query.Filter> list = new ArrayList<Query.Filter>();
+            if (gaeQuery.getFilter() != null) {
+                list.add(gaeQuery.getFilter());
+            }
+            list.addAll(gaeQuery.getFilterPredicates());
+            return list;
+        }
+    }
+}
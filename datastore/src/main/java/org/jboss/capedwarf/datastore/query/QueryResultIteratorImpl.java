@@ -30,6 +30,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.Index;
+import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.QueryResultIterator;
 
 /**
@@ -39,12 +40,15 @@ import com.google.appengine.api.datastore.QueryResultIterator;
 class QueryResultIteratorImpl<E> implements QueryResultIterator<E> {
     private final Iterator<E> delegate;
     private final LazySize size;
+    private final Query query;
     private AtomicInteger current;
+    private volatile E last;
 
-    public QueryResultIteratorImpl(Iterator<E> iterator, LazySize size) {
+    public QueryResultIteratorImpl(Iterator<E> iterator, LazySize size, Query query, int first) {
         this.delegate = iterator;
         this.size = size;
-        this.current = new AtomicInteger();
+        this.query = query;
+        this.current = new AtomicInteger(first);
     }
 
     public boolean hasNext() {
@@ -53,7 +57,7 @@ class QueryResultIteratorImpl<E> implements QueryResultIterator<E> {
 
     public E next() {
         current.incrementAndGet();
-        return delegate.next();
+        return (last = delegate.next());
     }
 
     public void remove() {
@@ -62,7 +66,7 @@ class QueryResultIteratorImpl<E> implements QueryResultIterator<E> {
     }
 
     public synchronized Cursor getCursor() {
-        final Cursor cursor = CapedwarfCursorHelper.createCursor(current, size);
+        final Cursor cursor = CapedwarfCursorHelper.createCursor(current, size, KeysetPosition.encode(query, last));
         current = new AtomicInteger(current.get());
         return cursor;
     }
@@ -22,20 +22,34 @@
 
 package org.jboss.capedwarf.datastore.query;
 
-import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.Query;
-
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Projection;
+import com.google.appengine.api.datastore.Query;
+import com.google.common.collect.AbstractIterator;
+import org.infinispan.query.CacheQuery;
+
 /**
+ * Handles IN filters without sort.
+ *
+ * Like GAE, the query is split into one sub-query per combination of IN values,
+ * each sub-query is ordered by key and they are streamed in IN values order,
+ * skipping entities (or projection rows) already returned by a previous sub-query,
+ * all sub-query iterators are closed once the merge ends.
+ *
  * @author <a href="mailto:mluksa@redhat.com">Marko Luksa</a>
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
 public class QueryResultProcessor {
 
@@ -47,23 +61,6 @@ public class QueryResultProcessor {
         this.inPredicates = getInPredicates(query);
     }
 
-    public List<Entity> process(List<Entity> list) {
-        if (isProcessingNeeded()) {
-            return sort(list);
-        } else {
-            return list;
-        }
-    }
-
-    public Iterator<Entity> process(Iterator<Entity> iterator) {
-        if (isProcessingNeeded()) {
-            List<Entity> list = toList(iterator);
-            return sort(list).iterator();
-        } else {
-            return iterator;
-        }
-    }
-
     public boolean isProcessingNeeded() {
         return !inPredicates.isEmpty() && query.getSortPredicates().isEmpty();
     }
@@ -76,13 +73,18 @@ public class QueryResultProcessor {
         return new ArrayList<String>(set);
     }
 
-    private List<Entity> toList(Iterator<Entity> iterator) {
-        List<Entity> list = new ArrayList<Entity>();
-        while (iterator.hasNext()) {
-            Entity entity = iterator.next();
-            list.add(entity);
-        }
-        return list;
+    /**
+     * Stream results of all sub-queries.
+     *
+     * @param holder    the query holder
+     * @param deadline  the query deadline, can be null
+     * @param first     the number of results to skip
+     * @param max       the max number of results, null if unlimited
+     * @param chunkSize the chunk size
+     * @return merged results
+     */
+    Iterator<Object> merge(QueryHolder holder, QueryDeadline deadline, int first, Integer max, Integer chunkSize) {
+        return new MergeIterator(holder, deadline, first, max, chunkSize);
     }
 
     /*
@@ -101,39 +103,58 @@ public class QueryResultProcessor {
                 a=2 b=bla
 
      */
-    private List<Entity> sort(List<Entity> list) {
-        Collections.sort(list, new Comparator<Entity>() {
-            public int compare(Entity e1, Entity e2) {
-                for (Query.FilterPredicate inPredicate : inPredicates) {
-                    String propertyName = inPredicate.getPropertyName();
-                    List<Object> inElements = (List<Object>) inPredicate.getValue();
-
-                    Object v1 = e1.getProperty(propertyName);
-                    Object v2 = e2.getProperty(propertyName);
-
-                    int i1 = inElements.indexOf(v1);
-                    int i2 = inElements.indexOf(v2);
+    private Query createSubQuery(Map<Query.FilterPredicate, Object> values) {
+        final Query subQuery;
+        final String previous = NamespaceManager.get();
+        NamespaceManager.set(query.getNamespace());
+        try {
+            subQuery = new Query(query.getKind(), query.getAncestor());
+        } finally {
+            NamespaceManager.set(previous);
+        }
 
-                    if (i1 != i2) {
-                        return i1 - i2;
-                    }
-                }
-                return 0;
-            }
-        });
-        removeSortProperties(list);
-        return list;
-    }
+        List<Query.Filter> filters = new ArrayList<Query.Filter>();
+        if (query.getFilter() != null) {
+            filters.add(replaceIn(query.getFilter(), values));
+        }
+        //noinspection deprecation
+        for (Query.FilterPredicate predicate : query.getFilterPredicates()) {
+            filters.add(replaceIn(predicate, values));
+        }
+        if (filters.size() == 1) {
+            subQuery.setFilter(filters.get(0));
+        } else if (filters.size() > 1) {
+            subQuery.setFilter(Query.CompositeFilterOperator.and(filters));
+        }
 
-    private void removeSortProperties(List<Entity> list) {
-        for (Entity entity : list) {
-            removeSortProperties(entity);
+        for (Projection projection : query.getProjections()) {
+            subQuery.addProjection(projection);
         }
+        if (query.isKeysOnly()) {
+            subQuery.setKeysOnly();
+        }
+        subQuery.setDistinct(query.getDistinct());
+        subQuery.addSort(Entity.KEY_RESERVED_PROPERTY);
+        return subQuery;
     }
 
-    private void removeSortProperties(Entity entity) {
-        for (String propertyName : Projections.getPropertiesRequiredOnlyForSorting(query)) {
-            entity.removeProperty(propertyName);
+    private static Query.Filter replaceIn(Query.Filter filter, Map<Query.FilterPredicate, Object> values) {
+        if (filter instanceof Query.CompositeFilter) {
+            Query.CompositeFilter compositeFilter = (Query.CompositeFilter) filter;
+            List<Query.Filter> subFilters = new ArrayList<Query.Filter>();
+            for (Query.Filter subFilter : compositeFilter.getSubFilters()) {
+                subFilters.add(replaceIn(subFilter, values));
+            }
+            if (compositeFilter.getOperator() == Query.CompositeFilterOperator.AND) {
+                return Query.CompositeFilterOperator.and(subFilters);
+            } else {
+                return Query.CompositeFilterOperator.or(subFilters);
+            }
+        } else if (values.containsKey(filter)) {
+            Query.FilterPredicate predicate = (Query.FilterPredicate) filter;
+            return new Query.FilterPredicate(predicate.getPropertyName(), Query.FilterOperator.EQUAL, values.get(filter));
+        } else {
+            return filter;
         }
     }
 
@@ -160,4 +181,117 @@ public class QueryResultProcessor {
             }
         }
     }
+
+    private class MergeIterator extends AbstractIterator<Object> {
+        private final QueryHolder holder;
+        private final QueryDeadline deadline;
+        private final int first;
+        private final Integer max;
+        private final Integer chunkSize;
+
+        private final List<List<Object>> values = new ArrayList<List<Object>>();
+        private final int[] positions; // current IN value per predicate, last one changes fastest
+        private boolean exhausted;
+        private final List<String> projected = new ArrayList<String>();
+        private final Set<Object> seen = new HashSet<Object>();
+        private EntityLoader loader;
+        private Iterator<Object> current;
+        private int skipped;
+        private int returned;
+
+        private MergeIterator(QueryHolder holder, QueryDeadline deadline, int first, Integer max, Integer chunkSize) {
+            this.holder = holder;
+            this.deadline = deadline;
+            this.first = first;
+            this.max = max;
+            this.chunkSize = chunkSize;
+            this.positions = new int[inPredicates.size()];
+            for (Query.FilterPredicate predicate : inPredicates) {
+                List<Object> list = new ArrayList<Object>((Collection<?>) predicate.getValue());
+                if (list.isEmpty()) {
+                    exhausted = true;
+                }
+                values.add(list);
+            }
+            for (Projection projection : query.getProjections()) {
+                projected.add(Projections.getPropertyName(projection));
+            }
+        }
+
+        protected Object computeNext() {
+            if (max != null && returned >= max) {
+                closeCurrent();
+                return endOfData();
+            }
+            while (true) {
+                while (current == null || current.hasNext() == false) {
+                    closeCurrent();
+                    if (exhausted) {
+                        return endOfData();
+                    }
+                    current = nextSubQuery();
+                }
+                Object result = current.next();
+                if (seen.add(identity((Entity) result))) {
+                    if (skipped < first) {
+                        skipped++;
+                    } else {
+                        returned++;
+                        return result;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Same entity can be in more sub-queries' results.
+         * A projection query returns a row per combination of (multi-valued) projected values.
+         */
+        private Object identity(Entity entity) {
+            if (projected.isEmpty()) {
+                return entity.getKey();
+            }
+            List<Object> identity = new ArrayList<Object>(projected.size() + 1);
+            identity.add(entity.getKey());
+            for (String propertyName : projected) {
+                identity.add(entity.getProperty(propertyName));
+            }
+            return identity;
+        }
+
+        private void closeCurrent() {
+            if (loader != null) {
+                loader.close();
+                loader = null;
+                current = null;
+            }
+        }
+
+        private Iterator<Object> nextSubQuery() {
+            Map<Query.FilterPredicate, Object> combination = new IdentityHashMap<Query.FilterPredicate, Object>();
+            for (int i = 0; i < positions.length; i++) {
+                combination.put(inPredicates.get(i), values.get(i).get(positions[i]));
+            }
+            advance();
+
+            Query subQuery = createSubQuery(combination);
+            CacheQuery cacheQuery = holder.createCacheQuery(subQuery, deadline);
+            if (max != null) {
+                // no single sub-query can contribute more
+                cacheQuery.maxResults((int) Math.min((long) first + max, Integer.MAX_VALUE));
+            }
+            loader = new EntityLoader(subQuery, cacheQuery, deadline);
+            return loader.getIterator(chunkSize);
+        }
+
+        private void advance() {
+            for (int i = positions.length - 1; i >= 0; i--) {
+                if (++positions[i] < values.get(i).size()) {
+                    return;
+                }
+                positions[i] = 0;
+            }
+            exhausted = true;
+        }
+    }
 }
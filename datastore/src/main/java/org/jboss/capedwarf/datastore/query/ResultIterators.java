@@ -0,0 +1,283 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.datastore.query;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.collect.ForwardingIterator;
+import org.infinispan.query.ResultIterator;
+import org.jboss.capedwarf.shared.components.AppIdFactory;
+
+/**
+ * Tracks open lazy result iterators, which hold an index reader until closed.
+ *
+ * An iterator is closed once exhausted, at the end of the request which opened it,
+ * after being idle for jboss.capedwarf.datastore.iteratorIdleTimeout ms, or on app undeploy.
+ * Using an iterator closed by any but the first throws IllegalStateException.
+ * The latter three are counted as leaked, per app, see #getLeakedCount.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public final class ResultIterators {
+    private static final Logger log = Logger.getLogger(ResultIterators.class.getName());
+
+    private static final long IDLE_TIMEOUT = Long.getLong("jboss.capedwarf.datastore.iteratorIdleTimeout", 60000L);
+
+    private static final ConcurrentMap<String, ResultIterators> apps = new ConcurrentHashMap<>();
+    // only set within a request, see openScope
+    private static final ThreadLocal<Set<TrackedIterator>> scopes = new ThreadLocal<>();
+
+    private final String appId;
+    private final Set<TrackedIterator> open = newSet();
+    private final AtomicBoolean reaping = new AtomicBoolean();
+    private final AtomicLong leaked = new AtomicLong();
+    private volatile ScheduledExecutorService reaper;
+
+    private ResultIterators(String appId) {
+        this.appId = appId;
+    }
+
+    private static Set<TrackedIterator> newSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<TrackedIterator, Boolean>());
+    }
+
+    private static ResultIterators getInstance(String appId) {
+        ResultIterators iterators = apps.get(appId);
+        if (iterators == null) {
+            iterators = new ResultIterators(appId);
+            ResultIterators previous = apps.putIfAbsent(appId, iterators);
+            if (previous != null) {
+                iterators = previous;
+            }
+        }
+        return iterators;
+    }
+
+    /**
+     * Track result iterator.
+     *
+     * @param iterator the result iterator
+     * @return tracked iterator
+     */
+    static Iterator<Object> track(ResultIterator iterator) {
+        return getInstance(AppIdFactory.getAppId()).doTrack(iterator);
+    }
+
+    private Iterator<Object> doTrack(ResultIterator iterator) {
+        Set<TrackedIterator> scope = scopes.get();
+        TrackedIterator tracked = new TrackedIterator(iterator, this, scope);
+        if (scope != null) {
+            scope.add(tracked);
+        }
+        open.add(tracked);
+        startReaper();
+        return tracked;
+    }
+
+    /**
+     * Close iterator early, e.g. when query's deadline is exceeded.
+     *
+     * @param iterator the iterator, ignored if not a result iterator
+     */
+    static void close(Iterator<?> iterator) {
+        if (iterator instanceof TrackedIterator) {
+            ((TrackedIterator) iterator).close(null);
+        } else if (iterator instanceof ResultIterator) {
+            ((ResultIterator) iterator).close();
+        }
+    }
+
+    /**
+     * Number of app's currently open iterators.
+     *
+     * @param appId the app id
+     * @return open iterators count
+     */
+    public static int getOpenCount(String appId) {
+        final ResultIterators iterators = apps.get(appId);
+        return (iterators != null) ? iterators.open.size() : 0;
+    }
+
+    /**
+     * Number of app's iterators closed before being exhausted or closed by the query itself.
+     *
+     * @param appId the app id
+     * @return leaked iterators count
+     */
+    public static long getLeakedCount(String appId) {
+        final ResultIterators iterators = apps.get(appId);
+        return (iterators != null) ? iterators.leaked.get() : 0;
+    }
+
+    /**
+     * Start tracking iterators opened by the current thread, e.g. at the start of the request.
+     */
+    public static void openScope() {
+        scopes.set(newSet());
+    }
+
+    /**
+     * Close iterators still open by the current thread, e.g. at the end of the request.
+     */
+    public static void closeCurrentScope() {
+        Set<TrackedIterator> scope = scopes.get();
+        if (scope != null) {
+            scopes.remove();
+            for (TrackedIterator iterator : scope) {
+                iterator.leak("request end");
+            }
+        }
+    }
+
+    /**
+     * Close app's open iterators and stop its reaper, on app undeploy.
+     *
+     * @param appId the app id
+     */
+    public static void release(String appId) {
+        ResultIterators iterators = apps.remove(appId);
+        if (iterators != null) {
+            ScheduledExecutorService executor = iterators.reaper;
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            for (TrackedIterator iterator : iterators.open) {
+                iterator.leak("undeploy");
+            }
+        }
+    }
+
+    private void startReaper() {
+        if (IDLE_TIMEOUT > 0 && reaping.compareAndSet(false, true)) {
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CapeDwarf-ResultIterator-Reaper-" + appId);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            long period = Math.max(IDLE_TIMEOUT / 2, 1000L);
+            executor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    long now = System.currentTimeMillis();
+                    for (TrackedIterator iterator : open) {
+                        if (now - iterator.lastAccess > IDLE_TIMEOUT) {
+                            iterator.leak("idle timeout");
+                        }
+                    }
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+            reaper = executor;
+            // released meanwhile
+            if (apps.get(appId) != this) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static class TrackedIterator extends ForwardingIterator<Object> {
+        private final ResultIterator delegate;
+        private final ResultIterators owner;
+        private final Set<TrackedIterator> scope;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile String closedOn;
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        private TrackedIterator(ResultIterator delegate, ResultIterators owner, Set<TrackedIterator> scope) {
+            this.delegate = delegate;
+            this.owner = owner;
+            this.scope = scope;
+        }
+
+        @Override
+        protected Iterator<Object> delegate() {
+            return delegate;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (closed.get()) {
+                checkLeaked();
+                return false;
+            }
+            lastAccess = System.currentTimeMillis();
+            boolean hasNext = delegate.hasNext();
+            if (hasNext == false) {
+                close(null);
+            }
+            return hasNext;
+        }
+
+        @Override
+        public Object next() {
+            if (closed.get()) {
+                checkLeaked();
+            }
+            lastAccess = System.currentTimeMillis();
+            return delegate.next();
+        }
+
+        private void checkLeaked() {
+            String reason = closedOn;
+            if (reason != null) {
+                throw new IllegalStateException("Query results are no longer available, iterator was closed on " + reason + ".");
+            }
+        }
+
+        private boolean close(String reason) {
+            if (closed.compareAndSet(false, true)) {
+                closedOn = reason;
+                owner.open.remove(this);
+                if (scope != null) {
+                    scope.remove(this);
+                }
+                try {
+                    delegate.close();
+                } catch (Throwable t) {
+                    log.log(Level.WARNING, "Cannot close result iterator.", t);
+                }
+                return true;
+            }
+            return false;
+        }
+
+        private void leak(String reason) {
+            if (close(reason)) {
+                long count = owner.leaked.incrementAndGet();
+                log.fine("Closed unfinished result iterator on " + reason + ", leaked so far: " + count);
+            }
+        }
+    }
+}
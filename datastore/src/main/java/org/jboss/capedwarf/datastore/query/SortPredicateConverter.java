@@ -24,19 +24,43 @@
 
 package org.jboss.capedwarf.datastore.query;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Query;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
-
-import java.util.ArrayList;
-import java.util.List;
+import org.hibernate.search.indexes.IndexReaderAccessor;
 
 /**
  * Converts GAE's Query.SortPredicates to Lucene's Sort.
  *
+ * Whether a property sorts numerically is checked against the index on every conversion,
+ * so a property that just got its first non-numeric value is never sorted numerically.
+ *
  * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
 public class SortPredicateConverter {
+    private static final Logger log = Logger.getLogger(SortPredicateConverter.class.getName());
+
+    private final IndexReaderAccessor readerAccessor;
+
+    public SortPredicateConverter() {
+        this(null);
+    }
+
+    /**
+     * @param readerAccessor used to check if properties are purely numeric, can be null
+     */
+    public SortPredicateConverter(IndexReaderAccessor readerAccessor) {
+        this.readerAccessor = readerAccessor;
+    }
 
     public Sort convert(List<Query.SortPredicate> sortPredicates) {
         return new Sort(toArray(convertToSortFields(sortPredicates)));
@@ -48,14 +72,41 @@ public class SortPredicateConverter {
 
     private List<SortField> convertToSortFields(List<Query.SortPredicate> sortPredicates) {
         List<SortField> sortFields = new ArrayList<SortField>();
-        for (Query.SortPredicate sortPredicate : sortPredicates) {
-            sortFields.add(convertToSortField(sortPredicate));
+        IndexReader reader = null;
+        try {
+            for (Query.SortPredicate sortPredicate : sortPredicates) {
+                boolean reverse = sortPredicate.getDirection() == Query.SortDirection.DESCENDING;
+                String propertyName = sortPredicate.getPropertyName();
+                SortField numeric = null;
+                if (isNumericCandidate(propertyName)) {
+                    if (reader == null) {
+                        reader = readerAccessor.open(Entity.class);
+                    }
+                    String group = readGroup(reader, propertyName);
+                    if (group != null) {
+                        numeric = NumericFields.sortField(group, propertyName, reverse);
+                    }
+                }
+                sortFields.add(numeric != null ? numeric : new SortField(propertyName, SortField.STRING, reverse));
+            }
+        } finally {
+            if (reader != null) {
+                readerAccessor.close(reader);
+            }
         }
         return sortFields;
     }
 
-    private SortField convertToSortField(Query.SortPredicate sortPredicate) {
-        boolean reverse = sortPredicate.getDirection() == Query.SortDirection.DESCENDING;
-        return new SortField(sortPredicate.getPropertyName(), SortField.STRING, reverse);   // TODO: find appropriate SortField type
+    private boolean isNumericCandidate(String propertyName) {
+        return readerAccessor != null && NumericFields.isEnabled() && Entity.KEY_RESERVED_PROPERTY.equals(propertyName) == false;
+    }
+
+    private static String readGroup(IndexReader reader, String propertyName) {
+        try {
+            return NumericFields.sortGroup(reader, propertyName);
+        } catch (IOException e) {
+            log.log(Level.FINE, "Cannot check numeric sort on " + propertyName + ", using string sort.", e);
+            return null;
+        }
     }
 }
@@ -36,18 +36,24 @@ import static org.jboss.capedwarf.datastore.stats.AbstractUpdate.Signum.PLUS;
  */
 public abstract class AbstractEagerListener extends AbstractPutRemoveCacheListener {
     protected void onPrePut(Entity trigger) {
-        executeCallables(trigger, MINUS);
+        update(trigger, MINUS);
     }
 
     protected void onPostPut(Entity trigger) {
-        executeCallables(trigger, PLUS);
+        update(trigger, PLUS);
     }
 
     protected void onPreRemove(Entity trigger) {
-        executeCallables(trigger, MINUS);
+        update(trigger, MINUS);
     }
 
-    private void executeCallables(Entity trigger, AbstractUpdate.Signum signum) {
+    /**
+     * Update stats for trigger.
+     *
+     * @param trigger the trigger entity
+     * @param signum the signum
+     */
+    protected void update(Entity trigger, AbstractUpdate.Signum signum) {
         executeCallable(new TotalStatsUpdate(trigger, signum));
         executeCallable(new NsTotalStatsUpdate(trigger, signum));
         executeCallable(new KindStatsUpdate(trigger, signum));
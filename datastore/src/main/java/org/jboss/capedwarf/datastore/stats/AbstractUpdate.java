@@ -42,6 +42,10 @@ public abstract class AbstractUpdate implements Update {
         private Signum(int x) {
             this.x = x;
         }
+
+        int value() {
+            return x;
+        }
     }
 
     protected final Entity trigger;
@@ -22,13 +22,151 @@
 
 package org.jboss.capedwarf.datastore.stats;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.appengine.api.datastore.Entity;
 import org.infinispan.notifications.Listener;
+import org.jboss.capedwarf.common.app.Application;
+import org.jboss.capedwarf.common.infinispan.InfinispanUtils;
+import org.jboss.capedwarf.shared.config.CacheName;
 
 /**
  * Async Eager Listener.
  *
+ * Deltas are accumulated per node and per stats entity,
+ * and periodically flushed as a single merged update per stats entity.
+ * On app undeploy pending deltas are flushed, the listener removed and its flush thread stopped.
+ *
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
 @Listener(sync = false)
 public class AsyncEagerListener extends AbstractEagerListener {
+    private static final long FLUSH_INTERVAL = Long.getLong("jboss.capedwarf.datastore.statsFlushInterval", 500L);
+
+    private static final ConcurrentMap<String, AsyncEagerListener> listeners = new ConcurrentHashMap<>();
+
+    private final String appId;
+    private final ScheduledExecutorService scheduler;
+    // adds share the read lock, flush swaps the deltas under write lock
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private ConcurrentMap<List<String>, Delta> deltas = new ConcurrentHashMap<>();
+
+    private final Runnable flush = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    AsyncEagerListener() {
+        this.appId = Application.getAppId();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "CapeDwarf-Stats-Flush-" + appId);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final AsyncEagerListener previous = listeners.put(appId, this);
+        if (previous != null) {
+            previous.stop();
+        }
+    }
+
+    /**
+     * Flush pending deltas and stop the app's listener, on app undeploy.
+     *
+     * @param appId the app id
+     */
+    public static void release(String appId) {
+        final AsyncEagerListener listener = listeners.remove(appId);
+        if (listener != null) {
+            InfinispanUtils.getCache(appId, CacheName.DEFAULT).removeListener(listener);
+            listener.stop();
+        }
+    }
+
+    private void stop() {
+        scheduler.shutdownNow();
+        flush();
+    }
+
+    @Override
+    protected void update(Entity trigger, AbstractUpdate.Signum signum) {
+        final String namespace = trigger.getNamespace();
+        final String kind = trigger.getKind();
+        final long count = signum.value();
+        final long bytes = count * AbstractUpdate.countBytes(trigger);
+
+        lock.readLock().lock();
+        try {
+            add(Arrays.asList("__Stat_Total__", "", null), count, bytes);
+            add(Arrays.asList("__Stat_Ns_Total__", namespace, null), count, bytes);
+            add(Arrays.asList("__Stat_Kind__", "", kind), count, bytes);
+            add(Arrays.asList("__Stat_Ns_Kind__", namespace, kind), count, bytes);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                scheduler.schedule(flush, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // stopped, flush right away
+                flush();
+            }
+        }
+    }
+
+    private void add(List<String> key, long count, long bytes) {
+        Delta delta = deltas.get(key);
+        if (delta == null) {
+            delta = new Delta();
+            Delta previous = deltas.putIfAbsent(key, delta);
+            if (previous != null) {
+                delta = previous;
+            }
+        }
+        delta.count.addAndGet(count);
+        delta.bytes.addAndGet(bytes);
+    }
+
+    private void flush() {
+        final Map<List<String>, Delta> current;
+        lock.writeLock().lock();
+        try {
+            current = deltas;
+            deltas = new ConcurrentHashMap<>();
+            scheduled.set(false);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        for (Map.Entry<List<String>, Delta> entry : current.entrySet()) {
+            final List<String> key = entry.getKey();
+            final long count = entry.getValue().count.get();
+            final long bytes = entry.getValue().bytes.get();
+            if (count != 0 || bytes != 0) {
+                executeCallable(new MergedStatsUpdate(key.get(0), key.get(1), key.get(2), count, bytes));
+            }
+        }
+    }
+
+    private static class Delta {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+    }
 }
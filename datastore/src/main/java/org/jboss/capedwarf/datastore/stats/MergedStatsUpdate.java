@@ -0,0 +1,101 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.datastore.stats;
+
+import java.util.concurrent.Callable;
+
+import com.google.appengine.api.datastore.Entity;
+
+/**
+ * Merged stats update, applies accumulated count and bytes deltas in one go.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class MergedStatsUpdate implements MultipleUpdate {
+    private static final long serialVersionUID = 1L;
+
+    private final String statsKind;
+    private final String statsNamespace;
+    private final String kindName;
+    private final long count;
+    private final long bytes;
+
+    /**
+     * Ctor.
+     *
+     * @param statsKind the stats kind
+     * @param statsNamespace the stats namespace
+     * @param kindName the trigger kind, null for total stats
+     * @param count the count delta
+     * @param bytes the bytes delta
+     */
+    MergedStatsUpdate(String statsKind, String statsNamespace, String kindName, long count, long bytes) {
+        this.statsKind = statsKind;
+        this.statsNamespace = statsNamespace;
+        this.kindName = kindName;
+        this.count = count;
+        this.bytes = bytes;
+    }
+
+    public String statsNamespace() {
+        return statsNamespace;
+    }
+
+    public String statsKind() {
+        return statsKind;
+    }
+
+    public String triggerKind() {
+        return kindName;
+    }
+
+    public void initialize(Entity entity) {
+        entity.setProperty("count", 0L);
+        entity.setProperty("bytes", 0L);
+    }
+
+    public Entity update(Entity entity) {
+        Entity updated = new Entity(entity.getKind());
+        updated.setProperty("timestamp", System.currentTimeMillis());
+        Long currentCount = AbstractUpdate.toLong(entity, "count");
+        updated.setProperty("count", (currentCount != null ? currentCount : 0L) + count);
+        Long currentBytes = AbstractUpdate.toLong(entity, "bytes");
+        updated.setProperty("bytes", (currentBytes != null ? currentBytes : 0L) + bytes);
+        if (kindName != null) {
+            updated.setProperty("kind_name", kindName);
+        }
+        return updated;
+    }
+
+    public Callable<Entity> toCallable() {
+        return (kindName != null) ? new UpdateKeysTask(this) : new UpdateKeyTask(this);
+    }
+
+    public Object taskKey() {
+        return statsKind;
+    }
+
+    public boolean block() {
+        return false;
+    }
+}
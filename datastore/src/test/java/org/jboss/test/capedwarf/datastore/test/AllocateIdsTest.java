@@ -22,8 +22,15 @@
 
 package org.jboss.test.capedwarf.datastore.test;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.KeyRange;
 import org.jboss.arquillian.junit.Arquillian;
 import org.jboss.test.capedwarf.common.support.All;
@@ -75,6 +82,69 @@ public class AllocateIdsTest extends SimpleTestBase {
         Assert.assertTrue(DatastoreService.KeyRangeState.COLLISION == state2 || DatastoreService.KeyRangeState.CONTENTION == state2);
     }
 
+    @Test
+    public void testExplicitIdsAreNotReused() throws Exception {
+        final String kind = "ExplicitKind";
+
+        // enough to use most of the first block, so the next one is prefetched
+        long max = 0;
+        for (Key key : service.put(newEntities(kind, 90))) {
+            max = Math.max(max, key.getId());
+        }
+
+        // explicit ids over the rest of current block and into the prefetched one
+        Set<Long> explicit = new HashSet<>();
+        List<Entity> entities = new ArrayList<>();
+        for (long id = max + 1; id <= max + 150; id++) {
+            Entity entity = new Entity(KeyFactory.createKey(kind, id));
+            entity.setProperty("explicit", true);
+            entities.add(entity);
+            explicit.add(id);
+        }
+        service.put(entities);
+
+        for (Key key : service.put(newEntities(kind, 200))) {
+            Assert.assertFalse("Reused explicit id " + key.getId(), explicit.contains(key.getId()));
+        }
+        for (Long id : explicit) {
+            Assert.assertEquals(Boolean.TRUE, service.get(KeyFactory.createKey(kind, id)).getProperty("explicit"));
+        }
+    }
+
+    @Test
+    public void testAllocatedIdsPutKeepsAutoIdsUnique() throws Exception {
+        final String kind = "AllocatedKind";
+
+        Set<Long> ids = new HashSet<>();
+        for (Key key : service.put(newEntities(kind, 10))) {
+            Assert.assertTrue(ids.add(key.getId()));
+        }
+
+        // allocated ids are never inside a leased block, so they are safe to put
+        KeyRange range = service.allocateIds(kind, 5);
+        List<Entity> entities = new ArrayList<>();
+        for (Key key : range) {
+            entities.add(new Entity(key));
+            Assert.assertTrue(ids.add(key.getId()));
+        }
+        service.put(entities);
+        // re-put of an existing key rebuilt from its string form
+        Key existing = KeyFactory.stringToKey(KeyFactory.keyToString(range.getStart()));
+        service.put(new Entity(existing));
+
+        for (Key key : service.put(newEntities(kind, 200))) {
+            Assert.assertTrue("Duplicate id " + key.getId(), ids.add(key.getId()));
+        }
+    }
+
+    private static List<Entity> newEntities(String kind, int n) {
+        List<Entity> entities = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            entities.add(new Entity(kind));
+        }
+        return entities;
+    }
+
     private long getInitialValue(String kind) {
         return service.allocateIds(kind, 1L).getStart().getId();
     }
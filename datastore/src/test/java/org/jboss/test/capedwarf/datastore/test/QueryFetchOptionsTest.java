@@ -148,6 +148,17 @@ public class QueryFetchOptionsTest extends QueryTestBase {
         assertEquals(asList(foo5), results);
     }
 
+    @Test
+    public void testStartCursorAfterInsertBeforePosition() {
+        QueryResultList<Entity> results = executeQuery(withLimit(3));
+        Cursor cursor = Cursor.fromWebSafeString(results.getCursor().toWebSafeString());    // points to foo4
+
+        createEntity("Foo", 6).withProperty("bar", "aa").store();   // sorts before foo4
+
+        results = executeQuery(withStartCursor(cursor));
+        assertEquals(asList(foo4, foo5), results);
+    }
+
     @Test
     public void testEndCursor() {
         QueryResultList<Entity> results = executeQuery(withLimit(3));
@@ -0,0 +1,136 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.test.capedwarf.datastore.test;
+
+import java.util.List;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Rating;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.test.capedwarf.common.support.All;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+
+import static com.google.appengine.api.datastore.Query.FilterOperator.GREATER_THAN;
+import static com.google.appengine.api.datastore.Query.FilterOperator.GREATER_THAN_OR_EQUAL;
+import static com.google.appengine.api.datastore.Query.FilterOperator.LESS_THAN;
+import static com.google.appengine.api.datastore.Query.FilterOperator.LESS_THAN_OR_EQUAL;
+import static com.google.appengine.api.datastore.Query.SortDirection.ASCENDING;
+import static com.google.appengine.api.datastore.Query.SortDirection.DESCENDING;
+
+/**
+ * Ranges and sorts with numeric (trie encoded) fields enabled.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+@RunWith(Arquillian.class)
+@Category(All.class)
+public class QueryNumericFieldsTest extends QueryTestBase {
+    private static final String NUMERIC_FIELDS = "jboss.capedwarf.datastore.numericFields";
+
+    private String previous;
+
+    @Before
+    public void enableNumericFields() {
+        previous = System.setProperty(NUMERIC_FIELDS, "true");
+    }
+
+    @After
+    public void restoreNumericFields() {
+        if (previous != null) {
+            System.setProperty(NUMERIC_FIELDS, previous);
+        } else {
+            System.clearProperty(NUMERIC_FIELDS);
+        }
+    }
+
+    @Test
+    public void testLongRanges() {
+        // across the trie precision steps, and around the sign
+        testInequalityQueries(-1000000000000L, -1L, 1L);
+        testInequalityQueries(0L, 1L << 20, 1L << 40);
+        testInequalityQueries(Long.MIN_VALUE + 1, 0L, Long.MAX_VALUE);
+    }
+
+    @Test
+    public void testDoubleRanges() {
+        testInequalityQueries(-2.5d, 0.5d, 1e10d);
+        testInequalityQueries(1.0d, 1.0000001d, 1.0000002d);
+    }
+
+    @Test
+    public void testDateAndRatingRanges() {
+        testInequalityQueries(createDate(1969, 12, 31), createDate(2011, 1, 1), createDate(2011, 1, 2));
+        testInequalityQueries(new Rating(0), new Rating(50), new Rating(100));
+    }
+
+    @Test
+    public void testRangesOverMixedTypes() {
+        Entity negative = storeTestEntityWithSingleProperty(-5L);
+        Entity positive = storeTestEntityWithSingleProperty(3L);
+        Entity string = storeTestEntityWithSingleProperty("x");
+        Entity fraction = storeTestEntityWithSingleProperty(2.5d);
+        Entity nullEntity = storeTestEntityWithSingleProperty(null);
+
+        // null < numbers < strings < doubles
+        assertSet(whenFilteringBy(GREATER_THAN, 0L), queryReturns(positive, string, fraction));
+        assertSet(whenFilteringBy(LESS_THAN_OR_EQUAL, -5L), queryReturns(nullEntity, negative));
+        assertSet(whenFilteringBy(GREATER_THAN_OR_EQUAL, 2.5d), queryReturns(fraction));
+        assertSet(whenFilteringBy(LESS_THAN, 2.5d), queryReturns(nullEntity, negative, positive, string));
+    }
+
+    @Test
+    public void testNumericSortIsNotLexicographic() {
+        Entity ten = storeTestEntityWithSingleProperty(10L);
+        Entity minusTwo = storeTestEntityWithSingleProperty(-2L);
+        Entity two = storeTestEntityWithSingleProperty(2L);
+        Entity big = storeTestEntityWithSingleProperty(1L << 40);
+
+        assertList(whenSortingByTheSingleProperty(ASCENDING), containsResultsInOrder(minusTwo, two, ten, big));
+        assertList(whenSortingByTheSingleProperty(DESCENDING), containsResultsInOrder(big, ten, two, minusTwo));
+    }
+
+    @Test
+    public void testSortSwitchesToMixedOrderingRightAway() {
+        Entity ten = storeTestEntityWithSingleProperty(10L);
+        Entity two = storeTestEntityWithSingleProperty(2L);
+        assertList(whenSortingByTheSingleProperty(ASCENDING), containsResultsInOrder(two, ten));
+
+        // first non-numeric value, the very next sort must use the cross type ordering
+        Entity string = storeTestEntityWithSingleProperty("a");
+        assertList(whenSortingByTheSingleProperty(ASCENDING), containsResultsInOrder(two, ten, string));
+        assertList(whenSortingByTheSingleProperty(DESCENDING), containsResultsInOrder(string, ten, two));
+
+        Entity fraction = storeTestEntityWithSingleProperty(1.5d);
+        assertList(whenSortingByTheSingleProperty(ASCENDING), containsResultsInOrder(two, ten, string, fraction));
+    }
+
+    private List<Entity> whenSortingByTheSingleProperty(Query.SortDirection direction) {
+        Query query = createQuery().addSort(SINGLE_PROPERTY_NAME, direction);
+        return service.prepare(query).asList(withDefaults());
+    }
+}
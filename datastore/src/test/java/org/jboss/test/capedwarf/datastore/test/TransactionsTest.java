@@ -25,6 +25,7 @@ package org.jboss.test.capedwarf.datastore.test;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.ConcurrentModificationException;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -378,6 +379,63 @@ public class TransactionsTest extends SimpleTestBase {
         }
     }
 
+    @Test
+    public void testReadDoesNotClaimEntityGroup() throws Exception {
+        if (isJBossImpl(service) == false)
+            return;
+
+        Key key = service.put(new Entity("EGReadTest"));
+        Transaction reader = service.beginTransaction();
+        try {
+            service.get(reader, key);
+
+            Transaction writer = service.beginTransaction();
+            try {
+                Entity entity = new Entity(key);
+                entity.setProperty("counter", 1L);
+                service.put(writer, entity);
+                writer.commit();
+            } finally {
+                if (writer.isActive()) {
+                    writer.rollback();
+                }
+            }
+        } finally {
+            reader.rollback();
+            service.delete(key);
+        }
+    }
+
+    @Test
+    public void testWriteClaimsEntityGroupsReadBefore() throws Exception {
+        if (isJBossImpl(service) == false)
+            return;
+
+        Key root = service.put(new Entity("EGWriteTest"));
+        Key child = service.put(new Entity("EGWriteTest", root));
+        Key grandChild = service.put(new Entity("EGWriteTest", child));
+        Transaction first = service.beginTransaction();
+        try {
+            // same group, root resolved through the memoized ancestors
+            service.get(first, grandChild);
+            service.get(first, child);
+            service.put(first, new Entity("EGWriteTest", root));
+
+            Transaction second = service.beginTransaction();
+            try {
+                service.put(second, new Entity("EGWriteTest", grandChild));
+                fail("Expected ConcurrentModificationException");
+            } catch (ConcurrentModificationException e) {
+                // pass
+            } finally {
+                second.rollback();
+            }
+        } finally {
+            first.rollback();
+            service.delete(grandChild, child, root);
+        }
+    }
+
     @Test
     public void testOperatingOnClosedTransaction() throws Exception {
         Transaction tx = service.beginTransaction();
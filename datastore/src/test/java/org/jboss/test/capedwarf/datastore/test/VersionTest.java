@@ -37,6 +37,7 @@ import org.junit.runner.RunWith;
 import com.google.appengine.api.datastore.Entities;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
 
 /**
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
@@ -65,6 +66,53 @@ public class VersionTest extends DatastoreTestBase {
         }
     }
 
+    @Test
+    public void testCommittedTx() throws Exception {
+        Entity entity = new Entity("VersionTest");
+        Key key = service.put(entity);
+        try {
+            long version = readVersion(key);
+
+            Transaction tx = service.beginTransaction();
+            try {
+                entity.setProperty("counter", 1L);
+                service.put(tx, entity);
+                // nothing visible before commit
+                Assert.assertEquals(version, readVersion(key));
+                tx.commit();
+            } finally {
+                if (tx.isActive()) {
+                    tx.rollback();
+                }
+            }
+            Assert.assertTrue(readVersion(key) > version);
+        } finally {
+            service.delete(key);
+        }
+    }
+
+    @Test
+    public void testRolledBackTx() throws Exception {
+        Entity entity = new Entity("VersionTest");
+        Key key = service.put(entity);
+        try {
+            long version = readVersion(key);
+
+            Transaction tx = service.beginTransaction();
+            entity.setProperty("counter", 1L);
+            service.put(tx, entity);
+            tx.rollback();
+
+            Assert.assertEquals(version, readVersion(key));
+        } finally {
+            service.delete(key);
+        }
+    }
+
+    protected long readVersion(Key key) throws Exception {
+        return Entities.getVersionProperty(service.get(Entities.createEntityGroupKey(key)));
+    }
+
     protected void assertVersion(Entity entity, AtomicLong counter) throws Exception {
         long version = Entities.getVersionProperty(service.get(Entities.createEntityGroupKey(entity.getKey())));
 
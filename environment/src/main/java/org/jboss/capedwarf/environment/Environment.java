@@ -96,6 +96,17 @@ public interface Environment {
      */
     DatastoreService.KeyRangeState checkRange(String appId, KeyRange keyRange, String sequenceName);
 
+    /**
+     * Lease key range, handed out node-locally.
+     * The range stays outstanding until the node leases its next-but-one range, or leaves.
+     *
+     * @param appId        the app id
+     * @param sequenceName the sequence name
+     * @param num          the size of range
+     * @return key range start, or null if this environment does not lease ranges
+     */
+    Long leaseRange(String appId, String sequenceName, long num);
+
     /**
      * Update key range.
      *
@@ -103,6 +114,7 @@ public interface Environment {
      * @param id             the id
      * @param sequenceName   the sequence name
      * @param allocationSize the allocationSize
+     * @return true if the id is in an outstanding lease, every node must then drop its leased ranges of the sequence
      */
-    void updateRange(String appId, long id, String sequenceName, long allocationSize);
+    boolean updateRange(String appId, long id, String sequenceName, long allocationSize);
 }
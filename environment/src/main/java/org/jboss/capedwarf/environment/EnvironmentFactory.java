@@ -22,7 +22,11 @@
 
 package org.jboss.capedwarf.environment;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
 import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
@@ -67,6 +71,8 @@ public final class EnvironmentFactory {
 
     private static class NoopEnv extends AbstractEnvironment {
         private AtomicLong nextId = new AtomicLong(1);
+        // single node, its last two (current and prefetched) blocks per sequence
+        private Map<String, Deque<long[]>> leases = new ConcurrentHashMap<>();
 
         public String getPartition() {
             return MASTER_SERVER_PARTITION;
@@ -87,8 +93,38 @@ public final class EnvironmentFactory {
             return start < next ? DatastoreService.KeyRangeState.COLLISION : DatastoreService.KeyRangeState.CONTENTION;
         }
 
-        public void updateRange(String appId, long id, String sequenceName, long allocationSize) {
-            nextId.set(id + allocationSize);
+        public synchronized Long leaseRange(String appId, String sequenceName, long num) {
+            final long start = nextId.getAndAdd(num);
+            Deque<long[]> blocks = leases.get(sequenceName);
+            if (blocks == null) {
+                blocks = new ArrayDeque<>();
+                leases.put(sequenceName, blocks);
+            } else if (blocks.size() >= 2) {
+                blocks.removeFirst();
+            }
+            blocks.addLast(new long[]{start, start + num});
+            return start;
+        }
+
+        public synchronized boolean updateRange(String appId, long id, String sequenceName, long allocationSize) {
+            while (true) {
+                long current = nextId.get();
+                if (current > id) {
+                    break;
+                } else if (nextId.compareAndSet(current, id + allocationSize)) {
+                    return false;
+                }
+            }
+            final Deque<long[]> blocks = leases.get(sequenceName);
+            if (blocks != null) {
+                for (long[] block : blocks) {
+                    if (block[0] <= id && id < block[1]) {
+                        leases.remove(sequenceName);
+                        return true;
+                    }
+                }
+            }
+            return false;
         }
     }
 }
@@ -0,0 +1,115 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.memcache;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.Cache;
+
+/**
+ * Bulk write task.
+ * Executed on the primary owner, applies the write semantics to all its input keys in one go.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class BulkWriteTask extends OwnerTask<BulkWriteTask.Write, Set<NamespacedKey>> {
+    private static final long serialVersionUID = 1L;
+
+    static enum Op {
+        ADD_ONLY_IF_NOT_PRESENT,
+        REPLACE_ONLY_IF_PRESENT,
+        PUT_IF_UNTOUCHED,
+        DELETE
+    }
+
+    private final Op op;
+
+    BulkWriteTask(Op op, Map<NamespacedKey, Write> writes) {
+        super(writes);
+        this.op = op;
+    }
+
+    BulkWriteTask forInput(Map<NamespacedKey, Write> writes) {
+        return new BulkWriteTask(op, writes);
+    }
+
+    /**
+     * Apply writes for the keys.
+     *
+     * @param cache the memcache cache
+     * @param keys the keys, only ones with writes are applied
+     * @return keys which were written (or deleted)
+     */
+    Set<NamespacedKey> apply(Cache<NamespacedKey, Object> cache, Set<NamespacedKey> keys) {
+        final Set<NamespacedKey> results = new HashSet<>();
+        for (NamespacedKey key : keys) {
+            Write write = getInput().get(key);
+            if (write != null && apply(cache, key, write)) {
+                results.add(key);
+            }
+        }
+        return results;
+    }
+
+    private boolean apply(Cache<NamespacedKey, Object> cache, NamespacedKey key, Write write) {
+        switch (op) {
+            case ADD_ONLY_IF_NOT_PRESENT:
+                // marker has the same hash, so it lives on this owner as well
+                return cache.containsKey(key.toMarker()) == false && cache.putIfAbsent(key, write.value, write.lifespan, TimeUnit.MILLISECONDS) == null;
+            case REPLACE_ONLY_IF_PRESENT:
+                return cache.replace(key, write.value, write.lifespan, TimeUnit.MILLISECONDS) != null;
+            case PUT_IF_UNTOUCHED:
+                return cache.replace(key, write.expected, write.value, write.lifespan, TimeUnit.MILLISECONDS);
+            case DELETE:
+                Object previous = cache.remove(key);
+                if (write.lifespan > 0) {
+                    cache.put(key.toMarker(), previous, write.lifespan, TimeUnit.MILLISECONDS);
+                }
+                return previous != null;
+            default:
+                throw new IllegalArgumentException("Unsupported op " + op);
+        }
+    }
+
+    /**
+     * Single key write.
+     * For deletes the lifespan is the no-re-add period.
+     */
+    static class Write implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final Object value;
+        private final Object expected;
+        private final long lifespan;
+
+        Write(Object value, Object expected, long lifespan) {
+            this.value = value;
+            this.expected = expected;
+            this.lifespan = lifespan;
+        }
+    }
+}
@@ -24,28 +24,32 @@
 
 package org.jboss.capedwarf.memcache;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import com.google.appengine.api.NamespaceManager;
 import com.google.appengine.api.memcache.ErrorHandler;
 import com.google.appengine.api.memcache.Expiration;
-import com.google.appengine.api.memcache.InvalidValueException;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.Stats;
 import org.infinispan.AdvancedCache;
 import org.infinispan.Cache;
 import org.infinispan.context.Flag;
+import org.infinispan.distribution.DistributionManager;
+import org.infinispan.remoting.transport.Address;
 import org.jboss.capedwarf.common.app.Application;
 import org.jboss.capedwarf.common.infinispan.InfinispanUtils;
-import org.jboss.capedwarf.common.infinispan.WrapperTxCallable;
 import org.jboss.capedwarf.shared.config.CacheName;
+import org.jboss.capedwarf.shared.util.Utils;
 
 /**
  * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
@@ -57,6 +61,9 @@ public class CapedwarfMemcacheService implements MemcacheService {
     private static final SetPolicy DEFAULT_SET_POLICY = SetPolicy.SET_ALWAYS;
 
     protected final Cache<NamespacedKey, Object> cache;
+    private final String appId;
+    private final NearCache nearCache;
+    private final MemcacheStats stats;
     private String namespace;
     private ErrorHandler errorHandler;
 
@@ -66,7 +73,10 @@ public class CapedwarfMemcacheService implements MemcacheService {
 
     public CapedwarfMemcacheService(String namespace) {
         setNamespace(namespace);
-        this.cache = InfinispanUtils.getCache(Application.getAppId(), CacheName.MEMCACHE);
+        this.appId = Application.getAppId();
+        this.cache = InfinispanUtils.getCache(appId, CacheName.MEMCACHE);
+        this.nearCache = NearCache.getNearCache(appId, cache);
+        this.stats = MemcacheStats.getStats(appId, cache);
     }
 
     protected NamespacedMarker toMarker(Object key) {
@@ -94,20 +104,23 @@ public class CapedwarfMemcacheService implements MemcacheService {
     }
 
     public Object get(Object key) {
-        return cache.get(namespacedKey(key));
+        NamespacedKey namespacedKey = namespacedKey(key);
+        Object entry = (nearCache != null) ? nearCache.get(namespacedKey) : cache.get(namespacedKey);
+        stats.hit(entry);
+        return MemcacheEntry.unwrap(entry);
     }
 
     public IdentifiableValue getIdentifiable(final Object key) {
-        return (contains(key)) ? new MyIdentifiableValue(get(key)) : null;
+        Object entry = cache.get(namespacedKey(key));
+        stats.hit(entry);
+        return (entry != null) ? new MyIdentifiableValue(asEntry(entry)) : null;
     }
 
     public <T> Map<T, IdentifiableValue> getIdentifiables(Collection<T> keys) {
         Map<T, IdentifiableValue> map = new HashMap<T, IdentifiableValue>();
-        for (T key : keys) {
-            final IdentifiableValue identifiable = getIdentifiable(key);
-            if (identifiable != null) {
-                map.put(key, identifiable);
-            }
+        // no near cache, CAS needs the current stamps
+        for (Map.Entry<T, Object> entry : getEntries(keys, null).entrySet()) {
+            map.put(entry.getKey(), new MyIdentifiableValue(asEntry(entry.getValue())));
         }
         return map;
     }
@@ -117,13 +130,36 @@ public class CapedwarfMemcacheService implements MemcacheService {
     }
 
     public <T> Map<T, Object> getAll(Collection<T> keys) {
-        // TODO: batching
+        Map<T, Object> map = getEntries(keys, nearCache);
+        for (Map.Entry<T, Object> entry : map.entrySet()) {
+            entry.setValue(MemcacheEntry.unwrap(entry.getValue()));
+        }
+        return map;
+    }
+
+    private <T> Map<T, Object> getEntries(Collection<T> keys, NearCache near) {
+        Map<NamespacedKey, T> namespacedKeys = toNamespacedKeys(keys);
         Map<T, Object> map = new HashMap<T, Object>();
-        for (T key : keys) {
-            Object value = get(key);
-            if (value != null) {
-                map.put(key, value);
+        Set<NamespacedKey> missing = namespacedKeys.keySet();
+        if (near != null) {
+            missing = new HashSet<NamespacedKey>();
+            for (Map.Entry<NamespacedKey, T> entry : namespacedKeys.entrySet()) {
+                Object value = near.getIfPresent(entry.getKey());
+                if (value != null) {
+                    stats.hit(value);
+                    map.put(entry.getValue(), value);
+                } else {
+                    missing.add(entry.getKey());
+                }
+            }
+        }
+        Map<NamespacedKey, Object> values = InfinispanUtils.getAll(appId, CacheName.MEMCACHE, cache.getAdvancedCache(), missing);
+        for (Map.Entry<NamespacedKey, Object> entry : values.entrySet()) {
+            if (near != null) {
+                near.put(entry.getKey(), entry.getValue());
             }
+            stats.hit(entry.getValue());
+            map.put(namespacedKeys.get(entry.getKey()), entry.getValue());
         }
         return map;
     }
@@ -138,23 +174,31 @@ public class CapedwarfMemcacheService implements MemcacheService {
 
     public boolean put(Object key, Object value, Expiration expiration, SetPolicy policy) {
         NamespacedKey namespacedKey = namespacedKey(key);
+        try {
+            return putInternal(key, namespacedKey, value, expiration, policy);
+        } finally {
+            invalidate(Collections.singleton(namespacedKey));
+        }
+    }
+
+    private boolean putInternal(Object key, NamespacedKey namespacedKey, Object value, Expiration expiration, SetPolicy policy) {
         switch (policy) {
             case SET_ALWAYS: {
                 cache.getAdvancedCache()
                         .withFlags(Flag.SKIP_CACHE_LOAD, Flag.SKIP_REMOTE_LOOKUP)
-                        .put(namespacedKey, value, toLifespanMillis(expiration), TimeUnit.MILLISECONDS);
+                        .put(namespacedKey, new MemcacheEntry(value, expiration), toLifespanMillis(expiration), TimeUnit.MILLISECONDS);
                 return true;
             }
             case ADD_ONLY_IF_NOT_PRESENT: {
                 if (hasMarker(key)) {
                     return false;
                 } else {
-                    Object previousValue = cache.putIfAbsent(namespacedKey, value, toLifespanMillis(expiration), TimeUnit.MILLISECONDS);
+                    Object previousValue = cache.putIfAbsent(namespacedKey, new MemcacheEntry(value, expiration), toLifespanMillis(expiration), TimeUnit.MILLISECONDS);
                     return previousValue == null;
                 }
             }
             case REPLACE_ONLY_IF_PRESENT: {
-                Object previousValue = cache.replace(namespacedKey, value, toLifespanMillis(expiration), TimeUnit.MILLISECONDS);
+                Object previousValue = cache.replace(namespacedKey, new MemcacheEntry(value, expiration), toLifespanMillis(expiration), TimeUnit.MILLISECONDS);
                 return previousValue != null;
             }
             default:
@@ -167,18 +211,14 @@ public class CapedwarfMemcacheService implements MemcacheService {
     }
 
     public <T> Set<T> putIfUntouched(Map<T, CasValues> values, Expiration expiration) {
-        //        TODO: cache.startBatch();
-        Set<T> set = new HashSet<T>();
-        for (Map.Entry<T, CasValues> entry : values.entrySet()) {
-            T key = entry.getKey();
-            CasValues casValues = entry.getValue();
+        Map<NamespacedKey, T> keys = toNamespacedKeys(values.keySet());
+        Map<NamespacedKey, BulkWriteTask.Write> writes = new HashMap<NamespacedKey, BulkWriteTask.Write>();
+        for (Map.Entry<NamespacedKey, T> entry : keys.entrySet()) {
+            CasValues casValues = values.get(entry.getValue());
             Expiration actualExpiration = casValues.getExipration() == null ? expiration : casValues.getExipration();
-            boolean stored = putIfUntouched(key, casValues.getOldValue(), casValues.getNewValue(), actualExpiration);
-            if (stored) {
-                set.add(key);
-            }
+            writes.put(entry.getKey(), new BulkWriteTask.Write(new MemcacheEntry(casValues.getNewValue(), actualExpiration), toExpected(casValues.getOldValue()), toLifespanMillis(actualExpiration)));
         }
-        return set;
+        return bulk(BulkWriteTask.Op.PUT_IF_UNTOUCHED, writes, keys);
     }
 
     public boolean putIfUntouched(Object key, IdentifiableValue oldValue, Object newValue) {
@@ -186,7 +226,13 @@ public class CapedwarfMemcacheService implements MemcacheService {
     }
 
     public boolean putIfUntouched(Object key, IdentifiableValue oldValue, Object newValue, Expiration expiration) {
-        return cache.replace(namespacedKey(key), oldValue.getValue(), newValue, toLifespanMillis(expiration), TimeUnit.MILLISECONDS);
+        NamespacedKey namespacedKey = namespacedKey(key);
+        try {
+            // version stamp compare, values are only compared for legacy entries
+            return cache.replace(namespacedKey, toExpected(oldValue), new MemcacheEntry(newValue, expiration), toLifespanMillis(expiration), TimeUnit.MILLISECONDS);
+        } finally {
+            invalidate(Collections.singleton(namespacedKey));
+        }
     }
 
     public void putAll(Map<?, ?> map) {
@@ -198,34 +244,21 @@ public class CapedwarfMemcacheService implements MemcacheService {
     }
 
     public <T> Set<T> putAll(Map<T, ?> map, Expiration expiration, SetPolicy policy) {
-        //        TODO: cache.startBatch();
         switch (policy) {
             case SET_ALWAYS:
-                cache.getAdvancedCache()
-                        .withFlags(Flag.SKIP_CACHE_LOAD, Flag.SKIP_REMOTE_LOOKUP)
-                        .putAll(toNamespacedMap(map), toLifespanMillis(expiration), TimeUnit.MILLISECONDS);
+                Map<NamespacedKey, Object> entries = toNamespacedMap(map, expiration);
+                try {
+                    cache.getAdvancedCache()
+                            .withFlags(Flag.SKIP_CACHE_LOAD, Flag.SKIP_REMOTE_LOOKUP)
+                            .putAll(entries, toLifespanMillis(expiration), TimeUnit.MILLISECONDS);
+                } finally {
+                    invalidate(entries.keySet());
+                }
                 return map.keySet();
             case ADD_ONLY_IF_NOT_PRESENT:
-                Set<T> addedKeys = new HashSet<T>();
-                for (Map.Entry<T, ?> entry : map.entrySet()) {
-                    final Object key = entry.getKey();
-                    if (hasMarker(key) == false) {
-                        Object previousValue = cache.putIfAbsent(namespacedKey(key), entry.getValue(), toLifespanMillis(expiration), TimeUnit.MILLISECONDS);
-                        if (previousValue == null) {
-                            addedKeys.add(entry.getKey());
-                        }
-                    }
-                }
-                return addedKeys;
+                return putAll(BulkWriteTask.Op.ADD_ONLY_IF_NOT_PRESENT, map, expiration);
             case REPLACE_ONLY_IF_PRESENT:
-                Set<T> replacedKeys = new HashSet<T>();
-                for (Map.Entry<T, ?> entry : map.entrySet()) {
-                    Object previousValue = cache.replace(namespacedKey(entry.getKey()), entry.getValue(), toLifespanMillis(expiration), TimeUnit.MILLISECONDS);
-                    if (previousValue != null) {
-                        replacedKeys.add(entry.getKey());
-                    }
-                }
-                return replacedKeys;
+                return putAll(BulkWriteTask.Op.REPLACE_ONLY_IF_PRESENT, map, expiration);
             default:
                 throw new IllegalArgumentException("Unsupported policy " + policy);
         }
@@ -236,7 +269,13 @@ public class CapedwarfMemcacheService implements MemcacheService {
     }
 
     public boolean delete(Object key, long millisNoReAdd) {
-        Object removedObject = cache.remove(namespacedKey(key));
+        NamespacedKey namespacedKey = namespacedKey(key);
+        Object removedObject;
+        try {
+            removedObject = cache.remove(namespacedKey);
+        } finally {
+            invalidate(Collections.singleton(namespacedKey));
+        }
         if (millisNoReAdd > 0) {
             putMarker(key, removedObject, millisNoReAdd);
         }
@@ -248,67 +287,77 @@ public class CapedwarfMemcacheService implements MemcacheService {
     }
 
     public <T> Set<T> deleteAll(Collection<T> keys, long millisNoReAdd) {
-        Set<T> deletedKeys = new HashSet<T>();
-        for (T key : keys) {
-            Object previousValue = cache.remove(namespacedKey(key));
-            if (previousValue != null) {
-                deletedKeys.add(key);
-            }
-            if (millisNoReAdd > 0) {
-                putMarker(key, previousValue, millisNoReAdd);
-            }
+        Map<NamespacedKey, T> namespacedKeys = toNamespacedKeys(keys);
+        Map<NamespacedKey, BulkWriteTask.Write> writes = new HashMap<NamespacedKey, BulkWriteTask.Write>();
+        for (NamespacedKey key : namespacedKeys.keySet()) {
+            writes.put(key, new BulkWriteTask.Write(null, null, millisNoReAdd));
         }
-        return deletedKeys;
+        return bulk(BulkWriteTask.Op.DELETE, writes, namespacedKeys);
     }
 
-    protected void lock(Object key) {
-        final AdvancedCache<NamespacedKey, Object> ac = cache.getAdvancedCache();
-        if (ac.lock(namespacedKey(key)) == false)
-            throw new IllegalArgumentException("Cannot lock key: " + key);
-    }
-
-    protected long castToLong(Object value) {
-        if (value instanceof Number) {
-            return ((Number) value).longValue();
-        } else if (value instanceof String) {
-            String string = (String) value;
-            try {
-                return Long.parseLong(string);
-            } catch (NumberFormatException e) {
-                throw new InvalidValueException("Cannot increment. Value was " + value);
+    private <T> Set<T> putAll(BulkWriteTask.Op op, Map<T, ?> map, Expiration expiration) {
+        Map<NamespacedKey, T> keys = toNamespacedKeys(map.keySet());
+        long lifespan = toLifespanMillis(expiration);
+        Map<NamespacedKey, BulkWriteTask.Write> writes = new HashMap<NamespacedKey, BulkWriteTask.Write>();
+        for (Map.Entry<NamespacedKey, T> entry : keys.entrySet()) {
+            writes.put(entry.getKey(), new BulkWriteTask.Write(new MemcacheEntry(map.get(entry.getValue()), expiration), null, lifespan));
+        }
+        return bulk(op, writes, keys);
+    }
+
+    private <T> Set<T> bulk(BulkWriteTask.Op op, Map<NamespacedKey, BulkWriteTask.Write> writes, Map<NamespacedKey, T> keys) {
+        final Set<T> results = new HashSet<T>();
+        for (Set<NamespacedKey> written : executeOnOwners(new BulkWriteTask(op, writes))) {
+            for (NamespacedKey key : written) {
+                results.add(keys.get(key));
             }
         }
-        throw new InvalidValueException("Cannot increment. Value was " + value);
+        return results;
+    }
+
+    /**
+     * Execute the task on the primary owners, a single call per owner.
+     * Locally owned keys are handled directly.
+     */
+    private <V, R> List<R> executeOnOwners(OwnerTask<V, R> task) {
+        try {
+            return executeOnOwnersInternal(task);
+        } finally {
+            invalidate(task.getInput().keySet());
+        }
     }
 
-    private Long incrementInternal(final Object key, final long delta, final Long initialValue) {
-        lock(key);
-        long newValue;
-        Object value = get(key);
-        if (value == null) {
-            if (initialValue == null) {
-                return null;
+    private <V, R> List<R> executeOnOwnersInternal(OwnerTask<V, R> task) {
+        final AdvancedCache<NamespacedKey, Object> ac = cache.getAdvancedCache();
+        final DistributionManager dm = ac.getDistributionManager();
+        final List<R> results = new ArrayList<R>();
+        if (dm == null) {
+            results.add(task.apply(cache, task.getInput().keySet()));
+            return results;
+        }
+
+        final Map<Address, Map<NamespacedKey, V>> owners = new HashMap<Address, Map<NamespacedKey, V>>();
+        for (Map.Entry<NamespacedKey, V> entry : task.getInput().entrySet()) {
+            Address owner = dm.getPrimaryLocation(entry.getKey());
+            Map<NamespacedKey, V> group = owners.get(owner);
+            if (group == null) {
+                group = new HashMap<NamespacedKey, V>();
+                owners.put(owner, group);
             }
-            value = initialValue;
-            newValue = initialValue + delta;
-        } else {
-            newValue = Math.max(0, castToLong(value) + delta);
-        }
-
-        if (value instanceof String) {
-            put(key, String.valueOf(newValue));
-        } else if (value instanceof Byte) {
-            put(key, ((Number)newValue).byteValue());
-        } else if (value instanceof Short) {
-            put(key, ((Number)newValue).shortValue());
-        } else if (value instanceof Integer) {
-            put(key, ((Number)newValue).intValue());
-        } else if (value instanceof Long) {
-            put(key, ((Number)newValue).longValue());
-        } else {
-            throw new IllegalArgumentException("Unsupported value type: " + value.getClass());
+            group.put(entry.getKey(), entry.getValue());
+        }
+        final Map<NamespacedKey, V> local = owners.remove(ac.getRpcManager().getAddress());
+        final List<Future<R>> futures = new ArrayList<Future<R>>();
+        for (Map<NamespacedKey, V> group : owners.values()) {
+            futures.addAll(InfinispanUtils.owners(appId, CacheName.MEMCACHE, task.forInput(group), group.keySet().toArray()));
+        }
+        if (local != null) {
+            results.add(task.apply(cache, local.keySet()));
         }
-        return newValue;
+        for (Future<R> future : futures) {
+            results.add(Utils.quietGet(future));
+        }
+        return results;
     }
 
     public Long increment(Object key, long delta) {
@@ -316,12 +365,7 @@ public class CapedwarfMemcacheService implements MemcacheService {
     }
 
     public Long increment(final Object key, final long delta, final Long initialValue) {
-        final Callable<Long> callable = new Callable<Long>() {
-            public Long call() throws Exception {
-                return incrementInternal(key, delta, initialValue);
-            }
-        };
-        return new WrapperTxCallable<NamespacedKey, Object, Long>(cache, callable).call();
+        return incrementAll(Collections.singletonMap(key, delta), initialValue).get(key);
     }
 
     public <T> Map<T, Long> incrementAll(Collection<T> keys, long delta) {
@@ -329,17 +373,11 @@ public class CapedwarfMemcacheService implements MemcacheService {
     }
 
     public <T> Map<T, Long> incrementAll(final Collection<T> keys, final long delta, final Long initialValue) {
-        final Callable<Map<T, Long>> callable = new Callable<Map<T, Long>>() {
-            public Map<T, Long> call() throws Exception {
-                Map<T, Long> map = new HashMap<T, Long>();
-                for (T key : keys) {
-                    Long newValue = incrementInternal(key, delta, initialValue);
-                    map.put(key, newValue);
-                }
-                return map;
-            }
-        };
-        return new WrapperTxCallable<NamespacedKey, Object, Map<T, Long>>(cache, callable).call();
+        Map<T, Long> offsets = new HashMap<T, Long>();
+        for (T key : keys) {
+            offsets.put(key, delta);
+        }
+        return incrementAll(offsets, initialValue);
     }
 
     public <T> Map<T, Long> incrementAll(Map<T, Long> offsets) {
@@ -347,28 +385,37 @@ public class CapedwarfMemcacheService implements MemcacheService {
     }
 
     public <T> Map<T, Long> incrementAll(final Map<T, Long> offsets, final Long initialValue) {
-        final Callable<Map<T, Long>> callable = new Callable<Map<T, Long>>() {
-            public Map<T, Long> call() throws Exception {
-                Map<T, Long> map = new HashMap<T, Long>();
-                for (Map.Entry<T, Long> entry : offsets.entrySet()) {
-                    T key = entry.getKey();
-                    Long delta = entry.getValue();
-                    Long newValue = incrementInternal(key, delta, initialValue);
-                    map.put(key, newValue);
-                }
-                return map;
+        Map<NamespacedKey, T> keys = toNamespacedKeys(offsets.keySet());
+        Map<NamespacedKey, Long> deltas = new HashMap<NamespacedKey, Long>();
+        for (Map.Entry<NamespacedKey, T> entry : keys.entrySet()) {
+            deltas.put(entry.getKey(), offsets.get(entry.getValue()));
+        }
+        Map<T, Long> map = new HashMap<T, Long>();
+        for (Map<NamespacedKey, Long> values : executeOnOwners(new IncrementTask(deltas, initialValue))) {
+            for (Map.Entry<NamespacedKey, Long> entry : values.entrySet()) {
+                map.put(keys.get(entry.getKey()), entry.getValue());
             }
-        };
-        return new WrapperTxCallable<NamespacedKey, Object, Map<T, Long>>(cache, callable).call();
+        }
+        return map;
     }
 
     public void clearAll() {
         cache.clear();
+        // clear fires no entry events, reset stats and near caches on all nodes
+        for (Future<Void> future : InfinispanUtils.everywhere(appId, new MemcacheReset(appId, Application.getModule()))) {
+            Utils.quietGet(future);
+        }
+    }
+
+    private void invalidate(Collection<NamespacedKey> keys) {
+        if (nearCache != null) {
+            nearCache.invalidateAll(keys);
+        }
     }
 
 
     public Stats getStatistics() {
-        return new InfinispanStatistics(cache.getAdvancedCache());
+        return new InfinispanStatistics(cache.getAdvancedCache(), nearCache, stats);
     }
 
     public void setErrorHandler(ErrorHandler errorHandler) {
@@ -387,15 +434,27 @@ public class CapedwarfMemcacheService implements MemcacheService {
         }
     }
 
+    private static Object toExpected(IdentifiableValue identifiable) {
+        if (identifiable instanceof MyIdentifiableValue) {
+            return ((MyIdentifiableValue) identifiable).entry.getExpected();
+        }
+        throw new IllegalArgumentException("Identifiable value not obtained from this service: " + identifiable);
+    }
+
+    private static MemcacheEntry asEntry(Object value) {
+        // stored before version stamps
+        return (value instanceof MemcacheEntry) ? (MemcacheEntry) value : MemcacheEntry.legacy(value);
+    }
+
     private static class MyIdentifiableValue implements IdentifiableValue {
-        private final Object value;
+        private final MemcacheEntry entry;
 
-        public MyIdentifiableValue(Object value) {
-            this.value = value;
+        public MyIdentifiableValue(MemcacheEntry entry) {
+            this.entry = entry;
         }
 
         public Object getValue() {
-            return value;
+            return entry.getValue();
         }
     }
 
@@ -404,10 +463,18 @@ public class CapedwarfMemcacheService implements MemcacheService {
         return new NamespacedKey(namespace == null ? "" : namespace, key);
     }
 
-    private <T> Map<? extends NamespacedKey, ?> toNamespacedMap(Map<T, ?> map) {
+    private <T> Map<NamespacedKey, T> toNamespacedKeys(Collection<T> keys) {
+        Map<NamespacedKey, T> namespacedKeys = new HashMap<NamespacedKey, T>();
+        for (T key : keys) {
+            namespacedKeys.put(namespacedKey(key), key);
+        }
+        return namespacedKeys;
+    }
+
+    private <T> Map<NamespacedKey, Object> toNamespacedMap(Map<T, ?> map, Expiration expiration) {
         HashMap<NamespacedKey, Object> namespacedKeyMap = new HashMap<NamespacedKey, Object>();
         for (Map.Entry<T, ?> entry : map.entrySet()) {
-            namespacedKeyMap.put(namespacedKey(entry.getKey()), entry.getValue());
+            namespacedKeyMap.put(namespacedKey(entry.getKey()), new MemcacheEntry(entry.getValue(), expiration));
         }
         return namespacedKeyMap;
     }
@@ -0,0 +1,100 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.memcache;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.appengine.api.memcache.InvalidValueException;
+import org.infinispan.Cache;
+
+/**
+ * Increment task.
+ * Executed on the primary owner, each counter is updated with a compare-and-set on its version stamp,
+ * so no tx or lock is needed.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class IncrementTask extends OwnerTask<Long, Map<NamespacedKey, Long>> {
+    private static final long serialVersionUID = 1L;
+
+    private final Long initialValue;
+
+    IncrementTask(Map<NamespacedKey, Long> deltas, Long initialValue) {
+        super(deltas);
+        this.initialValue = initialValue;
+    }
+
+    IncrementTask forInput(Map<NamespacedKey, Long> deltas) {
+        return new IncrementTask(deltas, initialValue);
+    }
+
+    Map<NamespacedKey, Long> apply(Cache<NamespacedKey, Object> cache, Set<NamespacedKey> keys) {
+        final Map<NamespacedKey, Long> results = new HashMap<>();
+        for (NamespacedKey key : keys) {
+            Long delta = getInput().get(key);
+            if (delta != null) {
+                results.put(key, increment(cache, key, delta));
+            }
+        }
+        return results;
+    }
+
+    private Long increment(Cache<NamespacedKey, Object> cache, NamespacedKey key, long delta) {
+        while (true) {
+            Object current = cache.get(key);
+            if (current == null) {
+                if (initialValue == null) {
+                    return null;
+                }
+                long newValue = initialValue + delta;
+                if (cache.putIfAbsent(key, new MemcacheCounter(newValue, initialValue)) == null) {
+                    return newValue;
+                }
+            } else {
+                Object value = MemcacheEntry.unwrap(current);
+                long count = (current instanceof MemcacheCounter) ? ((MemcacheCounter) current).getCount() : castToLong(value);
+                long newValue = Math.max(0, count + delta);
+                if (cache.replace(key, current, new MemcacheCounter(newValue, value))) {
+                    return newValue;
+                }
+            }
+            // concurrent change, retry
+        }
+    }
+
+    private static long castToLong(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        } else if (value instanceof String) {
+            String string = (String) value;
+            try {
+                return Long.parseLong(string);
+            } catch (NumberFormatException e) {
+                throw new InvalidValueException("Cannot increment. Value was " + value);
+            }
+        }
+        throw new InvalidValueException("Cannot increment. Value was " + value);
+    }
+}
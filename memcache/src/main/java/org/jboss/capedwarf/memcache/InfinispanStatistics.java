@@ -29,16 +29,27 @@ import org.infinispan.AdvancedCache;
 
 /**
  * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
 public class InfinispanStatistics implements Stats {
     private AdvancedCache<?, ?> advancedCache;
+    private NearCache nearCache;
+    private MemcacheStats stats;
 
     public InfinispanStatistics(AdvancedCache<?, ?> cache) {
+        this(cache, null, null);
+    }
+
+    InfinispanStatistics(AdvancedCache<?, ?> cache, NearCache nearCache, MemcacheStats stats) {
         this.advancedCache = cache;
+        this.nearCache = nearCache;
+        this.stats = stats;
     }
 
     public long getHitCount() {
-        return advancedCache.getStats().getHits();
+        // near cache hits never reach Infinispan
+        long nearHits = (nearCache != null) ? nearCache.getStats().hitCount() : 0;
+        return advancedCache.getStats().getHits() + nearHits;
     }
 
     public long getMissCount() {
@@ -46,7 +57,7 @@ public class InfinispanStatistics implements Stats {
     }
 
     public long getBytesReturnedForHits() {
-        return 0; // TODO
+        return (stats != null) ? stats.getBytesReturnedForHits() : 0;
     }
 
     public long getItemCount() {
@@ -54,10 +65,10 @@ public class InfinispanStatistics implements Stats {
     }
 
     public long getTotalItemBytes() {
-        return 0; // TODO
+        return (stats != null) ? stats.getTotalItemBytes() : 0;
     }
 
     public int getMaxTimeWithoutAccess() {
-        return 0; // TODO
+        return (stats != null) ? stats.getMaxTimeWithoutAccess() : 0;
     }
 }
@@ -0,0 +1,61 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.memcache;
+
+/**
+ * Counter entry, written by increments.
+ * Keeps the type of the original value, and its count as long, so increments need no parsing.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class MemcacheCounter extends MemcacheEntry {
+    private static final long serialVersionUID = 1L;
+
+    private final long count;
+
+    MemcacheCounter(long count, Object prototype) {
+        super(convert(count, prototype));
+        Object value = getValue();
+        this.count = (value instanceof Number) ? ((Number) value).longValue() : count;
+    }
+
+    private static Object convert(long count, Object prototype) {
+        if (prototype instanceof String) {
+            return String.valueOf(count);
+        } else if (prototype instanceof Byte) {
+            return (byte) count;
+        } else if (prototype instanceof Short) {
+            return (short) count;
+        } else if (prototype instanceof Integer) {
+            return (int) count;
+        } else if (prototype instanceof Long) {
+            return count;
+        } else {
+            throw new IllegalArgumentException("Unsupported value type: " + prototype.getClass());
+        }
+    }
+
+    long getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.memcache;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * Memcache value with its version stamp.
+ *
+ * Equality is decided by the stamp alone, so compare-and-set
+ * is a single conditional replace, without comparing the (possibly large) values.
+ * Stamps are a per node increasing counter plus a random (UUID based) 64 bit node id.
+ * Values stored before stamps existed get a fixed legacy stamp, and are compared by value.
+ * Size of the value is measured once, when the entry is created:
+ * byte arrays, strings and primitive wrappers are sized directly, other values are serialized once.
+ * Values which cannot be sized are counted, and left out of byte stats.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class MemcacheEntry implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final Logger log = Logger.getLogger(MemcacheEntry.class.getName());
+
+    static final int UNKNOWN_SIZE = -1;
+    private static final AtomicLong UNSIZED = new AtomicLong();
+
+    private static final long NODE = nodeId();
+    private static final AtomicLong COUNTER = new AtomicLong(System.currentTimeMillis());
+    private static final AtomicLongFieldUpdater<MemcacheEntry> ACCESSED = AtomicLongFieldUpdater.newUpdater(MemcacheEntry.class, "accessed");
+
+    private final Object value;
+    private final long version;
+    private final long node;
+    private final int size;
+    private final long expires;
+
+    private transient volatile long accessed; // node-local, see MemcacheStats
+
+    MemcacheEntry(Object value) {
+        this(value, null);
+    }
+
+    MemcacheEntry(Object value, Expiration expiration) {
+        this(value, COUNTER.incrementAndGet(), NODE, (expiration != null) ? expiration.getMillisecondsValue() : 0);
+    }
+
+    private MemcacheEntry(Object value, long version, long node, long expires) {
+        this.value = value;
+        this.version = version;
+        this.node = node;
+        this.size = sizeOf(value);
+        this.expires = expires;
+    }
+
+    private static long nodeId() {
+        final UUID uuid = UUID.randomUUID();
+        final long id = uuid.getMostSignificantBits() ^ uuid.getLeastSignificantBits();
+        return (id != 0) ? id : 1; // 0 is legacy
+    }
+
+    /**
+     * Wrap a raw value, stored before version stamps.
+     * All such wrappers of the value are equal, CAS compares the raw value instead, see #getExpected.
+     *
+     * @param value the raw value
+     * @return legacy entry
+     */
+    static MemcacheEntry legacy(Object value) {
+        return new MemcacheEntry(value, 0, 0, 0);
+    }
+
+    /**
+     * What a conditional replace must find in the cache for this entry to be untouched.
+     *
+     * @return the raw value for legacy entries, this entry otherwise
+     */
+    Object getExpected() {
+        return (node == 0) ? value : this;
+    }
+
+    private static int sizeOf(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        } else if (value instanceof String) {
+            return utf8Length((String) value);
+        } else if (value instanceof Number || value instanceof Boolean || value instanceof Character) {
+            return 8;
+        }
+        CountingOutputStream counter = new CountingOutputStream(ByteStreams.nullOutputStream());
+        try (ObjectOutputStream oos = new ObjectOutputStream(counter)) {
+            oos.writeObject(value);
+        } catch (IOException e) {
+            long count = UNSIZED.incrementAndGet();
+            if (log.isLoggable(Level.FINE)) {
+                log.log(Level.FINE, "Cannot size memcache value of " + value.getClass() + ", unsized values so far: " + count, e);
+            }
+            return UNKNOWN_SIZE;
+        }
+        return (int) counter.getCount();
+    }
+
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    static Object unwrap(Object value) {
+        return (value instanceof MemcacheEntry) ? ((MemcacheEntry) value).getValue() : value;
+    }
+
+    Object getValue() {
+        return value;
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return value size in bytes, UNKNOWN_SIZE if value could not be sized
+     */
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * Expiration time, set by the writer.
+     *
+     * @return expiration time in millis, 0 if the entry doesn't expire
+     */
+    long getExpires() {
+        return expires;
+    }
+
+    /**
+     * Set last access, in seconds.
+     *
+     * @param second the access second, 0 if released
+     * @return previous access second, 0 if none
+     */
+    long access(long second) {
+        return ACCESSED.getAndSet(this, second);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof MemcacheEntry == false) {
+            return false;
+        }
+        final MemcacheEntry other = (MemcacheEntry) o;
+        return version == other.version && node == other.node;
+    }
+
+    @Override
+    public int hashCode() {
+        final long h = version * 31 + node;
+        return (int) (h ^ (h >>> 32));
+    }
+}
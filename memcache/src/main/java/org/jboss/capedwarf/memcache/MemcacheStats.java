@@ -0,0 +1,264 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.memcache;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.infinispan.Cache;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntriesEvicted;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryRemoved;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryVisited;
+import org.infinispan.notifications.cachelistener.event.CacheEntriesEvictedEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryModifiedEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryRemovedEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryVisitedEvent;
+import org.jboss.capedwarf.common.app.Application;
+import org.jboss.capedwarf.shared.components.ComponentRegistry;
+import org.jboss.capedwarf.shared.components.Key;
+import org.jboss.capedwarf.shared.components.SimpleKey;
+
+/**
+ * Node-local memcache statistics, kept up to date from cache events.
+ *
+ * Item bytes and access times follow the entries stored on this node, like the item count,
+ * hit bytes are counted where the hits are served, like the hit count.
+ * Access times are kept as entry counts per second, so the least recently accessed second
+ * is the first non-empty bucket.
+ * Infinispan fires no event on expiration, so counted entries with an expiration are also kept
+ * per expiration second, and released once that second is over, on the next stats read or write.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+@Listener
+public class MemcacheStats {
+    private final StripedCounter hitBytes = new StripedCounter();
+    private final StripedCounter itemBytes = new StripedCounter();
+    private final ConcurrentSkipListMap<Long, AtomicLong> accesses = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<Long, Set<MemcacheEntry>> expirations = new ConcurrentSkipListMap<>();
+
+    private MemcacheStats() {
+    }
+
+    static MemcacheStats getStats(String appId, Cache<NamespacedKey, Object> cache) {
+        final ComponentRegistry registry = ComponentRegistry.getInstance();
+        final Key<MemcacheStats> key = toKey(appId, Application.getModule());
+        MemcacheStats stats = registry.getComponent(key);
+        if (stats == null) {
+            synchronized (MemcacheStats.class) {
+                stats = registry.getComponent(key);
+                if (stats == null) {
+                    stats = new MemcacheStats();
+                    cache.addListener(stats);
+                    registry.setComponent(key, stats);
+                }
+            }
+        }
+        return stats;
+    }
+
+    static Key<MemcacheStats> toKey(String appId, String module) {
+        return new SimpleKey<>(appId, module, MemcacheStats.class);
+    }
+
+    void hit(Object entry) {
+        if (entry instanceof MemcacheEntry) {
+            hitBytes.add(sizeOf((MemcacheEntry) entry));
+        }
+    }
+
+    long getBytesReturnedForHits() {
+        return hitBytes.sum();
+    }
+
+    long getTotalItemBytes() {
+        expire();
+        return itemBytes.sum();
+    }
+
+    int getMaxTimeWithoutAccess() {
+        expire();
+        final long now = System.currentTimeMillis();
+        final long second = TimeUnit.MILLISECONDS.toSeconds(now);
+        for (Map.Entry<Long, AtomicLong> bucket : accesses.entrySet()) {
+            if (bucket.getValue().get() > 0) {
+                return (int) Math.min(Integer.MAX_VALUE, now - TimeUnit.SECONDS.toMillis(bucket.getKey()));
+            } else if (bucket.getKey() < second) {
+                // only the current second is still incremented
+                accesses.remove(bucket.getKey(), bucket.getValue());
+            }
+        }
+        return 0;
+    }
+
+    void reset() {
+        hitBytes.reset();
+        itemBytes.reset();
+        accesses.clear();
+        expirations.clear();
+    }
+
+    @CacheEntryModified
+    public void onModified(CacheEntryModifiedEvent<NamespacedKey, Object> event) {
+        final MemcacheEntry entry = toEntry(event);
+        if (entry != null) {
+            if (event.isPre()) {
+                release(entry); // previous value
+            } else {
+                expire();
+                itemBytes.add(sizeOf(entry));
+                touch(entry);
+                if (entry.getExpires() > 0) {
+                    scheduleExpiration(entry);
+                }
+            }
+        }
+    }
+
+    @CacheEntryRemoved
+    public void onRemoved(CacheEntryRemovedEvent<NamespacedKey, Object> event) {
+        final MemcacheEntry entry = toEntry(event);
+        if (entry != null && event.isPre()) {
+            release(entry);
+        }
+    }
+
+    @CacheEntryVisited
+    public void onVisited(CacheEntryVisitedEvent<NamespacedKey, Object> event) {
+        final MemcacheEntry entry = toEntry(event);
+        if (entry != null && event.isPre() == false) {
+            touch(entry);
+        }
+    }
+
+    @CacheEntriesEvicted
+    public void onEvicted(CacheEntriesEvictedEvent<NamespacedKey, Object> event) {
+        for (Map.Entry<NamespacedKey, Object> evicted : event.getEntries().entrySet()) {
+            if (evicted.getKey() instanceof NamespacedMarker == false && evicted.getValue() instanceof MemcacheEntry) {
+                release((MemcacheEntry) evicted.getValue());
+            }
+        }
+    }
+
+    private static MemcacheEntry toEntry(CacheEntryEvent<NamespacedKey, Object> event) {
+        if (event.getKey() instanceof NamespacedMarker) {
+            return null;
+        }
+        final Object value = event.getValue();
+        return (value instanceof MemcacheEntry) ? (MemcacheEntry) value : null;
+    }
+
+    private void touch(MemcacheEntry entry) {
+        final long second = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        final long previous = entry.access(second);
+        if (previous != second) {
+            if (previous > 0) {
+                decrement(previous);
+            }
+            AtomicLong count = accesses.get(second);
+            if (count == null) {
+                AtomicLong existing = accesses.putIfAbsent(second, count = new AtomicLong());
+                if (existing != null) {
+                    count = existing;
+                }
+            }
+            count.incrementAndGet();
+        }
+    }
+
+    private void release(MemcacheEntry entry) {
+        final long previous = entry.access(0);
+        // only entries stored while listening were counted
+        if (previous > 0) {
+            itemBytes.add(-sizeOf(entry));
+            decrement(previous);
+            if (entry.getExpires() > 0) {
+                final Set<MemcacheEntry> bucket = expirations.get(toExpirationSecond(entry));
+                if (bucket != null) {
+                    bucket.remove(entry);
+                }
+            }
+        }
+    }
+
+    // last second in which the entry is still alive
+    private static long toExpirationSecond(MemcacheEntry entry) {
+        return TimeUnit.MILLISECONDS.toSeconds(entry.getExpires() - 1);
+    }
+
+    private void scheduleExpiration(MemcacheEntry entry) {
+        final long second = toExpirationSecond(entry);
+        while (second >= TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis())) {
+            Set<MemcacheEntry> bucket = expirations.get(second);
+            if (bucket == null) {
+                Set<MemcacheEntry> created = Collections.newSetFromMap(new ConcurrentHashMap<MemcacheEntry, Boolean>());
+                bucket = expirations.putIfAbsent(second, created);
+                if (bucket == null) {
+                    bucket = created;
+                }
+            }
+            bucket.add(entry);
+            // not expired meanwhile
+            if (expirations.get(second) == bucket) {
+                return;
+            }
+            bucket.remove(entry);
+        }
+        release(entry);
+    }
+
+    /**
+     * Release entries whose expiration second is over.
+     */
+    private void expire() {
+        final long current = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        Map.Entry<Long, Set<MemcacheEntry>> first;
+        while ((first = expirations.firstEntry()) != null && first.getKey() < current) {
+            if (expirations.remove(first.getKey(), first.getValue())) {
+                for (MemcacheEntry entry : first.getValue()) {
+                    release(entry);
+                }
+            }
+        }
+    }
+
+    // unsized values are left out
+    private static long sizeOf(MemcacheEntry entry) {
+        return Math.max(0, entry.getSize());
+    }
+
+    private void decrement(long second) {
+        AtomicLong count = accesses.get(second);
+        if (count != null) {
+            count.decrementAndGet();
+        }
+    }
+}
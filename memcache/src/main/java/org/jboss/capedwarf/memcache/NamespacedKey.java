@@ -43,6 +43,10 @@ public class NamespacedKey implements Serializable {
         this.key = key;
     }
 
+    NamespacedMarker toMarker() {
+        return new NamespacedMarker(namespace, key);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,236 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.memcache;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.infinispan.distribution.DistributionManager;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryRemoved;
+import org.infinispan.notifications.cachelistener.event.CacheEntryEvent;
+import org.jboss.capedwarf.common.app.Application;
+import org.jboss.capedwarf.common.config.CapedwarfEnvironment;
+import org.jboss.capedwarf.common.infinispan.InfinispanUtils;
+import org.jboss.capedwarf.common.threads.ExecutorFactory;
+import org.jboss.capedwarf.shared.components.AppIdFactory;
+import org.jboss.capedwarf.shared.components.ComponentRegistry;
+import org.jboss.capedwarf.shared.components.Key;
+import org.jboss.capedwarf.shared.components.SimpleAppIdFactory;
+import org.jboss.capedwarf.shared.components.SimpleKey;
+
+/**
+ * Node-local near cache in front of the memcache cache.
+ *
+ * Disabled by default, enabled by setting its max size.
+ * The primary owner of a modified or removed key broadcasts the invalidation to all nodes;
+ * keys are queued and sent async, all keys queued meanwhile in a single message.
+ * Entries are also dropped after the staleness bound, whatever invalidations were missed.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+@Listener
+public class NearCache {
+    private static final Logger log = Logger.getLogger(NearCache.class.getName());
+
+    private static final long SIZE = Long.getLong("jboss.capedwarf.memcache.nearCacheSize", 0L);
+    private static final long STALENESS = Long.getLong("jboss.capedwarf.memcache.nearCacheStaleness", 1000L); // millis
+
+    private final Cache<NamespacedKey, Object> cache;
+    private final CapedwarfEnvironment env = CapedwarfEnvironment.cloneThreadLocalInstance();
+    private final com.google.common.cache.Cache<NamespacedKey, Object> entries;
+    private final Queue<NamespacedKey> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushing = new AtomicBoolean();
+
+    private NearCache(Cache<NamespacedKey, Object> cache) {
+        this.cache = cache;
+        this.entries = CacheBuilder.newBuilder()
+            .maximumSize(SIZE)
+            .expireAfterWrite(STALENESS, TimeUnit.MILLISECONDS)
+            .recordStats()
+            .build();
+    }
+
+    /**
+     * Get near cache for the app's memcache cache.
+     *
+     * @param appId the app id
+     * @param cache the memcache cache
+     * @return near cache or null if disabled
+     */
+    static NearCache getNearCache(String appId, Cache<NamespacedKey, Object> cache) {
+        if (SIZE <= 0) {
+            return null;
+        }
+
+        final ComponentRegistry registry = ComponentRegistry.getInstance();
+        final Key<NearCache> key = toKey(appId, Application.getModule());
+        NearCache nearCache = registry.getComponent(key);
+        if (nearCache == null) {
+            synchronized (NearCache.class) {
+                nearCache = registry.getComponent(key);
+                if (nearCache == null) {
+                    nearCache = new NearCache(cache);
+                    cache.addListener(nearCache);
+                    registry.setComponent(key, nearCache);
+                }
+            }
+        }
+        return nearCache;
+    }
+
+    static Key<NearCache> toKey(String appId, String module) {
+        return new SimpleKey<>(appId, module, NearCache.class);
+    }
+
+    Object get(NamespacedKey key) {
+        Object entry = entries.getIfPresent(key);
+        if (entry == null) {
+            entry = cache.get(key);
+            if (entry != null) {
+                entries.put(key, entry);
+            }
+        }
+        return entry;
+    }
+
+    Object getIfPresent(NamespacedKey key) {
+        return entries.getIfPresent(key);
+    }
+
+    void put(NamespacedKey key, Object entry) {
+        entries.put(key, entry);
+    }
+
+    void invalidate(NamespacedKey key) {
+        entries.invalidate(key);
+    }
+
+    void invalidateAll(Collection<NamespacedKey> keys) {
+        entries.invalidateAll(keys);
+    }
+
+    void invalidateAll() {
+        entries.invalidateAll();
+    }
+
+    /**
+     * Near cache hits and misses.
+     *
+     * @return the stats
+     */
+    CacheStats getStats() {
+        return entries.stats();
+    }
+
+    @CacheEntryModified
+    @CacheEntryRemoved
+    public void onEntryChanged(CacheEntryEvent<NamespacedKey, Object> event) {
+        // markers are never near cached
+        if (event.isPre() || event.getKey() instanceof NamespacedMarker) {
+            return;
+        }
+
+        final NamespacedKey key = event.getKey();
+        invalidate(key);
+
+        final AdvancedCache<NamespacedKey, Object> ac = cache.getAdvancedCache();
+        final DistributionManager dm = ac.getDistributionManager();
+        // every node holds the entry without distribution, so each already got its event
+        if (dm != null && ac.getRpcManager().getAddress().equals(dm.getPrimaryLocation(key))) {
+            pending.add(key);
+            scheduleFlush();
+        }
+    }
+
+    private void scheduleFlush() {
+        if (flushing.compareAndSet(false, true)) {
+            try {
+                ExecutorFactory.getInstance().execute(new Runnable() {
+                    public void run() {
+                        flush();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                flush();
+            }
+        }
+    }
+
+    private void flush() {
+        while (true) {
+            final Set<NamespacedKey> batch = new HashSet<>();
+            NamespacedKey key;
+            while ((key = pending.poll()) != null) {
+                batch.add(key);
+            }
+            try {
+                if (batch.isEmpty() == false) {
+                    broadcast(batch);
+                }
+            } finally {
+                flushing.set(false);
+            }
+            // keys queued after the drain, while no new flush could be scheduled
+            if (pending.isEmpty() || flushing.compareAndSet(false, true) == false) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Invalidate the keys on all nodes.
+     *
+     * @param keys the keys
+     */
+    void broadcast(Collection<NamespacedKey> keys) {
+        final String appId = env.getAppId();
+        final String module = env.getModuleId();
+        AppIdFactory.setCurrentFactory(new SimpleAppIdFactory(appId, module));
+        try {
+            final CapedwarfEnvironment previous = CapedwarfEnvironment.setThreadLocalInstance(env);
+            try {
+                // fire-n-forget, staleness bound covers lost invalidations
+                InfinispanUtils.everywhere(appId, new NearCacheInvalidation(appId, module, keys));
+            } finally {
+                CapedwarfEnvironment.setThreadLocalInstance(previous);
+            }
+        } catch (Exception e) {
+            log.warning("Cannot broadcast near cache invalidation: " + e.getMessage());
+        } finally {
+            AppIdFactory.resetCurrentFactory();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.memcache;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+
+import org.jboss.capedwarf.shared.components.ComponentRegistry;
+
+/**
+ * Invalidates near cache entries on the node it runs on.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class NearCacheInvalidation implements Callable<Void>, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String appId;
+    private final String module;
+    private final ArrayList<NamespacedKey> keys;
+
+    NearCacheInvalidation(String appId, String module, Collection<NamespacedKey> keys) {
+        this.appId = appId;
+        this.module = module;
+        this.keys = new ArrayList<>(keys);
+    }
+
+    public Void call() throws Exception {
+        NearCache nearCache = ComponentRegistry.getInstance().getComponent(NearCache.toKey(appId, module));
+        if (nearCache != null) {
+            nearCache.invalidateAll(keys);
+        }
+        return null;
+    }
+}
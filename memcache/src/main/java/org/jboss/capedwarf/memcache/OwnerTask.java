@@ -0,0 +1,78 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.memcache;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Set;
+
+import org.infinispan.Cache;
+import org.infinispan.distexec.DistributedCallable;
+
+/**
+ * Memcache task executed on the primary owner of its input keys.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public abstract class OwnerTask<V, R> implements DistributedCallable<NamespacedKey, Object, R>, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Map<NamespacedKey, V> input;
+
+    private transient Cache<NamespacedKey, Object> cache;
+    private transient Set<NamespacedKey> inputKeys;
+
+    protected OwnerTask(Map<NamespacedKey, V> input) {
+        this.input = input;
+    }
+
+    public void setEnvironment(Cache<NamespacedKey, Object> cache, Set<NamespacedKey> inputKeys) {
+        this.cache = cache;
+        this.inputKeys = inputKeys;
+    }
+
+    public R call() throws Exception {
+        return apply(cache, inputKeys);
+    }
+
+    Map<NamespacedKey, V> getInput() {
+        return input;
+    }
+
+    /**
+     * Apply the task to the keys.
+     *
+     * @param cache the memcache cache
+     * @param keys the keys, a subset of input keys
+     * @return the result
+     */
+    abstract R apply(Cache<NamespacedKey, Object> cache, Set<NamespacedKey> keys);
+
+    /**
+     * Same task, only with the subset of input.
+     *
+     * @param input the input subset
+     * @return new task
+     */
+    abstract OwnerTask<V, R> forInput(Map<NamespacedKey, V> input);
+}
@@ -24,6 +24,7 @@
 
 package org.jboss.test.capedwarf.memcache.test;
 
+import com.google.appengine.api.memcache.Expiration;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import org.jboss.arquillian.container.test.api.Deployment;
@@ -38,6 +39,7 @@ import org.junit.experimental.categories.Category;
 import org.junit.runner.RunWith;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
@@ -88,4 +90,26 @@ public class MemcacheStatisticsTest extends TestBase {
         assertEquals(1, service.getStatistics().getMissCount());
     }
 
+    @Test
+    public void testItemAndHitBytes() {
+        service.put("key1", "value1");
+        assertTrue(service.getStatistics().getTotalItemBytes() > 0);
+
+        long hitBytes = service.getStatistics().getBytesReturnedForHits();
+        service.get("key1");
+        assertTrue(service.getStatistics().getBytesReturnedForHits() > hitBytes);
+    }
+
+    @Test
+    public void testExpiredItemBytes() throws Exception {
+        long itemBytes = service.getStatistics().getTotalItemBytes();
+
+        service.put("key1", "value1", Expiration.byDeltaMillis(1000));
+        assertTrue(service.getStatistics().getTotalItemBytes() > itemBytes);
+
+        Thread.sleep(2500);
+        assertEquals(itemBytes, service.getStatistics().getTotalItemBytes());
+        assertEquals(0, service.getStatistics().getMaxTimeWithoutAccess());
+    }
+
 }
@@ -186,6 +186,18 @@ public class MemcacheTest extends TestBase {
         assertEquals("newValue", service.get("key"));
     }
 
+    @Test
+    public void testPutIfUntouchedAfterPutOfEqualValue() {
+        service.put("key", "value");
+
+        MemcacheService.IdentifiableValue identifiable = service.getIdentifiable("key");
+        service.put("key", "value");
+
+        boolean valueWasStored = service.putIfUntouched("key", identifiable, "newValue");
+        assertFalse(valueWasStored);
+        assertEquals("value", service.get("key"));
+    }
+
     @Test
     public void testPutIfUntouchedMulti() {
         service.put("key1", "value1");
@@ -68,7 +68,15 @@ public class OpenShiftEnvironment implements Environment {
         return null;  // TODO
     }
 
-    public void updateRange(String appId, long id, String sequenceName, long allocationSize) {
-        // TODO
+    /**
+     * No leasing, there is no shared sequence to lease from yet;
+     * null makes every allocation go through getRange.
+     */
+    public Long leaseRange(String appId, String sequenceName, long num) {
+        return null;
+    }
+
+    public boolean updateRange(String appId, long id, String sequenceName, long allocationSize) {
+        return false;  // TODO
     }
 }